@@ -2,6 +2,7 @@ plugins {
     id("java")
     id("application")
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "me.joshuasheldon.doclookout"
@@ -23,6 +24,45 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Benchmarks live in src/jmh/java, run them with ./gradlew jmh
+// (narrow them down with e.g. -PjmhIncludes=StorageBenchmark)
+jmh {
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+    resultFormat = "JSON"
+    if (project.hasProperty("jmhIncludes")) {
+        includes = listOf(project.property("jmhIncludes").toString())
+    }
+}
+
+// A load test against simulated origin servers lives in src/loadtest/java,
+// run it with ./gradlew loadTest (pass options with e.g. -PloadTestArgs="--urls 100000")
+sourceSets {
+    create("loadtest") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["loadtestImplementation"].extendsFrom(configurations.implementation.get())
+configurations["loadtestRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
+tasks.register<JavaExec>("loadTest") {
+    description = "Runs DocLookout against simulated origin servers."
+    group = "verification"
+    classpath = sourceSets["loadtest"].runtimeClasspath
+    mainClass = "me.joshuasheldon.doclookout.LoadTest"
+    workingDir = layout.buildDirectory.dir("loadtest").get().asFile
+    args("--clean")
+    if (project.hasProperty("loadTestArgs")) {
+        args(project.property("loadTestArgs").toString().split(" ").filter { it.isNotBlank() })
+    }
+    doFirst {
+        workingDir.mkdirs()
+    }
+}
+
 application {
     mainClass = "me.joshuasheldon.doclookout.DocLookout"
 }
@@ -0,0 +1,64 @@
+package me.joshuasheldon.doclookout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures diffing a stored state against a fresh one,
+ * which happens for every check that isn't answered with
+ * <code>304 Not Modified</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DocumentStateBenchmark {
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    private final DocumentState stored = new DocumentState(123_456L, null, "\"5f3a-1b2c\"",
+            "Wed, 21 Oct 2015 07:28:00 GMT", 1_445_412_480_000L);
+
+    private final DocumentState unchanged = new DocumentState(123_456L, null, "\"5f3a-1b2c\"",
+            "Wed, 21 Oct 2015 07:28:00 GMT", null);
+
+    private final DocumentState changedETag = new DocumentState(123_456L, null, "\"5f3a-9d8e\"",
+            "Wed, 21 Oct 2015 07:28:00 GMT", null);
+
+    private final DocumentState fingerprinted = new DocumentState(-1L, 42L, null, null, null);
+
+    private final DocumentState fingerprintChanged = new DocumentState(-1L, 43L, null, null, null);
+
+    /* ---------- BENCHMARKS ---------- */
+
+    @Benchmark
+    public boolean unchanged() {
+        return this.stored.hasChangedTo(this.unchanged);
+    }
+
+    @Benchmark
+    public boolean changedETag() {
+        return this.stored.hasChangedTo(this.changedETag);
+    }
+
+    @Benchmark
+    public boolean changedFingerprint() {
+        return this.fingerprinted.hasChangedTo(this.fingerprintChanged);
+    }
+
+    /**
+     * The comparison plus the copy that is stored afterwards.
+     */
+    @Benchmark
+    public DocumentState diffAndStamp() {
+        return this.stored.hasChangedTo(this.unchanged)
+                ? this.unchanged.withLastChangedAtMs(System.currentTimeMillis())
+                : this.unchanged.withLastChangedAtMs(this.stored.lastChangedAtMs());
+    }
+
+}
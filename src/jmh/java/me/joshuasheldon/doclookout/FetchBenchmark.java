@@ -0,0 +1,119 @@
+package me.joshuasheldon.doclookout;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the fetch path, from queuing a check to reading its
+ * result, against an HTTP server on the loopback interface. The
+ * network is as fast as it gets, so this shows the overhead of
+ * the client, the concurrency limiter and the executors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FetchBenchmark {
+
+    /* ---------- PARAMETERS ---------- */
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public ExecutionMode executionMode;
+
+    @Param({"100"})
+    public int batchSize;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ConnectionPool connectionPool;
+    private FilesizeRetriever filesizeRetriever;
+    private List<String> urls;
+
+    /* ---------- SETUP ---------- */
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        // Answers every HEAD request like a static file server would
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.serverExecutor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverExecutor);
+        this.server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Length", "123456");
+            exchange.getResponseHeaders().set("ETag", "\"5f3a-1b2c\"");
+            exchange.getResponseHeaders().set("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        this.server.start();
+
+        Configuration config = new Configuration(null, 60_000L, null, "", null, null, this.executionMode,
+                null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+
+        this.connectionPool = new ConnectionPool(config);
+        this.filesizeRetriever = new FilesizeRetriever(config, this.connectionPool, new ConnectivityMonitor(),
+                new DnsCache(config));
+        this.urls = new ArrayList<>();
+
+        for (int i = 0; i < this.batchSize; i++) {
+            this.urls.add("http://localhost:" + this.server.getAddress().getPort() + "/documents/" + i + ".pdf");
+        }
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.filesizeRetriever.stop();
+        this.connectionPool.stop();
+        this.server.stop(0);
+        this.serverExecutor.shutdown();
+    }
+
+    /* ---------- BENCHMARKS ---------- */
+
+    /**
+     * A single check, start to finish.
+     */
+    @Benchmark
+    public CheckResult checkOne() {
+        return this.filesizeRetriever.checkDocument(this.urls.get(0), null).join();
+    }
+
+    /**
+     * A batch of checks in flight at once, like a cycle.
+     */
+    @Benchmark
+    public int checkBatch() {
+
+        List<CompletableFuture<CheckResult>> results = new ArrayList<>(this.urls.size());
+
+        for (String url : this.urls) {
+            results.add(this.filesizeRetriever.checkDocument(url, null));
+        }
+
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+
+        return results.size();
+
+    }
+
+}
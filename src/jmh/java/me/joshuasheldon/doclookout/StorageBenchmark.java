@@ -0,0 +1,182 @@
+package me.joshuasheldon.doclookout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures loading storage on startup, recording check
+ * results, and writing the snapshot, at various numbers of
+ * URLs and in both snapshot formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class StorageBenchmark {
+
+    /* ---------- PARAMETERS ---------- */
+
+    @Param({"1000", "100000", "1000000"})
+    public int urlCount;
+
+    @Param({"JSON", "BINARY"})
+    public StorageFormat storageFormat;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * Holds every file the benchmark writes.
+     */
+    private Path directory;
+
+    /**
+     * The base name of the storage that is only ever read.
+     */
+    private String readBaseName;
+
+    /**
+     * The storage that results are recorded into.
+     */
+    private StorageMgr storageMgr;
+
+    /**
+     * The URLs in storage.
+     */
+    private String[] urls;
+
+    /**
+     * Picks the URL to update next.
+     */
+    private int nextURL;
+
+    /**
+     * Grows with every update, so that each one is a change.
+     */
+    private long nextContentLength;
+
+    /* ---------- SETUP ---------- */
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        this.directory = Files.createTempDirectory("doclookout-storage-benchmark");
+        this.urls = new String[this.urlCount];
+
+        Map<String, DocumentState> states = new HashMap<>();
+
+        for (int i = 0; i < this.urlCount; i++) {
+            this.urls[i] = "https://example.com/documents/" + i + ".pdf";
+            states.put(this.urls[i], new DocumentState((long) i * 1_024, null, "\"" + Integer.toHexString(i) + "\"",
+                    "Wed, 21 Oct 2015 07:28:00 GMT", 1_445_412_480_000L));
+        }
+
+        this.readBaseName = writeSnapshot("read", states);
+        this.storageMgr = new StorageMgr(writeSnapshot("update", states), this.storageFormat);
+        this.nextURL = 0;
+        this.nextContentLength = Long.MAX_VALUE / 2;
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        this.storageMgr.stop();
+
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+
+    }
+
+    /* ---------- BENCHMARKS ---------- */
+
+    /**
+     * Loads storage the way DocLookout does on startup.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int readFromStorage() {
+        StorageMgr loaded = new StorageMgr(this.readBaseName, this.storageFormat);
+        loaded.stop();
+        return loaded.snapshotSize();
+    }
+
+    /**
+     * Records the result of one check that found a change,
+     * which diffs it against the stored state and queues it
+     * for the storage log.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean updateStorage() {
+
+        String url = this.urls[this.nextURL];
+        this.nextURL = (this.nextURL + 1) % this.urls.length;
+
+        return this.storageMgr.updateStorage(url, CheckResult.of(new DocumentState(
+                this.nextContentLength++, null, null, null, null)), changes -> null);
+
+    }
+
+    /**
+     * Records the result of one check that found no change.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean updateStorageUnchanged() {
+
+        String url = this.urls[this.nextURL];
+        this.nextURL = (this.nextURL + 1) % this.urls.length;
+
+        return this.storageMgr.updateStorage(url, CheckResult.of(this.storageMgr.getState(url)), changes -> null);
+
+    }
+
+    /**
+     * Writes every state to a fresh snapshot.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int writeSnapshot() throws IOException {
+        this.storageMgr.writeSnapshot();
+        return this.storageMgr.snapshotSize();
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Writes a snapshot of the given states in the benchmarked format.
+     *
+     * @return The base name of the storage the snapshot belongs to.
+     */
+    private String writeSnapshot(String name, Map<String, DocumentState> states) throws IOException {
+
+        String baseName = this.directory.resolve(name).toString();
+
+        if (this.storageFormat == StorageFormat.BINARY) {
+            BinarySnapshot.write(new File(baseName + ".bin"), states);
+        } else {
+            JsonSnapshot.write(new File(baseName + ".json"), states);
+        }
+
+        return baseName;
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning a notification into webhook messages,
+ * splitting it to fit Discord's limits, and serializing
+ * them into the bodies that are posted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebhookPayloadBenchmark {
+
+    /* ---------- PARAMETERS ---------- */
+
+    @Param({"1", "100", "10000"})
+    public int urlCount;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    private ConnectionPool connectionPool;
+    private WebhookNotifier webhookNotifier;
+    private ObjectMapper objectMapper;
+    private List<String> urls;
+
+    /* ---------- SETUP ---------- */
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        Configuration config = Configuration.getDefault();
+
+        this.connectionPool = new ConnectionPool(config);
+        this.webhookNotifier = new WebhookNotifier(config, this.connectionPool);
+        this.objectMapper = new ObjectMapper();
+        this.urls = new ArrayList<>();
+
+        for (int i = 0; i < this.urlCount; i++) {
+            this.urls.add("https://example.com/courses/spring/lectures/" + i + "/slides.pdf");
+        }
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.webhookNotifier.stop();
+        this.connectionPool.stop();
+    }
+
+    /* ---------- BENCHMARKS ---------- */
+
+    @Benchmark
+    public List<ObjectNode> buildMessages() {
+        return this.webhookNotifier.buildMessages(List.of("123456789012345678"), this.urls);
+    }
+
+    @Benchmark
+    public void buildAndSerializeMessages(Blackhole blackhole) throws Exception {
+        for (ObjectNode message : this.webhookNotifier.buildMessages(List.of("123456789012345678"), this.urls)) {
+            blackhole.consume(this.objectMapper.writeValueAsBytes(message));
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs the real DocLookout cycle against a {@link SimulatedOrigin}
+ * and reports how it holds up: how fast the URLs are checked, how
+ * long the slowest requests take, and whether every change the
+ * origin made was notified, and nothing else.
+ * <p>
+ * Runs in the working directory, where it keeps its storage and
+ * outbox like DocLookout does. Run it with <code>./gradlew loadTest</code>,
+ * passing options with e.g. <code>-PloadTestArgs="--urls 100000"</code>:
+ * <ul>
+ *     <li><code>--urls</code> How many documents to check.</li>
+ *     <li><code>--hosts</code> How many loopback addresses to spread them
+ *     across. Only Linux answers on more than <code>127.0.0.1</code>.</li>
+ *     <li><code>--cycles</code> How many cycles to run.</li>
+ *     <li><code>--latency</code> <code>fixed:ms</code>, <code>uniform:min:max</code>
+ *     or <code>lognormal:median:p99</code>.</li>
+ *     <li><code>--error-rate</code> The fraction of requests answered with <code>503</code>.</li>
+ *     <li><code>--missing-length-rate</code> The fraction of documents
+ *     served without a <code>content-length</code>.</li>
+ *     <li><code>--etag-rate</code> The fraction of documents served with an <code>ETag</code>.</li>
+ *     <li><code>--change-rate</code> The fraction of documents changed before each cycle after the first.</li>
+ *     <li><code>--mode</code> The {@link ExecutionMode}.</li>
+ *     <li><code>--max-concurrent</code> and <code>--max-per-host</code> The concurrency limits.</li>
+ *     <li><code>--storage-format</code> The {@link StorageFormat}.</li>
+ *     <li><code>--cycle-deadline</code> How long a cycle may run, in ms.</li>
+ *     <li><code>--hedge</code> Hedges slow requests.</li>
+ *     <li><code>--seed</code> Seeds the documents and their changes.</li>
+ *     <li><code>--clean</code> Deletes the storage, outbox and change history of an earlier run first.</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How long the webhook must go without a message before the
+     * notifications of a cycle are taken to have all arrived.
+     */
+    private static final long WEBHOOK_IDLE_IN_MS = 3_000L;
+
+    /**
+     * The files DocLookout leaves in the working directory.
+     */
+    private static final String[] STATE_FILE_NAMES = {
+            StorageMgr.STORAGE_FILE_NAME,
+            StorageMgr.BINARY_STORAGE_FILE_NAME,
+            StorageMgr.STORAGE_LOG_FILE_NAME,
+            NotificationOutbox.OUTBOX_BASE_NAME + ".log",
+            ChangeHistory.HISTORY_BASE_NAME + ".bin"
+    };
+
+    /* ---------- MAIN METHOD ---------- */
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = parseOptions(args);
+
+        int urlCount = Integer.parseInt(options.getOrDefault("urls", "10000"));
+        int hosts = Integer.parseInt(options.getOrDefault("hosts", "16"));
+        int cycles = Integer.parseInt(options.getOrDefault("cycles", "5"));
+        double changeRate = Double.parseDouble(options.getOrDefault("change-rate", "0.01"));
+        Random random = new Random(Long.parseLong(options.getOrDefault("seed", "42")));
+
+        if (!prepareWorkingDirectory(options.containsKey("clean"))) {
+            System.exit(1);
+        }
+
+        SimulatedOrigin origin = new SimulatedOrigin(
+                urlCount,
+                SimulatedOrigin.Latency.parse(options.getOrDefault("latency", "lognormal:20:200")),
+                Double.parseDouble(options.getOrDefault("error-rate", "0")),
+                Double.parseDouble(options.getOrDefault("missing-length-rate", "0.05")),
+                Double.parseDouble(options.getOrDefault("etag-rate", "0.5")),
+                random
+        );
+
+        origin.start();
+
+        // Changes are sent right away, so that they are counted in the cycle that found them
+        Configuration config = new Configuration(origin.webhookURL(), 60_000L, null, "",
+                Integer.parseInt(options.getOrDefault("max-concurrent", "256")),
+                Integer.parseInt(options.getOrDefault("max-per-host", "32")),
+                ExecutionMode.valueOf(options.getOrDefault("mode", "PLATFORM")),
+                null, null, null, null,
+                StorageFormat.valueOf(options.getOrDefault("storage-format", "JSON")),
+                null, null, null, null, null, null, null, null, null,
+                Long.parseLong(options.getOrDefault("cycle-deadline", "0")), null,
+                options.containsKey("hedge"), null, null, null, null, 0L);
+
+        List<String> urls = new ArrayList<>(urlCount);
+        Map<String, Integer> documentsByURL = new HashMap<>();
+
+        for (int i = 0; i < urlCount; i++) {
+            String url = URLCanonicalizer.canonicalize(origin.urlOf(i, hosts));
+            urls.add(url);
+            documentsByURL.put(url, i);
+        }
+
+        DocLookout docLookout = new DocLookout(config);
+        docLookout.replayOutbox();
+
+        // The scheduler isn't started, the cycles are run below
+        urls.forEach(docLookout::schedule);
+
+        // The changes that haven't been notified yet
+        Set<Integer> pendingChanges = new HashSet<>();
+        List<String> report = new ArrayList<>();
+        long totalDetected = 0;
+        long totalFalsePositives = 0;
+
+        report.add(String.format("%5s %10s %10s %9s %9s %9s %8s %8s %8s %8s",
+                "cycle", "changed", "duration", "checks/s", "p50", "p99", "failed", "detected", "missed", "false+"));
+
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+
+            // The first cycle only learns the initial states
+            List<Integer> changed = (cycle > 1) ? origin.changeDocuments(changeRate, random) : List.of();
+            pendingChanges.addAll(changed);
+
+            long[] bucketsBefore = headRequestBuckets();
+            long failedBefore = Metrics.getInstance().getCheckCount(Metrics.CHECK_FAILED);
+            long startNanos = System.nanoTime();
+
+            docLookout.runCycle(urls);
+
+            long durationNanos = System.nanoTime() - startNanos;
+            long[] buckets = headRequestBuckets();
+
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] -= bucketsBefore[i];
+            }
+
+            awaitWebhookIdle(origin);
+
+            int detected = 0;
+            int falsePositives = 0;
+
+            for (String url : origin.drainNotifiedURLs()) {
+                if (pendingChanges.remove(documentsByURL.get(url))) {
+                    detected++;
+                } else {
+                    falsePositives++;
+                }
+            }
+
+            totalDetected += detected;
+            totalFalsePositives += falsePositives;
+
+            report.add(String.format("%5d %10d %8d ms %9.0f %6.0f ms %6.0f ms %8d %8d %8d %8d",
+                    cycle, changed.size(), durationNanos / 1_000_000,
+                    urlCount / (durationNanos / 1e9),
+                    percentileInMs(buckets, 0.50), percentileInMs(buckets, 0.99),
+                    Metrics.getInstance().getCheckCount(Metrics.CHECK_FAILED) - failedBefore,
+                    detected, pendingChanges.size(), falsePositives));
+
+        }
+
+        docLookout.stop();
+        origin.stop();
+
+        System.out.println();
+        System.out.printf("Load test of %d URL(s) across %d host(s), %s.%n", urlCount, hosts, options);
+        System.out.println("Percentiles are the upper bounds of the latency buckets they fall in.");
+        System.out.println("Missed counts every change not yet notified, some may be caught by later cycles.");
+        report.forEach(System.out::println);
+        System.out.printf("Detected %d change(s), missed %d, and notified %d that never happened.%n",
+                totalDetected, pendingChanges.size(), totalFalsePositives);
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Reads options of the form <code>--name value</code>, or
+     * just <code>--name</code> for flags.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+
+            String name = args[i].substring(2);
+
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "");
+            }
+
+        }
+
+        return options;
+
+    }
+
+    /**
+     * Makes sure the run starts from empty storage, since
+     * states left over from an earlier run would show up
+     * as changes the origin never made.
+     *
+     * @param clean Whether to delete leftover state.
+     * @return Whether the run can go ahead.
+     */
+    private static boolean prepareWorkingDirectory(boolean clean) {
+
+        for (String fileName : STATE_FILE_NAMES) {
+
+            File file = new File(fileName);
+
+            if (!file.exists()) {
+                continue;
+            }
+
+            if (!clean) {
+                System.err.println(file.getAbsolutePath() + " is left over from an earlier run, "
+                        + "pass --clean to delete it!");
+                return false;
+            }
+
+            if (!file.delete()) {
+                System.err.println("Failed to delete " + file.getAbsolutePath() + "!");
+                return false;
+            }
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * @return The bucket counts of the HEAD request
+     * durations so far, summed across all hosts.
+     */
+    private static long[] headRequestBuckets() {
+
+        long[] total = null;
+
+        for (LatencyHistogram histogram : Metrics.getInstance().getHeadRequestDurations().values()) {
+
+            long[] counts = histogram.bucketCounts();
+
+            if (total == null) {
+                total = counts;
+            } else {
+                for (int i = 0; i < counts.length; i++) {
+                    total[i] += counts[i];
+                }
+            }
+
+        }
+
+        return (total != null) ? total : new LatencyHistogram().bucketCounts();
+
+    }
+
+    /**
+     * @param buckets    The count of each bucket.
+     * @param percentile The percentile, e.g. <code>0.99</code>.
+     * @return The upper bound of the bucket the percentile falls in,
+     * in ms, or <code>NaN</code> if nothing was counted.
+     */
+    private static double percentileInMs(long[] buckets, double percentile) {
+
+        long total = 0;
+
+        for (long count : buckets) {
+            total += count;
+        }
+
+        long seen = 0;
+
+        for (int i = 0; i < buckets.length && total > 0; i++) {
+            seen += buckets[i];
+            if (seen >= Math.ceil(total * percentile)) {
+                return LatencyHistogram.bucketBoundInSeconds(i) * 1_000;
+            }
+        }
+
+        return Double.NaN;
+
+    }
+
+    /**
+     * Waits until the webhook has gone a while without a message.
+     */
+    private static void awaitWebhookIdle(SimulatedOrigin origin) throws InterruptedException {
+
+        long startNanos = System.nanoTime();
+
+        while (true) {
+
+            long idleSinceNanos = Math.max(startNanos, origin.lastWebhookAtNanos());
+            long remainingInMs = WEBHOOK_IDLE_IN_MS - (System.nanoTime() - idleSinceNanos) / 1_000_000;
+
+            if (remainingInMs <= 0) {
+                return;
+            }
+
+            Thread.sleep(remainingInMs);
+
+        }
+
+    }
+
+}
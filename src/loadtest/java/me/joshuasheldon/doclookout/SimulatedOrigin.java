@@ -0,0 +1,488 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Serves a set of synthetic documents from the loopback interface,
+ * behaving like the origin servers DocLookout checks in production:
+ * responses take a while, some fail, some leave out the
+ * <code>content-length</code> header, and some carry an
+ * <code>ETag</code> and answer conditional requests with
+ * <code>304 Not Modified</code>.
+ * <p>
+ * The server listens on every address, so on Linux, where all of
+ * <code>127.0.0.0/8</code> is loopback, each of
+ * <code>127.0.0.1</code>, <code>127.0.0.2</code>, ... looks like a
+ * host of its own to DocLookout. It also stands in for the Discord
+ * webhook, and collects the URLs of every notification it receives.
+ */
+public class SimulatedOrigin {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The path the documents are served under.
+     */
+    private static final String DOCUMENTS_PATH = "/documents/";
+
+    /**
+     * The path the webhook is served at.
+     */
+    private static final String WEBHOOK_PATH = "/webhook";
+
+    /**
+     * The prefix of each URL line in an embed description.
+     */
+    private static final String URL_LINE_PREFIX = " - ";
+
+    /**
+     * The most a document grows or shrinks by when it changes.
+     */
+    private static final int MAX_SIZE_CHANGE = 65_536;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * How long each response takes.
+     */
+    private final Latency latency;
+
+    /**
+     * The fraction of requests answered with <code>503</code>.
+     */
+    private final double errorRate;
+
+    /**
+     * The size of each document.
+     */
+    private final AtomicLongArray sizes;
+
+    /**
+     * How many times each document has changed.
+     */
+    private final AtomicIntegerArray versions;
+
+    /**
+     * Whether each document is served without a <code>content-length</code>.
+     */
+    private final boolean[] missingLength;
+
+    /**
+     * Whether each document is served with an <code>ETag</code>.
+     */
+    private final boolean[] hasETag;
+
+    /**
+     * The URLs of every notification received, until they are drained.
+     */
+    private final ConcurrentLinkedQueue<String> notifiedURLs;
+
+    /**
+     * When the webhook last received a message, from {@link System#nanoTime()}.
+     */
+    private final AtomicLong lastWebhookAtNanos;
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Answers the requests, and hands delayed ones to the scheduler.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Sends the delayed responses, so that no thread
+     * sits idle while a response is being delayed.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    private HttpServer server;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param documentCount     How many documents to serve.
+     * @param latency           How long each response takes.
+     * @param errorRate         The fraction of requests answered with <code>503</code>.
+     * @param missingLengthRate The fraction of documents served
+     *                          without a <code>content-length</code>.
+     * @param eTagRate          The fraction of documents served with an <code>ETag</code>.
+     * @param random            Picks the sizes and kinds of the documents.
+     */
+    public SimulatedOrigin(int documentCount, Latency latency, double errorRate,
+                           double missingLengthRate, double eTagRate, Random random) {
+
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.sizes = new AtomicLongArray(documentCount);
+        this.versions = new AtomicIntegerArray(documentCount);
+        this.missingLength = new boolean[documentCount];
+        this.hasETag = new boolean[documentCount];
+        this.notifiedURLs = new ConcurrentLinkedQueue<>();
+        this.lastWebhookAtNanos = new AtomicLong(System.nanoTime());
+        this.objectMapper = new ObjectMapper();
+
+        for (int i = 0; i < documentCount; i++) {
+            this.sizes.set(i, 1_024 + random.nextInt(4 * 1_024 * 1_024));
+            this.missingLength[i] = random.nextDouble() < missingLengthRate;
+            this.hasETag[i] = random.nextDouble() < eTagRate;
+        }
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        this.executor = Executors.newFixedThreadPool(threads, daemonThreads("SimulatedOrigin"));
+        this.scheduler = Executors.newScheduledThreadPool(threads, daemonThreads("SimulatedOrigin-Delay"));
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Starts serving on a free port.
+     */
+    public void start() throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress(0), 1_024);
+        this.server.createContext(DOCUMENTS_PATH, this::handleDocument);
+        this.server.createContext(WEBHOOK_PATH, this::handleWebhook);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.scheduler.shutdownNow();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @param document The index of a document.
+     * @param hosts    How many loopback addresses the
+     *                 documents are spread across.
+     * @return The URL of the document.
+     */
+    public String urlOf(int document, int hosts) {
+        return "http://127.0.0." + (1 + document % hosts) + ":" + this.server.getAddress().getPort()
+                + DOCUMENTS_PATH + document + ".pdf";
+    }
+
+    /**
+     * @return The URL of the webhook.
+     */
+    public String webhookURL() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + WEBHOOK_PATH;
+    }
+
+    /**
+     * Changes the size (and so the content) of some of the documents.
+     *
+     * @param changeRate The fraction of documents to change.
+     * @param random     Picks the documents and their new sizes.
+     * @return The indexes of the changed documents.
+     */
+    public List<Integer> changeDocuments(double changeRate, Random random) {
+
+        List<Integer> changed = new ArrayList<>();
+
+        for (int i = 0; i < this.sizes.length(); i++) {
+
+            if (random.nextDouble() >= changeRate) {
+                continue;
+            }
+
+            // Never zero, so that the size really changes
+            long change = 1 + random.nextInt(MAX_SIZE_CHANGE);
+            long size = this.sizes.get(i);
+
+            this.sizes.set(i, (random.nextBoolean() || size <= change) ? size + change : size - change);
+            this.versions.incrementAndGet(i);
+            changed.add(i);
+
+        }
+
+        return changed;
+
+    }
+
+    /**
+     * @return The URLs notified since the last call.
+     */
+    public List<String> drainNotifiedURLs() {
+
+        List<String> urls = new ArrayList<>();
+        String url;
+
+        while ((url = this.notifiedURLs.poll()) != null) {
+            urls.add(url);
+        }
+
+        return urls;
+
+    }
+
+    /**
+     * @return When the webhook last received a message,
+     * from {@link System#nanoTime()}.
+     */
+    public long lastWebhookAtNanos() {
+        return this.lastWebhookAtNanos.get();
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Answers a HEAD request, or a ranged GET request from the
+     * fingerprinter, after the simulated latency.
+     */
+    private void handleDocument(HttpExchange exchange) {
+
+        long delayInMs = this.latency.sampleInMs();
+
+        if (delayInMs <= 0) {
+            respondDocument(exchange);
+        } else {
+            this.scheduler.schedule(() -> respondDocument(exchange), delayInMs, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private void respondDocument(HttpExchange exchange) {
+
+        try (exchange) {
+
+            String path = exchange.getRequestURI().getPath();
+            int document;
+
+            try {
+                document = Integer.parseInt(path.substring(DOCUMENTS_PATH.length(), path.length() - ".pdf".length()));
+            } catch (Exception e) {
+                document = -1;
+            }
+
+            if (document < 0 || document >= this.sizes.length()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            if (ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            long size = this.sizes.get(document);
+            int version = this.versions.get(document);
+            String eTag = "\"" + document + "-" + version + "\"";
+
+            if (this.hasETag[document]) {
+
+                if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("ETag", eTag);
+
+            }
+
+            if (exchange.getRequestMethod().equals("HEAD")) {
+
+                if (!this.missingLength[document]) {
+                    exchange.getResponseHeaders().set("Content-Length", Long.toString(size));
+                }
+
+                exchange.sendResponseHeaders(200, -1);
+                return;
+
+            }
+
+            respondContent(exchange, document, version, size);
+
+        } catch (Exception e) {
+            System.err.println("Simulated origin failed to answer " + exchange.getRequestURI() + "!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Sends the content of a document, or the range of it that
+     * was asked for. Only the forms of <code>Range</code> the
+     * fingerprinter sends are understood.
+     */
+    private void respondContent(HttpExchange exchange, int document, int version, long size) throws Exception {
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        long first = 0;
+        long last = size - 1;
+
+        if (range != null && range.startsWith("bytes=")) {
+
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+
+            if (bounds[0].isEmpty()) {
+                first = Math.max(0, size - Long.parseLong(bounds[1]));
+            } else {
+                first = Long.parseLong(bounds[0]);
+                last = bounds[1].isEmpty() ? last : Math.min(last, Long.parseLong(bounds[1]));
+            }
+
+            if (first >= size) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + size);
+            exchange.sendResponseHeaders(206, last - first + 1);
+
+        } else {
+            exchange.sendResponseHeaders(200, (size > 0) ? size : -1);
+        }
+
+        // The content only depends on the document and its
+        // version, so the same range always hashes the same
+        byte[] buffer = new byte[8_192];
+
+        try (OutputStream output = exchange.getResponseBody()) {
+            for (long offset = first; offset <= last; ) {
+                int length = (int) Math.min(buffer.length, last - offset + 1);
+                for (int i = 0; i < length; i++) {
+                    buffer[i] = contentByte(document, version, offset + i);
+                }
+                output.write(buffer, 0, length);
+                offset += length;
+            }
+        }
+
+    }
+
+    /**
+     * Collects the URLs of a notification. Every message is accepted.
+     */
+    private void handleWebhook(HttpExchange exchange) {
+
+        try (exchange) {
+
+            JsonNode message;
+
+            try (InputStream input = exchange.getRequestBody()) {
+                message = this.objectMapper.readTree(input);
+            }
+
+            for (JsonNode embed : message.path("embeds")) {
+                for (String line : embed.path("description").asText().split("\n")) {
+                    if (line.startsWith(URL_LINE_PREFIX)) {
+                        this.notifiedURLs.add(line.substring(URL_LINE_PREFIX.length()));
+                    }
+                }
+            }
+
+            this.lastWebhookAtNanos.set(System.nanoTime());
+            exchange.sendResponseHeaders(204, -1);
+
+        } catch (Exception e) {
+            System.err.println("Simulated webhook failed to read a message!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return A byte of the content of a document, mixed
+     * from where it is and what it belongs to.
+     */
+    private static byte contentByte(int document, int version, long offset) {
+        long hash = (offset * 0x9E3779B97F4A7C15L) ^ ((long) document << 32 | version);
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return (byte) (hash ^ hash >>> 32);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * How long responses take.
+     *
+     * @param kind  <code>fixed</code>, <code>uniform</code> or <code>lognormal</code>.
+     * @param first The fixed latency, the minimum, or the median, in ms.
+     * @param last  Unused, the maximum, or the 99th percentile, in ms.
+     */
+    public record Latency(String kind, double first, double last) {
+
+        /**
+         * How many standard deviations the 99th
+         * percentile is above the mean.
+         */
+        private static final double Z_99 = 2.326;
+
+        /**
+         * @param spec <code>fixed:ms</code>, <code>uniform:min:max</code>
+         *             or <code>lognormal:median:p99</code>.
+         * @return The latency the spec describes.
+         */
+        public static Latency parse(String spec) {
+
+            String[] parts = spec.split(":");
+
+            switch (parts[0]) {
+                case "fixed":
+                    return new Latency(parts[0], Double.parseDouble(parts[1]), 0);
+                case "uniform":
+                case "lognormal":
+                    return new Latency(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+            }
+
+        }
+
+        /**
+         * @return How long the next response takes, in ms.
+         */
+        public long sampleInMs() {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            switch (this.kind) {
+                case "uniform":
+                    return Math.round(this.first + random.nextDouble() * (this.last - this.first));
+                case "lognormal":
+                    double mu = Math.log(this.first);
+                    double sigma = (Math.log(this.last) - mu) / Z_99;
+                    return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+                default:
+                    return Math.round(this.first);
+            }
+
+        }
+
+    }
+
+}
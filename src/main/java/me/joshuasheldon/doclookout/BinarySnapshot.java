@@ -0,0 +1,536 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A compact, read-only snapshot of URL states that is memory
+ * mapped rather than parsed, so that opening it takes next to
+ * no time no matter how many URLs it holds, and looking a URL
+ * up only touches the bytes of that one URL.
+ * <p>
+ * The file is laid out as:<br>
+ * - a fixed header (magic, version, counts and section offsets),<br>
+ * - one fixed-width record per URL,<br>
+ * - an open-addressing hash index from URL to record, and<br>
+ * - a table of the UTF-8 bytes of every string the records point to.
+ */
+public class BinarySnapshot {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The bytes every snapshot file starts with.
+     */
+    private static final byte[] MAGIC = "DLSNAP".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The version of the format written by this class. Version 1
+     * snapshots, whose records lack a fingerprint, can still be read.
+     * Version 3 only differs from version 2 in that every URL in it
+     * is canonical, see {@link #hasCanonicalURLs()}.
+     */
+    private static final short VERSION = 3;
+
+    /**
+     * The first version whose URLs are all canonical.
+     */
+    private static final short CANONICAL_URLS_VERSION = 3;
+
+    /**
+     * The size of the header in bytes: magic, version, record count,
+     * index slot count, and the offsets of the index and string table.
+     */
+    private static final int HEADER_SIZE = 6 + 2 + 4 + 4 + 8 + 8;
+
+    /**
+     * The size of a record in bytes: the URL's offset and length,
+     * the content length, the last change time, the offsets and
+     * lengths of the ETag and Last-Modified values, and the fingerprint.
+     */
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4 + 8;
+
+    /**
+     * The size of a version 1 record, which ends before the fingerprint.
+     */
+    private static final int VERSION_1_RECORD_SIZE = RECORD_SIZE - 8;
+
+    /**
+     * Stored in place of a missing string's length.
+     */
+    private static final int NO_STRING = -1;
+
+    /**
+     * Stored in place of a missing last change time.
+     */
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * Stored in place of a missing fingerprint. A real fingerprint
+     * that happens to collide with it is read back as missing, which
+     * only means one comparison is skipped.
+     */
+    private static final long NO_FINGERPRINT = Long.MIN_VALUE;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The mapped contents of the file.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The version of the format the file was written in.
+     */
+    private final short version;
+
+    /**
+     * The size of each record in the file.
+     */
+    private final int recordSize;
+
+    /**
+     * The number of records in the file.
+     */
+    private final int recordCount;
+
+    /**
+     * The number of slots in the hash index, a power of two.
+     */
+    private final int slotCount;
+
+    /**
+     * Where the hash index starts.
+     */
+    private final int indexOffset;
+
+    /**
+     * Where the string table starts.
+     */
+    private final int stringsOffset;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    private BinarySnapshot(ByteBuffer buffer) throws IOException {
+
+        this.buffer = buffer;
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(0, magic);
+
+        this.version = buffer.getShort(MAGIC.length);
+
+        if (!Arrays.equals(magic, MAGIC) || this.version < 1 || this.version > VERSION) {
+            throw new IOException("Not a DocLookout binary snapshot, or an unsupported version of one!");
+        }
+
+        this.recordSize = (this.version == 1) ? VERSION_1_RECORD_SIZE : RECORD_SIZE;
+        this.recordCount = buffer.getInt(8);
+        this.slotCount = buffer.getInt(12);
+        this.indexOffset = (int) buffer.getLong(16);
+        this.stringsOffset = (int) buffer.getLong(24);
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * @return The number of URLs in the snapshot.
+     */
+    public int size() {
+        return this.recordCount;
+    }
+
+    /**
+     * Snapshots are written from states whose URLs have been
+     * canonicalized, but older versions wrote them as they were
+     * listed, and those have to be migrated.
+     *
+     * @return Whether every URL in the snapshot is canonical.
+     */
+    public boolean hasCanonicalURLs() {
+        return this.version >= CANONICAL_URLS_VERSION;
+    }
+
+    /**
+     * Looks up the state of a single URL, decoding only its record.
+     *
+     * @param url The URL to look up.
+     * @return The state of the URL, or <code>null</code> if the
+     * snapshot doesn't contain it.
+     */
+    public DocumentState lookup(String url) {
+
+        if (this.recordCount == 0) {
+            return null;
+        }
+
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        int mask = this.slotCount - 1;
+        int slot = url.hashCode() & mask;
+
+        // Linear probing, an empty slot ends the search
+        for (int probes = 0; probes < this.slotCount; probes++) {
+
+            int recordNumber = this.buffer.getInt(this.indexOffset + slot * 4);
+
+            if (recordNumber == 0) {
+                return null;
+            }
+
+            int recordOffset = HEADER_SIZE + (recordNumber - 1) * this.recordSize;
+
+            if (stringEquals(recordOffset, urlBytes)) {
+                return readState(recordOffset);
+            }
+
+            slot = (slot + 1) & mask;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Decodes every record into a map. Only meant for conversion,
+     * lookups should use {@link #lookup(String)}, and going
+     * through every record {@link #forEach(BiConsumer)}.
+     *
+     * @return A map of every URL in the snapshot to its state.
+     */
+    public Map<String, DocumentState> toMap() {
+
+        Map<String, DocumentState> states = new HashMap<>();
+
+        for (int i = 0; i < this.recordCount; i++) {
+            int recordOffset = HEADER_SIZE + i * this.recordSize;
+            states.put(readString(recordOffset), readState(recordOffset));
+        }
+
+        return states;
+
+    }
+
+    /**
+     * Decodes one record at a time, in the order they are stored,
+     * so that the whole snapshot never has to be held at once.
+     *
+     * @param consumer Receives the URL and state of each record.
+     */
+    public void forEach(BiConsumer<String, DocumentState> consumer) {
+        for (int i = 0; i < this.recordCount; i++) {
+            int recordOffset = HEADER_SIZE + i * this.recordSize;
+            consumer.accept(readString(recordOffset), readState(recordOffset));
+        }
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Maps a snapshot file into memory.
+     *
+     * @param file The file to map.
+     * @return The mapped snapshot.
+     * @throws IOException If the file can't be mapped or isn't a snapshot.
+     */
+    public static BinarySnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Binary snapshots larger than 2 GiB are not supported!");
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BinarySnapshot(buffer);
+
+        }
+    }
+
+    /**
+     * Atomically replaces a snapshot file with one holding the given
+     * states. The snapshot is written to a temporary file and synced
+     * before it takes the old one's place.
+     *
+     * @param file   The file to write.
+     * @param states The states to write, keyed by URL.
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    public static void write(File file, Map<String, DocumentState> states) throws IOException {
+        write(file, states::forEach);
+    }
+
+    /**
+     * Atomically replaces a snapshot file with one holding the states
+     * a source provides. The source is gone through three times, and
+     * only one state is held at a time, so that e.g. a snapshot can
+     * be folded into a new one without decoding all of it at once.
+     * The snapshot is written to a temporary file and synced before
+     * it takes the old one's place.
+     *
+     * @param file   The file to write.
+     * @param source Provides the states to write.
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    public static void write(File file, StateSource source) throws IOException {
+
+        // Count the records and their strings first,
+        // since the layout depends on both
+        int[] recordCount = {0};
+        long[] stringsLength = {0};
+
+        source.forEach((url, state) -> {
+            recordCount[0]++;
+            stringsLength[0] += utf8Length(url) + utf8Length(state.eTag()) + utf8Length(state.lastModified());
+        });
+
+        int slotCount = Integer.highestOneBit(Math.max(2, recordCount[0] * 2 - 1)) << 1;
+        long indexOffset = HEADER_SIZE + (long) recordCount[0] * RECORD_SIZE;
+        long stringsOffset = indexOffset + (long) slotCount * 4;
+
+        if (stringsOffset + stringsLength[0] > Integer.MAX_VALUE) {
+            throw new IOException("Binary snapshots larger than 2 GiB are not supported!");
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1 << 16));
+
+            // Header
+            output.write(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(recordCount[0]);
+            output.writeInt(slotCount);
+            output.writeLong(indexOffset);
+            output.writeLong(stringsOffset);
+
+            // Records, indexing each one as it is written
+            int[] slots = new int[slotCount];
+            int[] recordNumber = {0};
+            int[] stringOffset = {0};
+
+            forEachWritten(source, recordCount[0], (url, state) -> {
+
+                int urlLength = utf8Length(url);
+                output.writeInt(stringOffset[0]);
+                output.writeInt(urlLength);
+                stringOffset[0] += urlLength;
+
+                output.writeLong(state.contentLength());
+                output.writeLong((state.lastChangedAtMs() == null) ? NO_TIME : state.lastChangedAtMs());
+
+                for (String string : new String[]{state.eTag(), state.lastModified()}) {
+                    output.writeInt(stringOffset[0]);
+                    output.writeInt((string == null) ? NO_STRING : utf8Length(string));
+                    stringOffset[0] += utf8Length(string);
+                }
+
+                output.writeLong((state.fingerprint() == null) ? NO_FINGERPRINT : state.fingerprint());
+
+                // Record numbers are stored one-based, zero marks an empty slot
+                int slot = url.hashCode() & (slotCount - 1);
+
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+
+                slots[slot] = ++recordNumber[0];
+
+            });
+
+            // Index
+            for (int slot : slots) {
+                output.writeInt(slot);
+            }
+
+            // String table, in the same order as the records
+            forEachWritten(source, recordCount[0], (url, state) -> {
+                for (String string : new String[]{url, state.eTag(), state.lastModified()}) {
+                    if (string != null) {
+                        output.write(string.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            });
+
+            output.flush();
+            fileOutputStream.getFD().sync();
+
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Decodes the state held by a record.
+     */
+    private DocumentState readState(int recordOffset) {
+
+        long lastChangedAtMs = this.buffer.getLong(recordOffset + 16);
+        long fingerprint = (this.version == 1) ? NO_FINGERPRINT : this.buffer.getLong(recordOffset + 40);
+
+        return new DocumentState(
+                this.buffer.getLong(recordOffset + 8),
+                (fingerprint == NO_FINGERPRINT) ? null : fingerprint,
+                readString(recordOffset + 24),
+                readString(recordOffset + 32),
+                (lastChangedAtMs == NO_TIME) ? null : lastChangedAtMs
+        );
+
+    }
+
+    /**
+     * Decodes the string pointed to by an offset-length pair.
+     */
+    private String readString(int pairOffset) {
+
+        int length = this.buffer.getInt(pairOffset + 4);
+
+        if (length == NO_STRING) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        this.buffer.get(this.stringsOffset + this.buffer.getInt(pairOffset), bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+
+    }
+
+    /**
+     * Compares the string pointed to by an offset-length pair
+     * to the given bytes without decoding it.
+     */
+    private boolean stringEquals(int pairOffset, byte[] expected) {
+
+        if (this.buffer.getInt(pairOffset + 4) != expected.length) {
+            return false;
+        }
+
+        int start = this.stringsOffset + this.buffer.getInt(pairOffset);
+
+        for (int i = 0; i < expected.length; i++) {
+            if (this.buffer.get(start + i) != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Goes through a source again for writing, making sure
+     * it still provides as many states as were counted.
+     */
+    private static void forEachWritten(StateSource source, int recordCount, StateWriter writer) throws IOException {
+
+        int[] written = {0};
+
+        try {
+            source.forEach((url, state) -> {
+
+                if (++written[0] > recordCount) {
+                    throw new UncheckedIOException(new IOException("The states changed while the snapshot was written!"));
+                }
+
+                try {
+                    writer.write(url, state);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (written[0] != recordCount) {
+            throw new IOException("The states changed while the snapshot was written!");
+        }
+
+    }
+
+    /**
+     * @return The number of bytes a string takes up in UTF-8,
+     * or <code>0</code> if it is <code>null</code>.
+     */
+    private static int utf8Length(String string) {
+
+        if (string == null) {
+            return 0;
+        }
+
+        int length = 0;
+
+        for (int i = 0; i < string.length(); i++) {
+
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // Lone surrogates are encoded as '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+
+        }
+
+        return length;
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Provides the states a snapshot is written from. Every time it
+     * is gone through, it must provide the same states in the same
+     * order, each URL at most once.
+     */
+    @FunctionalInterface
+    public interface StateSource {
+
+        /**
+         * @param consumer Receives the URL and state of each entry.
+         */
+        void forEach(BiConsumer<String, DocumentState> consumer);
+
+    }
+
+    /**
+     * Writes part of a snapshot for a single state.
+     */
+    @FunctionalInterface
+    private interface StateWriter {
+
+        void write(String url, DocumentState state) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,618 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An on-disk history of every change seen to each document, kept
+ * so that years of it can be looked back on without holding it
+ * in memory. Only an index of where each URL's history lies in the
+ * file is kept in memory, along with the changes of the current
+ * cycle until they are flushed.
+ * <p>
+ * The file is a header followed by blocks, each holding changes
+ * of a single URL:<br>
+ * - the length of the block, as a 4-byte integer,<br>
+ * - the URL, as a varint length and its UTF-8 bytes,<br>
+ * - the number of changes, as a varint, and<br>
+ * - each change's time (in seconds) and content length, as zigzag
+ * varints of the difference to the change before it.<br>
+ * Since changes come at least seconds apart and lengths move by
+ * a little at a time, most changes take 4 to 6 bytes.
+ * <p>
+ * Each flush appends one block per URL that changed, so a URL's
+ * history gets spread over many small blocks. Once there are a
+ * few times as many blocks as URLs, the file is rewritten with
+ * a single block per URL.
+ */
+public class ChangeHistory {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The name of the file the history is kept in, without its extension.
+     */
+    public static final String HISTORY_BASE_NAME = "history";
+
+    /**
+     * Stored in place of a missing content length.
+     */
+    public static final long UNKNOWN_LENGTH = -1;
+
+    /**
+     * The bytes every history file starts with.
+     */
+    private static final byte[] MAGIC = "DLHIST".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The version of the format written by this class.
+     */
+    private static final short VERSION = 1;
+
+    /**
+     * The size of the header in bytes: magic and version.
+     */
+    private static final int HEADER_SIZE = 6 + 2;
+
+    /**
+     * Anything claiming to be larger than this is taken to be
+     * the remains of a write that was cut off.
+     */
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The file is rewritten once it has this many times as many
+     * blocks as URLs...
+     */
+    private static final int BLOCKS_PER_URL_BEFORE_COMPACTION = 4;
+
+    /**
+     * ...but never while it has fewer blocks than this.
+     */
+    private static final int MIN_BLOCKS_BEFORE_COMPACTION = 1_000;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The file the history is kept in.
+     */
+    private final File historyFile;
+
+    /**
+     * Where each block of each URL starts in the file, oldest first.
+     */
+    private final Map<String, List<Long>> blockOffsets;
+
+    /**
+     * The changes that haven't been flushed yet, by URL, oldest first.
+     */
+    private final Map<String, List<Change>> pendingChanges;
+
+    /**
+     * The channel blocks are written and read through, or
+     * <code>null</code> if the history couldn't be opened.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of blocks in the file.
+     */
+    private long blockCount;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * Opens the history and reads where each URL's blocks are.
+     * If the history can't be opened, changes are still kept
+     * and can be queried until shutdown, but nothing is written.
+     *
+     * @param config The configuration, which decides whether
+     *               this instance keeps the history of a shard.
+     */
+    public ChangeHistory(Configuration config) {
+        this(historyFileOf(config));
+    }
+
+    /**
+     * Same as {@link #ChangeHistory(Configuration)}, but keeps
+     * the history in the given file.
+     *
+     * @param historyFile The file the history is kept in.
+     */
+    ChangeHistory(File historyFile) {
+
+        this.historyFile = historyFile;
+        this.blockOffsets = new HashMap<>();
+        this.pendingChanges = new HashMap<>();
+        this.blockCount = 0;
+
+        try {
+            open();
+        } catch (IOException e) {
+            System.err.println("Failed to open the change history, changes won't be kept across restarts!");
+            e.printStackTrace();
+            this.channel = null;
+        }
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Adds the given changes to the history. They are
+     * only written once {@link #flush()} is called.
+     *
+     * @param changes The changes, as logged to storage.
+     */
+    public synchronized void record(List<StorageLog.Entry> changes) {
+
+        for (StorageLog.Entry change : changes) {
+
+            DocumentState state = change.state();
+            long timestampMs = (state.lastChangedAtMs() != null)
+                    ? state.lastChangedAtMs() : System.currentTimeMillis();
+            long contentLength = (state.contentLength() != null) ? state.contentLength() : UNKNOWN_LENGTH;
+
+            this.pendingChanges.computeIfAbsent(change.url(), url -> new ArrayList<>())
+                    .add(new Change(timestampMs - timestampMs % 1000, contentLength));
+
+        }
+
+    }
+
+    /**
+     * Writes every change recorded since the last flush, one block
+     * per URL, and rewrites the file if it has too many blocks.
+     */
+    public synchronized void flush() {
+
+        if (this.channel == null || this.pendingChanges.isEmpty()) {
+            return;
+        }
+
+        try {
+
+            long position = this.channel.size();
+
+            for (Map.Entry<String, List<Change>> entry : this.pendingChanges.entrySet()) {
+                position += writeBlock(this.channel, position, entry.getKey(), entry.getValue());
+            }
+
+            this.channel.force(false);
+            this.pendingChanges.clear();
+
+            if (this.blockCount >= MIN_BLOCKS_BEFORE_COMPACTION
+                    && this.blockCount > (long) BLOCKS_PER_URL_BEFORE_COMPACTION * this.blockOffsets.size()) {
+                compact();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Failed to write the change history!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * @param url    The URL to look up.
+     * @param fromMs The start of the range, inclusive, in epoch milliseconds.
+     * @param toMs   The end of the range, exclusive, in epoch milliseconds.
+     * @return The changes to the URL's document within the range,
+     * oldest first. Times are only kept to the second.
+     */
+    public synchronized List<Change> getChanges(String url, long fromMs, long toMs) {
+
+        List<Change> changes = new ArrayList<>();
+
+        for (Change change : readChanges(url, Integer.MAX_VALUE)) {
+            if (change.timestampMs() >= fromMs && change.timestampMs() < toMs) {
+                changes.add(change);
+            }
+        }
+
+        return changes;
+
+    }
+
+    /**
+     * @param url   The URL to look up.
+     * @param count The most changes to return.
+     * @return The last changes to the URL's document,
+     * oldest first. Times are only kept to the second.
+     */
+    public synchronized List<Change> getLastChanges(String url, int count) {
+
+        List<Change> changes = readChanges(url, count);
+
+        return new ArrayList<>(changes.subList(Math.max(0, changes.size() - count), changes.size()));
+
+    }
+
+    /**
+     * Writes whatever hasn't been flushed and closes the file.
+     */
+    public synchronized void stop() {
+
+        flush();
+
+        if (this.channel == null) {
+            return;
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close the change history!");
+            e.printStackTrace();
+        }
+
+        this.channel = null;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Opens the file, writing its header if it's new, and reads the
+     * URL of every block. A block that was cut off by a crash is
+     * dropped, along with anything after it.
+     */
+    private void open() throws IOException {
+
+        this.channel = FileChannel.open(this.historyFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = this.channel.size();
+
+        if (size < HEADER_SIZE) {
+            this.channel.truncate(0);
+            writeHeader(this.channel);
+            return;
+        }
+
+        ByteBuffer header = readFully(this.channel, 0, HEADER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+
+        if (!Arrays.equals(magic, MAGIC) || header.getShort() != VERSION) {
+            throw new IOException(this.historyFile + " is not a change history this version can read");
+        }
+
+        long position = HEADER_SIZE;
+
+        while (position < size) {
+
+            if (position + 4 > size) {
+                break;
+            }
+
+            int blockSize = readFully(this.channel, position, 4).getInt();
+
+            if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || position + 4 + blockSize > size) {
+                break;
+            }
+
+            // Only the URL is read, not the changes after it
+            ByteBuffer prefix = readFully(this.channel, position + 4, Math.min(blockSize, 5));
+            int urlLength = (int) readVarint(prefix);
+
+            if (urlLength < 0 || prefix.position() + urlLength > blockSize) {
+                break;
+            }
+
+            ByteBuffer urlBytes = readFully(this.channel, position + 4 + prefix.position(), urlLength);
+            String url = StandardCharsets.UTF_8.decode(urlBytes).toString();
+
+            this.blockOffsets.computeIfAbsent(url, key -> new ArrayList<>()).add(position);
+            this.blockCount++;
+
+            position += 4 + blockSize;
+
+        }
+
+        if (position < size) {
+            System.err.printf("Dropping %d byte(s) at the end of the change history that were cut off.%n",
+                    size - position);
+            this.channel.truncate(position);
+        }
+
+    }
+
+    /**
+     * Rewrites the file with a single block per URL, then swaps it
+     * in for the old one. Only one URL's history is read at a time.
+     */
+    private void compact() throws IOException {
+
+        File compactedFile = new File(this.historyFile.getPath() + ".tmp");
+        Map<String, List<Long>> compactedOffsets = new HashMap<>();
+        long previousBlockCount = this.blockCount;
+
+        try (FileChannel compacted = FileChannel.open(compactedFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            long position = writeHeader(compacted);
+
+            // Sorted so that the file comes out the same every time
+            for (Map.Entry<String, List<Long>> entry : new TreeMap<>(this.blockOffsets).entrySet()) {
+
+                List<Change> changes = new ArrayList<>();
+
+                for (long offset : entry.getValue()) {
+                    changes.addAll(readBlock(offset));
+                }
+
+                ByteBuffer block = ByteBuffer.wrap(encodeBlock(entry.getKey(), changes));
+
+                compactedOffsets.put(entry.getKey(), new ArrayList<>(List.of(position)));
+
+                while (block.hasRemaining()) {
+                    position += compacted.write(block, position);
+                }
+
+            }
+
+            compacted.force(false);
+
+        }
+
+        this.channel.close();
+        Files.move(compactedFile.toPath(), this.historyFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.historyFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.blockOffsets.clear();
+        this.blockOffsets.putAll(compactedOffsets);
+        this.blockCount = compactedOffsets.size();
+
+        System.out.printf("Compacted the change history from %d blocks to %d.%n", previousBlockCount, this.blockCount);
+
+    }
+
+    /**
+     * Reads the URL's history from the newest block backwards,
+     * until at least the given number of changes has been read,
+     * and adds the changes that haven't been flushed yet.
+     *
+     * @return The changes read, oldest first.
+     */
+    private List<Change> readChanges(String url, int count) {
+
+        List<Change> changes = new ArrayList<>(this.pendingChanges.getOrDefault(url, Collections.emptyList()));
+        List<Long> offsets = this.blockOffsets.getOrDefault(url, Collections.emptyList());
+
+        for (int i = offsets.size() - 1; i >= 0 && changes.size() < count; i--) {
+
+            try {
+                changes.addAll(0, readBlock(offsets.get(i)));
+            } catch (IOException e) {
+                System.err.println("Failed to read the change history of " + url + "!");
+                e.printStackTrace();
+                break;
+            }
+
+        }
+
+        return changes;
+
+    }
+
+    /**
+     * Reads and decodes the block at the given offset.
+     */
+    private List<Change> readBlock(long offset) throws IOException {
+
+        int blockSize = readFully(this.channel, offset, 4).getInt();
+        ByteBuffer block = readFully(this.channel, offset + 4, blockSize);
+
+        readURL(block);
+
+        int count = (int) readVarint(block);
+        List<Change> changes = new ArrayList<>(count);
+        long seconds = 0;
+        long contentLength = 0;
+
+        for (int i = 0; i < count; i++) {
+            seconds += fromZigzag(readVarint(block));
+            contentLength += fromZigzag(readVarint(block));
+            changes.add(new Change(seconds * 1000, contentLength));
+        }
+
+        return changes;
+
+    }
+
+    /**
+     * Encodes a block and writes it at the given position.
+     *
+     * @return The number of bytes written.
+     */
+    private int writeBlock(FileChannel target, long position, String url, List<Change> changes) throws IOException {
+
+        byte[] block = encodeBlock(url, changes);
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+
+        this.blockOffsets.computeIfAbsent(url, key -> new ArrayList<>()).add(position);
+        this.blockCount++;
+
+        return block.length;
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return The file the history is kept in. Every shard keeps
+     * its own history, like its own storage.
+     */
+    private static File historyFileOf(Configuration config) {
+
+        String baseName = (config.shardCount() > 1)
+                ? ChangeHistory.HISTORY_BASE_NAME + "-shard-" + config.shardIndex()
+                : ChangeHistory.HISTORY_BASE_NAME;
+
+        return new File(baseName + ".bin");
+
+    }
+
+    /**
+     * Writes the header at the start of an empty file.
+     *
+     * @return The size of the header.
+     */
+    private static long writeHeader(FileChannel target) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putShort(VERSION).flip();
+
+        while (header.hasRemaining()) {
+            target.write(header, header.position());
+        }
+
+        return HEADER_SIZE;
+
+    }
+
+    /**
+     * @return The block holding the given changes, with its size in front.
+     */
+    private static byte[] encodeBlock(String url, List<Change> changes) {
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+
+        // Leave room for the size, which is filled in at the end
+        block.writeBytes(new byte[4]);
+        writeVarint(block, urlBytes.length);
+        block.writeBytes(urlBytes);
+        writeVarint(block, changes.size());
+
+        long previousSeconds = 0;
+        long previousLength = 0;
+
+        for (Change change : changes) {
+
+            long seconds = change.timestampMs() / 1000;
+
+            writeVarint(block, toZigzag(seconds - previousSeconds));
+            writeVarint(block, toZigzag(change.contentLength() - previousLength));
+
+            previousSeconds = seconds;
+            previousLength = change.contentLength();
+
+        }
+
+        byte[] bytes = block.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4);
+
+        return bytes;
+
+    }
+
+    /**
+     * Reads the URL at the start of a block, without its size.
+     */
+    private static String readURL(ByteBuffer block) {
+
+        int length = (int) readVarint(block);
+        byte[] urlBytes = new byte[length];
+        block.get(urlBytes);
+
+        return new String(urlBytes, StandardCharsets.UTF_8);
+
+    }
+
+    /**
+     * Reads exactly the given number of bytes at the given position.
+     *
+     * @return The bytes, ready to be read.
+     */
+    private static ByteBuffer readFully(FileChannel source, long position, int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the change history at " + position);
+            }
+        }
+
+        return buffer.flip();
+
+    }
+
+    /**
+     * Writes a value 7 bits at a time, lowest first, with the
+     * top bit of each byte set if another byte follows.
+     */
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        output.write((int) value);
+
+    }
+
+    private static long readVarint(ByteBuffer input) {
+
+        long value = 0;
+        int shift = 0;
+        byte next;
+
+        do {
+            next = input.get();
+            value |= (long) (next & 0x7F) << shift;
+            shift += 7;
+        } while ((next & 0x80) != 0);
+
+        return value;
+
+    }
+
+    /**
+     * Maps signed values to unsigned ones so that small negative
+     * differences stay small: 0, -1, 1, -2, 2 become 0, 1, 2, 3, 4.
+     */
+    private static long toZigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long fromZigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A single change to a document.
+     *
+     * @param timestampMs   When the change was seen, in epoch
+     *                      milliseconds, rounded down to the second.
+     * @param contentLength The document's content length after the
+     *                      change, or {@link #UNKNOWN_LENGTH}.
+     */
+    public record Change(long timestampMs, long contentLength) {
+    }
+
+}
@@ -0,0 +1,14 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * Overrides how often a single URL may be checked.
+ *
+ * @param minIntervalInMs The shortest interval in milliseconds at which
+ *                        the URL may be checked, or <code>null</code> to
+ *                        use <code>checkIntervalInMs</code>.
+ * @param maxIntervalInMs The longest interval in milliseconds the URL may
+ *                        go without being checked, or <code>null</code> to
+ *                        use <code>maxCheckIntervalInMs</code>.
+ */
+public record CheckIntervalBounds(Long minIntervalInMs, Long maxIntervalInMs) {
+}
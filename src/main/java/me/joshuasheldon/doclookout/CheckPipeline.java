@@ -0,0 +1,402 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Carries the results of a cycle's checks through storage and
+ * on to the webhook in the order they complete, rather than in
+ * the order the URLs were listed. A slow URL only holds up its
+ * own result.
+ * <p>
+ * The cycle is made of three stages connected by bounded
+ * {@link SubmissionPublisher}s:<br>
+ * - fetch: every document is checked at once, and each result
+ * is published as soon as it arrives,<br>
+ * - store: each result is diffed against the stored state and
+ * persisted by {@link StorageMgr#updateStorage(String, CheckResult, Predicate, Function)},
+ * which does both under one lock. Results for URLs that stopped
+ * being checked while they were in flight are dropped there. A change is added to the
+ * {@link NotificationOutbox}, which is synced before the change
+ * is logged to storage, so that it is never stored without being
+ * notified, and to the {@link ChangeHistory}, and<br>
+ * - notify: each notification is handed to the webhook notifier,
+ * which merges changes that come in close together, and marks it
+ * delivered in the outbox once it has been.<br>
+ * Each change is routed by the {@link WebhookRouter}, and gets one
+ * notification per webhook it goes to, whatever number of
+ * subscriptions matched it.
+ * Each stage only asks for the next item once it has handled the
+ * last one. When a stage falls behind, the buffer in front of it
+ * fills up and the stage before it waits.
+ * <p>
+ * If the configuration sets a cycle deadline, the checks still
+ * outstanding when it passes are cancelled, and the cycle
+ * finishes with the results it has. The same happens to every
+ * running cycle when {@link #cancelChecks()} is called, e.g. to
+ * shut down.
+ */
+public class CheckPipeline {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The most items that may wait between two stages.
+     */
+    private static final int BUFFER_CAPACITY = 256;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The configuration the cycle deadline comes from.
+     */
+    private volatile Configuration config;
+
+    /**
+     * Decides which webhooks each change goes to.
+     */
+    private volatile WebhookRouter webhookRouter;
+
+    /**
+     * Checks each document for changes.
+     */
+    private final FilesizeRetriever filesizeRetriever;
+
+    /**
+     * Keeps notifications until they have been delivered.
+     */
+    private final NotificationOutbox notificationOutbox;
+
+    /**
+     * Keeps every change seen to each document.
+     */
+    private final ChangeHistory changeHistory;
+
+    /**
+     * Notifies the webhook of changed documents.
+     */
+    private final WebhookNotifier webhookNotifier;
+
+    /**
+     * Tells whether a URL is still checked, so that results
+     * for URLs removed in the meantime aren't stored.
+     */
+    private final Predicate<String> isChecked;
+
+    /**
+     * Runs the store and notify stages.
+     */
+    private final ExecutorService stageExecutor;
+
+    /**
+     * The checks of every running cycle, once they have all started.
+     */
+    private final Set<List<CompletableFuture<CheckResult>>> runningChecks;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config             The configuration to take the webhook
+     *                           settings and the cycle deadline from.
+     * @param filesizeRetriever  Checks each document for changes.
+     * @param notificationOutbox Keeps notifications until they have
+     *                           been delivered. Must be open.
+     * @param changeHistory      Keeps every change seen to each document.
+     * @param webhookNotifier    Notifies the webhook of changed documents.
+     * @param isChecked          Tells whether a URL is still checked.
+     *                           Called while storage is locked, so it
+     *                           mustn't take any other locks.
+     */
+    public CheckPipeline(Configuration config, FilesizeRetriever filesizeRetriever,
+                         NotificationOutbox notificationOutbox, ChangeHistory changeHistory,
+                         WebhookNotifier webhookNotifier, Predicate<String> isChecked) {
+        this.config = config;
+        this.webhookRouter = new WebhookRouter(config);
+        this.filesizeRetriever = filesizeRetriever;
+        this.notificationOutbox = notificationOutbox;
+        this.changeHistory = changeHistory;
+        this.webhookNotifier = webhookNotifier;
+        this.isChecked = isChecked;
+        this.stageExecutor = Executors.newCachedThreadPool();
+        this.runningChecks = ConcurrentHashMap.newKeySet();
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Checks the given URLs, storing each result and notifying
+     * the webhook of each change as the results come in.
+     *
+     * @param urls The URLs to check.
+     * @return A future that completes once every result has been
+     * stored and every change has been handed to the webhook notifier.
+     */
+    public CompletableFuture<Void> run(List<String> urls) {
+
+        SubmissionPublisher<Checked> checkedPublisher = new SubmissionPublisher<>(this.stageExecutor, BUFFER_CAPACITY);
+        SubmissionPublisher<Changed> changedPublisher = new SubmissionPublisher<>(this.stageExecutor, BUFFER_CAPACITY);
+
+        StoreStage storeStage = new StoreStage(changedPublisher);
+        NotifyStage notifyStage = new NotifyStage();
+
+        checkedPublisher.subscribe(storeStage);
+        changedPublisher.subscribe(notifyStage);
+
+        AtomicInteger remaining = new AtomicInteger(urls.size());
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        List<CompletableFuture<CheckResult>> checks = new ArrayList<>(urls.size());
+
+        if (urls.isEmpty()) {
+            checkedPublisher.close();
+        }
+
+        // Start checking all documents, conditionally on
+        // whatever validators we already have for them
+        for (String url : urls) {
+
+            CompletableFuture<CheckResult> check =
+                    this.filesizeRetriever.checkDocument(url, StorageMgr.getInstance().getState(url));
+
+            checks.add(check);
+            check.whenComplete((result, error) -> {
+
+                if (error != null && FilesizeRetriever.unwrap(error) instanceof HostUnavailableException) {
+                    Metrics.getInstance().recordCheck(Metrics.CHECK_SKIPPED);
+                    skipped.incrementAndGet();
+                } else if (error != null && FilesizeRetriever.unwrap(error) instanceof CancellationException) {
+                    Metrics.getInstance().recordCheck(Metrics.CHECK_CANCELLED);
+                    cancelled.incrementAndGet();
+                } else if (error != null) {
+                    Metrics.getInstance().recordCheck(Metrics.CHECK_FAILED);
+                    System.err.println("Failed to retrieve filesize of " + url + "!");
+                    error.printStackTrace();
+                } else {
+                    Metrics.getInstance().recordCheck(
+                            result.notModified() ? Metrics.CHECK_NOT_MODIFIED : Metrics.CHECK_FETCHED);
+                    // Waits while the store stage is behind
+                    checkedPublisher.submit(new Checked(url, result));
+                }
+
+                if (remaining.decrementAndGet() == 0) {
+                    checkedPublisher.close();
+                }
+
+            });
+
+        }
+
+        // Every check has been started by now, so they can all be
+        // cancelled until the cycle finishes. The list isn't added
+        // to anymore, so it is shared rather than copied.
+        this.runningChecks.add(checks);
+        notifyStage.done.whenComplete((result, throwable) -> this.runningChecks.remove(checks));
+
+        // Give up on whatever is still outstanding at the deadline.
+        // The timer is called off as soon as the cycle finishes
+        long deadlineInMs = this.config.cycleDeadlineInMs();
+
+        if (deadlineInMs > 0 && !urls.isEmpty()) {
+
+            CompletableFuture<Void> deadline = new CompletableFuture<Void>()
+                    .completeOnTimeout(null, deadlineInMs, TimeUnit.MILLISECONDS);
+
+            deadline.thenRun(() -> {
+                for (CompletableFuture<CheckResult> check : checks) {
+                    check.cancel(true);
+                }
+            });
+
+            notifyStage.done.whenComplete((result, throwable) -> deadline.cancel(false));
+
+        }
+
+        return notifyStage.done.thenRun(() -> {
+
+            System.out.printf("Successfully retrieved the content length of %d/%d URLs!%n",
+                    storeStage.stored, urls.size());
+
+            if (skipped.get() > 0) {
+                System.out.printf("Skipped %d URL(s) on hosts that couldn't be reached recently.%n", skipped.get());
+            }
+
+            if (cancelled.get() > 0) {
+                System.out.printf("Cancelled %d check(s) still outstanding at the deadline.%n", cancelled.get());
+            }
+
+        });
+
+    }
+
+    /**
+     * Replaces the configuration the webhook settings and
+     * subscriptions come from, starting with the next change.
+     *
+     * @param config The new configuration.
+     */
+    public void setConfiguration(Configuration config) {
+        this.config = config;
+        this.webhookRouter = new WebhookRouter(config);
+    }
+
+    /**
+     * Cancels the checks still outstanding in every running cycle,
+     * which then finish with the results they have.
+     */
+    public void cancelChecks() {
+        for (List<CompletableFuture<CheckResult>> checks : this.runningChecks) {
+            for (CompletableFuture<CheckResult> check : checks) {
+                check.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads that run the stages.
+     */
+    public void stop() {
+        this.stageExecutor.shutdown();
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The result of checking a single URL.
+     */
+    private record Checked(String url, CheckResult result) {
+    }
+
+    /**
+     * The notifications of a change, one per webhook it goes to.
+     */
+    private record Changed(List<NotificationOutbox.Notification> notifications, int changes) {
+    }
+
+    /**
+     * Diffs each result against the stored state, persists it,
+     * and passes its notifications on if the document changed.
+     */
+    private final class StoreStage implements Flow.Subscriber<Checked> {
+
+        private final SubmissionPublisher<Changed> changedPublisher;
+        private Flow.Subscription subscription;
+        private volatile int stored;
+
+        private StoreStage(SubmissionPublisher<Changed> changedPublisher) {
+            this.changedPublisher = changedPublisher;
+            this.stored = 0;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(Checked checked) {
+
+            try {
+
+                WebhookRouter router = webhookRouter;
+                NotificationOutbox.Added[] added = new NotificationOutbox.Added[1];
+
+                // The storage log waits for the outbox to be synced
+                // before it logs the change, so storage stays unlocked
+                StorageMgr.getInstance().updateStorage(checked.url(), checked.result(), isChecked, changes -> {
+                    added[0] = notificationOutbox.addAll(router.route(changes));
+                    changeHistory.record(changes);
+                    return added[0].synced();
+                });
+                this.stored++;
+
+                // Waits while the outbox or the notify stage is behind
+                if (added[0] != null) {
+                    added[0].awaitSynced();
+                    this.changedPublisher.submit(new Changed(added[0].notifications(), 1));
+                }
+
+            } catch (Exception e) {
+                System.err.println("Failed to store the result for " + checked.url() + "!");
+                e.printStackTrace();
+            }
+
+            this.subscription.request(1);
+
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.changedPublisher.closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            this.changedPublisher.close();
+        }
+
+    }
+
+    /**
+     * Queues each webhook notification. The {@link WebhookNotifier}
+     * merges changes to the same webhook that come in close together
+     * into one message, so each one is handed over right away.
+     */
+    private final class NotifyStage implements Flow.Subscriber<Changed> {
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int changes;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(Changed changed) {
+
+            for (NotificationOutbox.Notification notification : changed.notifications()) {
+                webhookNotifier.notifyWebhook(notification.webhookURL(), notification.roleIDsToPing(),
+                        notification.urls(), () -> notificationOutbox.markDelivered(notification.id()));
+            }
+
+            this.changes += changed.changes();
+            Metrics.getInstance().recordChanges(changed.changes());
+
+            this.subscription.request(1);
+
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+
+            if (this.changes > 0) {
+                System.out.printf("%d changes detected, notifying the webhook!%n", this.changes);
+            }
+
+            this.done.complete(null);
+
+        }
+
+    }
+
+}
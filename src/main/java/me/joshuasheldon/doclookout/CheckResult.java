@@ -0,0 +1,32 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * The outcome of checking a single document.
+ *
+ * @param notModified Whether the server answered a conditional
+ *                    request with <code>304 Not Modified</code>,
+ *                    in which case there is nothing to compare.
+ * @param state       The state of the document as reported by the
+ *                    server, or <code>null</code> if it wasn't modified.
+ */
+public record CheckResult(boolean notModified, DocumentState state) {
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return The result of a check the server answered
+     * with <code>304 Not Modified</code>.
+     */
+    public static CheckResult ofNotModified() {
+        return new CheckResult(true, null);
+    }
+
+    /**
+     * @param state The state of the document as reported by the server.
+     * @return The result of a check that returned a fresh state.
+     */
+    public static CheckResult of(DocumentState state) {
+        return new CheckResult(false, state);
+    }
+
+}
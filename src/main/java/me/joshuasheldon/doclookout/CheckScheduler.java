@@ -0,0 +1,596 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decides when each URL is next checked. Every URL has its own
+ * due time, kept in a delay heap, and a single thread wakes up
+ * whenever the earliest one comes due. All URLs that are due by
+ * then (or shortly after) are handed over as one cycle.
+ * <p>
+ * After a URL is checked, its next interval follows the
+ * heuristic HTTP caches use for freshness: a tenth of the time
+ * since the document last changed, clamped between the URL's
+ * minimum and maximum interval. Documents that change often
+ * are checked at the minimum interval, while documents that
+ * haven't changed in months back off to the maximum. A random
+ * jitter keeps URLs added together from staying in lockstep.
+ * <p>
+ * What happens to URLs that come due while a cycle is still
+ * running is up to the configured {@link OverrunPolicy}.
+ * <p>
+ * URLs whose documents are watched for changes (see
+ * {@link DocumentWatcher}) are only polled at their maximum
+ * interval, in case a change slips past the watcher, and are
+ * made due right away whenever the watcher sees one. Documents
+ * on network shares aren't watched, so they are never demoted.
+ */
+public class CheckScheduler {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The fraction of the time since a document last changed
+     * that we wait before checking it again.
+     */
+    private static final double INTERVAL_FRACTION_OF_AGE = 0.1;
+
+    /**
+     * URLs that come due within this many milliseconds of the
+     * earliest one are checked in the same cycle, so that we
+     * don't start a separate cycle for every URL.
+     */
+    private static final long MAX_CYCLE_WINDOW_IN_MS = 1_000L;
+
+    /**
+     * How long to wait for the running cycles while shutting
+     * down before cancelling their outstanding checks, and
+     * again after cancelling them before giving up.
+     */
+    private static final long MAX_SHUTDOWN_WAIT_IN_MS = 10_000L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The configuration the interval bounds, jitter and
+     * overrun policy come from.
+     * Guarded by the lock on the scheduler, since it may be
+     * replaced while the program runs.
+     */
+    private Configuration config;
+
+    /**
+     * Runs a cycle of checks over the given URLs. Called on the
+     * scheduler thread, which waits for it to return, or with
+     * {@link OverrunPolicy#OVERLAP}, on a cycle thread.
+     * Set by {@link #start(Consumer)}, before the scheduler
+     * thread starts.
+     */
+    private Consumer<List<String>> cycleRunner;
+
+    /**
+     * How far ahead of their due time URLs may be pulled into
+     * a cycle. Kept well below the shortest interval, so that
+     * no URL gets checked noticeably more often than it should.
+     * Guarded by the lock on the scheduler.
+     */
+    private long cycleWindowInMs;
+
+    /**
+     * Every scheduled URL, ordered by when it is next due.
+     */
+    private final PriorityQueue<Entry> dueQueue;
+
+    /**
+     * The live entry of every scheduled URL, keyed by URL.
+     * Entries in the queue that aren't in here any more have
+     * been removed and are skipped when they come due. Only
+     * changed while holding the lock on the scheduler, but
+     * concurrent, so that {@link #isScheduled(String)} doesn't
+     * need the lock.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * The scheduled URLs whose documents are watched for changes.
+     */
+    private final Set<String> watchedURLs;
+
+    /**
+     * The thread that waits for URLs to come due and runs cycles.
+     */
+    private final Thread thread;
+
+    /**
+     * Runs the cycles that overlap each other.
+     */
+    private final ExecutorService cycleExecutor;
+
+    /**
+     * Whether the scheduler has been stopped.
+     */
+    private volatile boolean stopped;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config The configuration to take the interval
+     *               bounds and jitter from.
+     */
+    public CheckScheduler(Configuration config) {
+        this.config = config;
+        this.cycleRunner = null;
+        this.cycleWindowInMs = Math.min(MAX_CYCLE_WINDOW_IN_MS, config.checkIntervalInMs() / 10);
+        this.dueQueue = new PriorityQueue<>();
+        this.entries = new ConcurrentHashMap<>();
+        this.watchedURLs = new HashSet<>();
+        this.thread = new Thread(this::run, "DocLookout-Scheduler");
+        this.cycleExecutor = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "DocLookout-Cycle"));
+        this.stopped = false;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Starts the thread that runs cycles as URLs come due.
+     *
+     * @param cycleRunner Runs a cycle of checks over the given URLs.
+     */
+    public void start(Consumer<List<String>> cycleRunner) {
+        this.cycleRunner = cycleRunner;
+        this.thread.start();
+    }
+
+    /**
+     * Schedules a URL to be checked right away, and from then on
+     * at its adaptive interval. Does nothing if it's already scheduled.
+     *
+     * @param url The URL to schedule.
+     * @return Whether the URL wasn't already scheduled.
+     */
+    public synchronized boolean add(String url) {
+
+        if (this.entries.containsKey(url)) {
+            return false;
+        }
+
+        Entry entry = new Entry(url, System.currentTimeMillis(), false);
+        this.entries.put(url, entry);
+        this.dueQueue.add(entry);
+
+        notifyAll();
+
+        return true;
+
+    }
+
+    /**
+     * Replaces the configuration the interval bounds, jitter and
+     * overrun policy come from. URLs keep their current due time,
+     * and pick up the new intervals the next time they are checked.
+     *
+     * @param config The new configuration.
+     */
+    public synchronized void setConfiguration(Configuration config) {
+        this.config = config;
+        this.cycleWindowInMs = Math.min(MAX_CYCLE_WINDOW_IN_MS, config.checkIntervalInMs() / 10);
+    }
+
+    /**
+     * Stops checking a URL.
+     *
+     * @param url The URL to stop checking.
+     */
+    public synchronized void remove(String url) {
+        this.entries.remove(url);
+        this.watchedURLs.remove(url);
+    }
+
+    /**
+     * Marks a scheduled URL as watched for changes, so that
+     * from its next check on it is only polled at its
+     * maximum interval.
+     *
+     * @param url The URL whose document is watched.
+     */
+    public synchronized void setWatched(String url) {
+        if (this.entries.containsKey(url)) {
+            this.watchedURLs.add(url);
+        }
+    }
+
+    /**
+     * Marks URLs as no longer watched for changes, e.g. because
+     * their directory was deleted, and makes them due right away.
+     * From then on they are polled at their adaptive interval.
+     *
+     * @param urls The URLs whose documents aren't watched any more.
+     */
+    public synchronized void setUnwatched(Collection<String> urls) {
+        this.watchedURLs.removeAll(urls);
+        checkNow(urls);
+    }
+
+    /**
+     * Makes the given URLs due right away, e.g. because their
+     * documents were seen changing. A URL that is being checked
+     * at the moment is checked again, since the change may have
+     * come after it was fetched. URLs that aren't scheduled are
+     * ignored.
+     *
+     * @param urls The URLs to check.
+     */
+    public synchronized void checkNow(Collection<String> urls) {
+
+        long now = System.currentTimeMillis();
+
+        for (String url : urls) {
+
+            if (!this.entries.containsKey(url)) {
+                continue;
+            }
+
+            Entry entry = new Entry(url, now, false);
+            this.entries.put(url, entry);
+            this.dueQueue.add(entry);
+
+        }
+
+        notifyAll();
+
+    }
+
+    /**
+     * Doesn't take the lock on the scheduler, so that it can
+     * be called while holding other locks, e.g. storage's.
+     *
+     * @param url The URL to look up.
+     * @return Whether the URL is scheduled.
+     */
+    public boolean isScheduled(String url) {
+        return this.entries.containsKey(url);
+    }
+
+    /**
+     * @return A copy of every scheduled URL.
+     */
+    public synchronized List<String> getURLs() {
+        return new ArrayList<>(this.entries.keySet());
+    }
+
+    /**
+     * @return The number of scheduled URLs.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Stops the scheduler, and waits for the cycles that are
+     * already running to finish, so that nothing they store
+     * races whatever is stopped next. No new cycles are started.
+     * If they are still running after a few seconds, their
+     * outstanding checks are cancelled, and they are waited for
+     * a few more seconds at most.
+     *
+     * @param cancelCycles Cancels the outstanding checks of the
+     *                     running cycles.
+     */
+    public void stop(Runnable cancelCycles) {
+
+        this.stopped = true;
+
+        synchronized (this) {
+            notifyAll();
+        }
+
+        try {
+
+            if (awaitCycles()) {
+                return;
+            }
+
+            System.err.println("Cancelling the checks still outstanding to shut down!");
+            cancelCycles.run();
+
+            if (!awaitCycles()) {
+                System.err.println("Gave up waiting for the running cycles to finish!");
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Waits for the scheduler thread and the overlapping
+     * cycles to finish, for up to {@link #MAX_SHUTDOWN_WAIT_IN_MS}.
+     *
+     * @return Whether they all finished.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private boolean awaitCycles() throws InterruptedException {
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_SHUTDOWN_WAIT_IN_MS);
+
+        // Once the scheduler thread is gone,
+        // no more overlapping cycles can start
+        if (Thread.currentThread() != this.thread) {
+            this.thread.join(MAX_SHUTDOWN_WAIT_IN_MS);
+        }
+
+        this.cycleExecutor.shutdown();
+
+        return this.cycleExecutor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+                && (Thread.currentThread() == this.thread || !this.thread.isAlive());
+
+    }
+
+    /**
+     * The body of the scheduler thread.
+     */
+    private void run() {
+
+        while (!this.stopped) {
+
+            List<Entry> dueEntries;
+
+            try {
+                dueEntries = awaitDueEntries();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (dueEntries.isEmpty()) {
+                continue;
+            }
+
+            OverrunPolicy overrunPolicy;
+
+            synchronized (this) {
+                overrunPolicy = this.config.overrunPolicy();
+            }
+
+            // Its URLs are off the queue until it finishes,
+            // so the next cycle can't check them again
+            if (overrunPolicy == OverrunPolicy.OVERLAP) {
+                try {
+                    this.cycleExecutor.execute(() -> runCycle(dueEntries));
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+                continue;
+            }
+
+            runCycle(dueEntries);
+
+            if (overrunPolicy == OverrunPolicy.SKIP) {
+                skipOverdueEntries();
+            }
+
+        }
+
+    }
+
+    /**
+     * Runs a cycle over the given entries, then
+     * puts them back on the queue.
+     */
+    private void runCycle(List<Entry> dueEntries) {
+
+        List<String> dueURLs = new ArrayList<>(dueEntries.size());
+
+        for (Entry entry : dueEntries) {
+            dueURLs.add(entry.url);
+        }
+
+        try {
+            this.cycleRunner.accept(dueURLs);
+        } catch (Exception e) {
+            System.err.println("Unexpected error while checking for document changes!");
+            e.printStackTrace();
+        }
+
+        reschedule(dueEntries);
+
+    }
+
+    /**
+     * Waits until the earliest URL comes due, then takes it and
+     * every other URL due within the cycle window off the queue.
+     *
+     * @return The entries to check this cycle. Empty if the scheduler
+     * was stopped while waiting.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private synchronized List<Entry> awaitDueEntries() throws InterruptedException {
+
+        while (!this.stopped) {
+
+            Entry head = this.dueQueue.peek();
+
+            // Drop entries of URLs that were removed or rescheduled
+            if (head != null && this.entries.get(head.url) != head) {
+                this.dueQueue.poll();
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+
+            if (head == null) {
+                wait();
+            } else if (head.dueAtMs > now) {
+                wait(head.dueAtMs - now);
+            } else {
+                break;
+            }
+
+        }
+
+        List<Entry> dueEntries = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() + this.cycleWindowInMs;
+
+        while (!this.stopped && !this.dueQueue.isEmpty() && this.dueQueue.peek().dueAtMs <= cutoff) {
+
+            Entry entry = this.dueQueue.poll();
+
+            if (this.entries.get(entry.url) == entry) {
+                dueEntries.add(entry);
+            }
+
+        }
+
+        return dueEntries;
+
+    }
+
+    /**
+     * Puts the URLs of a finished cycle back on the queue at
+     * their next due time. URLs that were removed (or removed
+     * and added again) during the cycle are left alone.
+     */
+    private synchronized void reschedule(List<Entry> checkedEntries) {
+
+        long now = System.currentTimeMillis();
+
+        for (Entry checked : checkedEntries) {
+
+            if (this.entries.get(checked.url) != checked) {
+                continue;
+            }
+
+            Entry entry = new Entry(checked.url, now + nextIntervalInMs(checked.url, now), true);
+            this.entries.put(checked.url, entry);
+            this.dueQueue.add(entry);
+
+        }
+
+        // With overlapping cycles, the scheduler thread
+        // may be waiting on a queue that was empty
+        notifyAll();
+
+    }
+
+    /**
+     * Moves the URLs that came due while the last cycle ran on
+     * to their next interval, so that they miss this check. URLs
+     * that haven't been checked since they were added are left
+     * due, so that they are checked right away.
+     */
+    private synchronized void skipOverdueEntries() {
+
+        long now = System.currentTimeMillis();
+        List<Entry> overdueEntries = new ArrayList<>();
+
+        while (!this.dueQueue.isEmpty() && this.dueQueue.peek().dueAtMs <= now) {
+
+            Entry entry = this.dueQueue.poll();
+
+            if (this.entries.get(entry.url) == entry) {
+                overdueEntries.add(entry);
+            }
+
+        }
+
+        int skipped = 0;
+
+        for (Entry overdue : overdueEntries) {
+
+            Entry entry = overdue;
+
+            if (overdue.skippable) {
+                entry = new Entry(overdue.url, now + nextIntervalInMs(overdue.url, now), true);
+                this.entries.put(overdue.url, entry);
+                skipped++;
+            }
+
+            this.dueQueue.add(entry);
+
+        }
+
+        if (skipped > 0) {
+            System.out.printf("The last cycle ran long, skipped the overdue checks of %d URL(s).%n", skipped);
+        }
+
+    }
+
+    /**
+     * @param url The URL that was just checked.
+     * @param now The current time in epoch milliseconds.
+     * @return How long to wait before checking the URL again.
+     */
+    private long nextIntervalInMs(String url, long now) {
+
+        long min = this.config.minCheckIntervalInMsFor(url);
+        long max = this.config.maxCheckIntervalInMsFor(url);
+
+        // The watcher tells us about changes as they happen
+        if (this.watchedURLs.contains(url)) {
+            min = max;
+        }
+
+        // Back off based on how long the document has gone
+        // without changing. Documents we know nothing about
+        // yet are checked at the minimum interval.
+        long lastChangedAtMs = StorageMgr.getInstance().getLastChangedAtMs(url);
+        long interval = min;
+
+        if (lastChangedAtMs != Long.MIN_VALUE) {
+            long age = Math.max(0, now - lastChangedAtMs);
+            interval = Math.max(min, Math.min(max, (long) (age * INTERVAL_FRACTION_OF_AGE)));
+        }
+
+        // Spread checks out so that they don't bunch up
+        double jitter = this.config.checkIntervalJitter();
+
+        if (jitter > 0) {
+            interval += (long) (interval * ThreadLocalRandom.current().nextDouble(-jitter, jitter));
+        }
+
+        return Math.max(1, interval);
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A URL together with when it is next due, and whether
+     * that check may be skipped if it comes due during a
+     * cycle that runs long.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        private final String url;
+        private final long dueAtMs;
+        private final boolean skippable;
+
+        private Entry(String url, long dueAtMs, boolean skippable) {
+            this.url = url;
+            this.dueAtMs = dueAtMs;
+            this.skippable = skippable;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return Long.compare(this.dueAtMs, other.dueAtMs);
+        }
+
+    }
+
+}
@@ -0,0 +1,363 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many asynchronous operations may be in flight
+ * at once, both in total and per host. Operations that can't
+ * start yet are queued per host, and hosts take turns when a
+ * slot frees up so that one host with many URLs can't starve
+ * the others. No thread ever blocks waiting for a slot.
+ * <p>
+ * Blocking operations (see {@link #submitBlocking}) hold
+ * their slot until their thread is done with them, even when
+ * they are cancelled, so they can't run on past the limits.
+ */
+public class ConcurrencyLimiter {
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The maximum number of operations in flight across all hosts.
+     */
+    private final int maxConcurrent;
+
+    /**
+     * The maximum number of operations in flight for a single host.
+     */
+    private final int maxConcurrentPerHost;
+
+    /**
+     * The per-host queues of operations, keyed by host. Hosts
+     * are removed once they have nothing queued or in flight.
+     */
+    private final Map<String, HostSlot> hosts;
+
+    /**
+     * Hosts that have queued operations and spare capacity,
+     * in the order they will be given the next free slot.
+     */
+    private final ArrayDeque<HostSlot> readyHosts;
+
+    /**
+     * The number of operations currently in flight.
+     */
+    private int inFlight;
+
+    /**
+     * Whether some thread is currently inside {@link #dispatch()}.
+     * Only one thread dispatches at a time, which keeps operations
+     * that complete synchronously from recursing back into it.
+     */
+    private boolean dispatching;
+
+    /**
+     * Whether slots were freed or work was queued while another
+     * thread was dispatching, meaning it has to take another look.
+     */
+    private boolean dispatchRequested;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public ConcurrencyLimiter(int maxConcurrent, int maxConcurrentPerHost) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerHost = maxConcurrentPerHost;
+        this.hosts = new HashMap<>();
+        this.readyHosts = new ArrayDeque<>();
+        this.inFlight = 0;
+        this.dispatching = false;
+        this.dispatchRequested = false;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Queues an operation against the given host. The operation
+     * is started as soon as both the global and the per-host
+     * limits allow it.
+     *
+     * @param host      The host the operation talks to.
+     * @param operation Starts the operation and returns a future
+     *                  that completes when the operation does.
+     * @param <T>       The result type of the operation.
+     * @return A future that mirrors the operation's result. If
+     * it is cancelled before the operation starts, the operation
+     * is never started. If it is cancelled afterwards, the
+     * operation is cancelled too and its slot is freed.
+     */
+    public <T> CompletableFuture<T> submit(String host, Supplier<CompletableFuture<T>> operation) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        synchronized (this) {
+
+            HostSlot slot = this.hosts.computeIfAbsent(host, HostSlot::new);
+
+            slot.pending.add(() -> start(slot, operation, result));
+            markReadyIfPossible(slot);
+
+        }
+
+        dispatch();
+        return result;
+
+    }
+
+    /**
+     * Queues a blocking operation against the given host, which is
+     * run on the given executor as soon as both the global and the
+     * per-host limits allow it. Unlike with
+     * {@link #submit(String, Supplier)}, the slot is only freed once
+     * the thread running the operation is done with it, since a
+     * blocking operation doesn't stop when a future is cancelled.
+     *
+     * @param host      The host the operation talks to.
+     * @param executor  Runs the operation.
+     * @param operation The operation to run.
+     * @param <T>       The result type of the operation.
+     * @return A future containing the operation's result. If it is
+     * cancelled before the operation starts, the operation is never
+     * started. If it is cancelled afterwards, the thread running the
+     * operation is interrupted, and the slot is freed once it stops.
+     */
+    public <T> CompletableFuture<T> submitBlocking(String host, ExecutorService executor, Callable<T> operation) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        synchronized (this) {
+
+            HostSlot slot = this.hosts.computeIfAbsent(host, HostSlot::new);
+
+            slot.pending.add(() -> startBlocking(slot, executor, operation, result));
+            markReadyIfPossible(slot);
+
+        }
+
+        dispatch();
+        return result;
+
+    }
+
+    /**
+     * @return The number of operations currently in flight.
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Starts a dequeued operation and arranges for its slot
+     * to be released once it finishes.
+     */
+    private <T> void start(HostSlot slot, Supplier<CompletableFuture<T>> operation, CompletableFuture<T> result) {
+
+        // Don't bother starting work nobody is waiting for
+        if (result.isDone()) {
+            release(slot);
+            return;
+        }
+
+        CompletableFuture<T> started;
+
+        try {
+            started = operation.get();
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            release(slot);
+            return;
+        }
+
+        // Pass cancellation on, which frees the slot right away,
+        // so the operation has to stop when its future is cancelled
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                started.cancel(true);
+            }
+        });
+
+        started.whenComplete((value, throwable) -> {
+
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(value);
+            }
+
+            release(slot);
+
+        });
+
+    }
+
+    /**
+     * Hands a dequeued blocking operation to its executor, and
+     * arranges for its slot to be released once the thread running
+     * it is done, or once it is cancelled before it got to run.
+     */
+    private <T> void startBlocking(HostSlot slot, ExecutorService executor, Callable<T> operation,
+                                   CompletableFuture<T> result) {
+
+        // Don't bother starting work nobody is waiting for
+        if (result.isDone()) {
+            release(slot);
+            return;
+        }
+
+        // Set by whichever comes first, the operation starting to
+        // run or being cancelled before it did, which then frees the slot
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        Future<?> task;
+
+        try {
+            task = executor.submit(() -> {
+
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+
+                try {
+                    result.complete(operation.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    release(slot);
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            release(slot);
+            return;
+        }
+
+        result.whenComplete((value, throwable) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+                if (claimed.compareAndSet(false, true)) {
+                    release(slot);
+                }
+            }
+        });
+
+    }
+
+    /**
+     * Starts queued operations for as long as there are free
+     * slots. Operations are started outside the lock so that
+     * slow setup code can't hold up other submitters.
+     */
+    private void dispatch() {
+
+        synchronized (this) {
+            if (this.dispatching) {
+                this.dispatchRequested = true;
+                return;
+            }
+            this.dispatching = true;
+        }
+
+        while (true) {
+
+            Runnable next;
+
+            synchronized (this) {
+
+                if (this.inFlight >= this.maxConcurrent || this.readyHosts.isEmpty()) {
+
+                    if (this.dispatchRequested) {
+                        this.dispatchRequested = false;
+                        continue;
+                    }
+
+                    this.dispatching = false;
+                    return;
+
+                }
+
+                HostSlot slot = this.readyHosts.poll();
+                slot.ready = false;
+
+                next = slot.pending.poll();
+                this.inFlight++;
+                slot.inFlight++;
+
+                // Put the host at the back of the line if it
+                // still has work, so hosts take turns
+                markReadyIfPossible(slot);
+
+            }
+
+            next.run();
+
+        }
+
+    }
+
+    /**
+     * Frees the slot held by a finished operation and
+     * starts whatever can run in its place.
+     */
+    private void release(HostSlot slot) {
+
+        synchronized (this) {
+
+            this.inFlight--;
+            slot.inFlight--;
+
+            markReadyIfPossible(slot);
+
+            if (slot.inFlight == 0 && slot.pending.isEmpty()) {
+                this.hosts.remove(slot.host);
+            }
+
+        }
+
+        dispatch();
+
+    }
+
+    /**
+     * Adds the host to the ready queue if it has queued work,
+     * spare per-host capacity and isn't already queued. Must be
+     * called while holding the lock.
+     */
+    private void markReadyIfPossible(HostSlot slot) {
+        if (!slot.ready && !slot.pending.isEmpty() && slot.inFlight < this.maxConcurrentPerHost) {
+            slot.ready = true;
+            this.readyHosts.add(slot);
+        }
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The queue and in-flight count of a single host.
+     */
+    private static final class HostSlot {
+
+        private final String host;
+        private final ArrayDeque<Runnable> pending;
+        private int inFlight;
+        private boolean ready;
+
+        private HostSlot(String host) {
+            this.host = host;
+            this.pending = new ArrayDeque<>();
+            this.inFlight = 0;
+            this.ready = false;
+        }
+
+    }
+
+}
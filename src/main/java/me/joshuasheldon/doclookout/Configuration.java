@@ -1,25 +1,362 @@
 package me.joshuasheldon.doclookout;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Configuration object for DocLookout.
  *
- * @param webhookURL        The URL of the webhook to publish to when
- *                          document content length modifications have
- *                          been detected.
- * @param checkIntervalInMs The interval in milliseconds at which to
- *                          check the document content lengths.
- * @param urlsToCheck       The URLs to check the content length of.
- * @param roleIDToPing      The ID of the role to ping when documents
- *                          are updated. If it is blank, no role will
- *                          be pinged.
+ * @param webhookURL                   The URL of the webhook to publish to when
+ *                                     document content length modifications have
+ *                                     been detected.
+ * @param checkIntervalInMs            The shortest interval in milliseconds at
+ *                                     which to check the document content lengths.
+ *                                     Documents that haven't changed in a while
+ *                                     are checked less often, see
+ *                                     <code>maxCheckIntervalInMs</code>.
+ * @param urlsToCheck                  The URLs to check the content length of.
+ *                                     Long lists are better kept in
+ *                                     <code>urlsFile</code>.
+ * @param roleIDToPing                 The ID of the role to ping when documents
+ *                                     are updated. If it is blank, no role will
+ *                                     be pinged.
+ * @param maxConcurrentRequests        The maximum number of HEAD requests that
+ *                                     may be in flight at once, across all hosts.
+ * @param maxConcurrentRequestsPerHost The maximum number of HEAD requests that
+ *                                     may be in flight at once to a single host.
+ * @param executionMode                The kind of threads web operations run on.
+ *                                     In {@link ExecutionMode#VIRTUAL} mode,
+ *                                     <code>maxConcurrentRequests</code> also caps
+ *                                     how many of them may run at once.
+ * @param connectionIdleTimeoutInMs    How long a pooled connection may sit idle
+ *                                     before it is closed.
+ * @param maxCheckIntervalInMs         The longest interval in milliseconds that
+ *                                     a document which hasn't changed in a while
+ *                                     may go without being checked.
+ * @param checkIntervalJitter          The fraction of each document's interval
+ *                                     (e.g. <code>0.1</code> for &plusmn;10%) to
+ *                                     randomly add or subtract, so that checks
+ *                                     are spread out over time.
+ * @param checkIntervalBounds          Per-URL overrides of the shortest and
+ *                                     longest check intervals, keyed by URL.
+ *                                     Keys are canonicalized like the URLs
+ *                                     to check.
+ * @param storageFormat                The format the snapshot of URL states is
+ *                                     stored in.
+ * @param shardIndex                   Which slice of <code>urlsToCheck</code>
+ *                                     this instance checks, from <code>0</code>
+ *                                     to <code>shardCount - 1</code>. It must
+ *                                     be set whenever <code>shardCount</code>
+ *                                     is, and the configuration is rejected
+ *                                     if it is missing or out of range.
+ * @param shardCount                   How many instances split
+ *                                     <code>urlsToCheck</code> between them.
+ *                                     <code>1</code> turns sharding off.
+ * @param shardDirectory               The directory, shared by all instances,
+ *                                     where each instance keeps the lease on
+ *                                     its slice.
+ * @param shardLeaseTimeoutInMs        How long a lease may go without being
+ *                                     renewed before another instance takes
+ *                                     over its slice.
+ * @param urlsFile                     The path of a file listing more URLs to
+ *                                     check, one per line, or <code>null</code>
+ *                                     if there is none. Files ending in
+ *                                     <code>.gz</code> are read as gzipped.
+ *                                     Blank lines and lines starting with
+ *                                     <code>#</code> are skipped.
+ * @param metricsPort                  The port to serve metrics on in the
+ *                                     Prometheus text format, at
+ *                                     <code>/metrics</code>, or <code>0</code>
+ *                                     to not serve them.
+ * @param metricsBindAddress           The address to serve metrics on. It's
+ *                                     the loopback address by default, since
+ *                                     the metrics aren't protected, so set it
+ *                                     to e.g. <code>"0.0.0.0"</code> only if
+ *                                     they must be scraped from elsewhere.
+ * @param connectTimeoutInMs           How long to wait for a connection to a
+ *                                     server to be established.
+ * @param readTimeoutInMs              How long to wait for a server to respond
+ *                                     once a request has been sent.
+ * @param cycleDeadlineInMs            How long a cycle may run before the checks
+ *                                     still outstanding are cancelled, or
+ *                                     <code>0</code> to let every check finish.
+ * @param overrunPolicy                What to do with URLs that come due while
+ *                                     a cycle is still running.
+ * @param hedgeRequests                Whether to send a HEAD request a second
+ *                                     time when it is slower than its host's
+ *                                     95th percentile, and use whichever
+ *                                     response arrives first.
+ * @param hedgeBudget                  The most hedged requests to send per
+ *                                     request, e.g. <code>0.05</code> for at
+ *                                     most 5% more requests.
+ * @param dnsCacheTtlInMs              How long a host that resolved is kept
+ *                                     before it is resolved again.
+ * @param dnsNegativeCacheTtlInMs      How long a host that failed to resolve
+ *                                     is skipped before it is tried again.
+ * @param webhookSubscriptions         Send changes to some URLs to other
+ *                                     webhooks, see {@link WebhookSubscription}.
+ *                                     Only changes that none of them match are
+ *                                     sent to <code>webhookURL</code>.
+ * @param webhookCoalesceWindowInMs    How long changes are gathered before
+ *                                     they are sent, so that the changes of
+ *                                     several cycles go out as one message,
+ *                                     or <code>0</code> to send them right
+ *                                     away.
  */
-public record Configuration(String webhookURL, Long checkIntervalInMs, String[] urlsToCheck, String roleIDToPing) {
+public record Configuration(String webhookURL, Long checkIntervalInMs, String[] urlsToCheck, String roleIDToPing,
+                            Integer maxConcurrentRequests, Integer maxConcurrentRequestsPerHost,
+                            ExecutionMode executionMode, Long connectionIdleTimeoutInMs,
+                            Long maxCheckIntervalInMs, Double checkIntervalJitter,
+                            Map<String, CheckIntervalBounds> checkIntervalBounds,
+                            StorageFormat storageFormat, Integer shardIndex, Integer shardCount,
+                            String shardDirectory, Long shardLeaseTimeoutInMs, String urlsFile,
+                            Integer metricsPort, String metricsBindAddress, Long connectTimeoutInMs, Long readTimeoutInMs,
+                            Long cycleDeadlineInMs, OverrunPolicy overrunPolicy, Boolean hedgeRequests,
+                            Double hedgeBudget, Long dnsCacheTtlInMs, Long dnsNegativeCacheTtlInMs,
+                            WebhookSubscription[] webhookSubscriptions, Long webhookCoalesceWindowInMs) {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The value used for <code>maxConcurrentRequests</code> when
+     * it is missing from the configuration file.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 64;
+
+    /**
+     * The value used for <code>maxConcurrentRequestsPerHost</code>
+     * when it is missing from the configuration file.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 6;
+
+    /**
+     * The value used for <code>connectionIdleTimeoutInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_CONNECTION_IDLE_TIMEOUT_IN_MS = 300_000L;
+
+    /**
+     * How many times <code>checkIntervalInMs</code> is used for
+     * <code>maxCheckIntervalInMs</code> when it is missing from
+     * the configuration file.
+     */
+    public static final long DEFAULT_MAX_CHECK_INTERVAL_MULTIPLIER = 16L;
+
+    /**
+     * The value used for <code>checkIntervalJitter</code> when
+     * it is missing from the configuration file.
+     */
+    public static final double DEFAULT_CHECK_INTERVAL_JITTER = 0.1;
+
+    /**
+     * The value used for <code>shardDirectory</code> when
+     * it is missing from the configuration file.
+     */
+    public static final String DEFAULT_SHARD_DIRECTORY = "shards";
+
+    /**
+     * The value used for <code>metricsBindAddress</code> when
+     * it is missing from the configuration file.
+     */
+    public static final String DEFAULT_METRICS_BIND_ADDRESS = "127.0.0.1";
+
+    /**
+     * The value used for <code>shardLeaseTimeoutInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_SHARD_LEASE_TIMEOUT_IN_MS = 30_000L;
+
+    /**
+     * The value used for <code>connectTimeoutInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT_IN_MS = 10_000L;
+
+    /**
+     * The value used for <code>readTimeoutInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_READ_TIMEOUT_IN_MS = 30_000L;
+
+    /**
+     * The value used for <code>hedgeBudget</code> when
+     * it is missing from the configuration file.
+     */
+    public static final double DEFAULT_HEDGE_BUDGET = 0.05;
+
+    /**
+     * The value used for <code>dnsCacheTtlInMs</code> when
+     * it is missing from the configuration file.
+     */
+    public static final long DEFAULT_DNS_CACHE_TTL_IN_MS = 300_000L;
+
+    /**
+     * The value used for <code>dnsNegativeCacheTtlInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_DNS_NEGATIVE_CACHE_TTL_IN_MS = 30_000L;
+
+    /**
+     * The value used for <code>webhookCoalesceWindowInMs</code>
+     * when it is missing from the configuration file.
+     */
+    public static final long DEFAULT_WEBHOOK_COALESCE_WINDOW_IN_MS = 60_000L;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * Fills in any settings that were missing from the
+     * configuration file, so that configuration files
+     * written by older versions keep working.
+     *
+     * @throws IllegalArgumentException If <code>shardIndex</code> is
+     *                                  missing or out of range while
+     *                                  sharding is on.
+     */
+    public Configuration {
+        if (urlsToCheck == null) {
+            urlsToCheck = new String[0];
+        }
+        if (maxConcurrentRequests == null || maxConcurrentRequests < 1) {
+            maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+        }
+        if (maxConcurrentRequestsPerHost == null || maxConcurrentRequestsPerHost < 1) {
+            maxConcurrentRequestsPerHost = DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST;
+        }
+        if (executionMode == null) {
+            executionMode = ExecutionMode.PLATFORM;
+        }
+        if (connectionIdleTimeoutInMs == null || connectionIdleTimeoutInMs < 1) {
+            connectionIdleTimeoutInMs = DEFAULT_CONNECTION_IDLE_TIMEOUT_IN_MS;
+        }
+        if (maxCheckIntervalInMs == null && checkIntervalInMs != null) {
+            maxCheckIntervalInMs = checkIntervalInMs * DEFAULT_MAX_CHECK_INTERVAL_MULTIPLIER;
+        }
+        if (checkIntervalJitter == null || checkIntervalJitter < 0 || checkIntervalJitter >= 1) {
+            checkIntervalJitter = DEFAULT_CHECK_INTERVAL_JITTER;
+        }
+        if (checkIntervalBounds == null) {
+            checkIntervalBounds = Map.of();
+        } else {
+            // Match the form URLs to check are looked up in
+            Map<String, CheckIntervalBounds> canonicalBounds = new HashMap<>();
+            checkIntervalBounds.forEach((url, bounds) -> {
+                String canonicalURL = URLCanonicalizer.canonicalize(url);
+                canonicalBounds.put((canonicalURL != null) ? canonicalURL : url, bounds);
+            });
+            checkIntervalBounds = canonicalBounds;
+        }
+        if (storageFormat == null) {
+            storageFormat = StorageFormat.JSON;
+        }
+        if (shardCount == null || shardCount < 1) {
+            shardCount = 1;
+        }
+        if (shardCount == 1) {
+            shardIndex = 0;
+        } else if (shardIndex == null || shardIndex < 0 || shardIndex >= shardCount) {
+            // Defaulting it would have two instances check the same slice
+            throw new IllegalArgumentException(String.format(
+                    "shardIndex must be set to a value from 0 to %d, since shardCount is %d, but it is %s!",
+                    shardCount - 1, shardCount, shardIndex));
+        }
+        if (shardDirectory == null || shardDirectory.isBlank()) {
+            shardDirectory = DEFAULT_SHARD_DIRECTORY;
+        }
+        if (shardLeaseTimeoutInMs == null || shardLeaseTimeoutInMs < 1) {
+            shardLeaseTimeoutInMs = DEFAULT_SHARD_LEASE_TIMEOUT_IN_MS;
+        }
+        if (metricsPort == null || metricsPort < 0 || metricsPort > 65_535) {
+            metricsPort = 0;
+        }
+        if (metricsBindAddress == null || metricsBindAddress.isBlank()) {
+            metricsBindAddress = DEFAULT_METRICS_BIND_ADDRESS;
+        }
+        if (connectTimeoutInMs == null || connectTimeoutInMs < 1) {
+            connectTimeoutInMs = DEFAULT_CONNECT_TIMEOUT_IN_MS;
+        }
+        if (readTimeoutInMs == null || readTimeoutInMs < 1) {
+            readTimeoutInMs = DEFAULT_READ_TIMEOUT_IN_MS;
+        }
+        if (cycleDeadlineInMs == null || cycleDeadlineInMs < 0) {
+            cycleDeadlineInMs = 0L;
+        }
+        if (overrunPolicy == null) {
+            overrunPolicy = OverrunPolicy.COALESCE;
+        }
+        if (hedgeRequests == null) {
+            hedgeRequests = false;
+        }
+        if (hedgeBudget == null || hedgeBudget < 0 || hedgeBudget > 1) {
+            hedgeBudget = DEFAULT_HEDGE_BUDGET;
+        }
+        if (dnsCacheTtlInMs == null || dnsCacheTtlInMs < 1) {
+            dnsCacheTtlInMs = DEFAULT_DNS_CACHE_TTL_IN_MS;
+        }
+        if (dnsNegativeCacheTtlInMs == null || dnsNegativeCacheTtlInMs < 1) {
+            dnsNegativeCacheTtlInMs = DEFAULT_DNS_NEGATIVE_CACHE_TTL_IN_MS;
+        }
+        if (webhookSubscriptions == null) {
+            webhookSubscriptions = new WebhookSubscription[0];
+        }
+        if (webhookCoalesceWindowInMs == null || webhookCoalesceWindowInMs < 0) {
+            webhookCoalesceWindowInMs = DEFAULT_WEBHOOK_COALESCE_WINDOW_IN_MS;
+        }
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * @param url The URL to look up.
+     * @return The shortest interval at which the URL may be checked.
+     */
+    public long minCheckIntervalInMsFor(String url) {
+        CheckIntervalBounds bounds = this.checkIntervalBounds.get(url);
+        return (bounds != null && bounds.minIntervalInMs() != null) ? bounds.minIntervalInMs() : this.checkIntervalInMs;
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return The longest interval the URL may go without being checked.
+     */
+    public long maxCheckIntervalInMsFor(String url) {
+        CheckIntervalBounds bounds = this.checkIntervalBounds.get(url);
+        long max = (bounds != null && bounds.maxIntervalInMs() != null) ? bounds.maxIntervalInMs() : this.maxCheckIntervalInMs;
+        return Math.max(max, minCheckIntervalInMsFor(url));
+    }
+
+    /* ---------- STATIC METHODS ---------- */
 
     /**
      * - <code>webhookURL</code> = <code>"https://discord.com/"</code><br>
      * - <code>checkIntervalInMs</code> = <code>60000</code><br>
      * - <code>urlsToCheck</code> = <code>["https://cs.fit.edu/~dmitra/ArtInt/Spr2024/AI-PlanSp2024.doc"]</code><br>
-     * - <code>roleIDToPing</code> = <code>""</code>
+     * - <code>roleIDToPing</code> = <code>""</code><br>
+     * - <code>maxConcurrentRequests</code> = <code>64</code><br>
+     * - <code>maxConcurrentRequestsPerHost</code> = <code>6</code><br>
+     * - <code>executionMode</code> = <code>"PLATFORM"</code><br>
+     * - <code>connectionIdleTimeoutInMs</code> = <code>300000</code><br>
+     * - <code>maxCheckIntervalInMs</code> = <code>960000</code><br>
+     * - <code>checkIntervalJitter</code> = <code>0.1</code><br>
+     * - <code>checkIntervalBounds</code> = <code>{}</code><br>
+     * - <code>storageFormat</code> = <code>"JSON"</code><br>
+     * - <code>shardIndex</code> = <code>0</code><br>
+     * - <code>shardCount</code> = <code>1</code><br>
+     * - <code>shardDirectory</code> = <code>"shards"</code><br>
+     * - <code>shardLeaseTimeoutInMs</code> = <code>30000</code><br>
+     * - <code>urlsFile</code> = <code>null</code><br>
+     * - <code>metricsPort</code> = <code>0</code><br>
+     * - <code>metricsBindAddress</code> = <code>"127.0.0.1"</code><br>
+     * - <code>connectTimeoutInMs</code> = <code>10000</code><br>
+     * - <code>readTimeoutInMs</code> = <code>30000</code><br>
+     * - <code>cycleDeadlineInMs</code> = <code>0</code><br>
+     * - <code>overrunPolicy</code> = <code>"COALESCE"</code><br>
+     * - <code>hedgeRequests</code> = <code>false</code><br>
+     * - <code>hedgeBudget</code> = <code>0.05</code><br>
+     * - <code>dnsCacheTtlInMs</code> = <code>300000</code><br>
+     * - <code>dnsNegativeCacheTtlInMs</code> = <code>30000</code><br>
+     * - <code>webhookSubscriptions</code> = <code>[]</code><br>
+     * - <code>webhookCoalesceWindowInMs</code> = <code>60000</code>
      *
      * @return The default state of the configuration.
      */
@@ -30,7 +367,32 @@ public record Configuration(String webhookURL, Long checkIntervalInMs, String[]
                 new String[]{
                         "https://cs.fit.edu/~dmitra/ArtInt/Spr2024/AI-PlanSp2024.doc"
                 },
-                ""
+                "",
+                DEFAULT_MAX_CONCURRENT_REQUESTS,
+                DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST,
+                ExecutionMode.PLATFORM,
+                DEFAULT_CONNECTION_IDLE_TIMEOUT_IN_MS,
+                60_000L * DEFAULT_MAX_CHECK_INTERVAL_MULTIPLIER,
+                DEFAULT_CHECK_INTERVAL_JITTER,
+                Map.of(),
+                StorageFormat.JSON,
+                0,
+                1,
+                DEFAULT_SHARD_DIRECTORY,
+                DEFAULT_SHARD_LEASE_TIMEOUT_IN_MS,
+                null,
+                0,
+                DEFAULT_METRICS_BIND_ADDRESS,
+                DEFAULT_CONNECT_TIMEOUT_IN_MS,
+                DEFAULT_READ_TIMEOUT_IN_MS,
+                0L,
+                OverrunPolicy.COALESCE,
+                false,
+                DEFAULT_HEDGE_BUDGET,
+                DEFAULT_DNS_CACHE_TTL_IN_MS,
+                DEFAULT_DNS_NEGATIVE_CACHE_TTL_IN_MS,
+                new WebhookSubscription[0],
+                DEFAULT_WEBHOOK_COALESCE_WINDOW_IN_MS
         );
     }
 
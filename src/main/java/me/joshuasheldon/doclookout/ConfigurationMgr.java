@@ -1,8 +1,16 @@
 package me.joshuasheldon.doclookout;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.ValueInstantiationException;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Creates the configuration file if it doesn't already exist,
@@ -67,10 +75,124 @@ public class ConfigurationMgr {
             return null;
         }
 
+        return readConfiguration();
+
+    }
+
+    /**
+     * Reads the configuration file again after it changed.
+     * Unlike {@link #getConfiguration()}, a missing file is
+     * left alone rather than replaced by the default one.
+     *
+     * @return The configuration object, or <code>null</code>
+     * if the configuration file does not exist or if there
+     * was an issue loading it.
+     */
+    public synchronized Configuration reloadConfiguration() {
+
+        if (!this.configFile.exists()) {
+            System.err.println("The configuration file is gone!");
+            return null;
+        }
+
+        return readConfiguration();
+
+    }
+
+    /**
+     * Streams every URL to check, first from <code>urlsToCheck</code>
+     * and then from <code>urlsFile</code>, into the given consumer. The
+     * file is read one line at a time, so it is never held in memory
+     * as a whole, no matter how long it is. Every URL is canonicalized
+     * on the way in. Duplicates are left to the consumer, which already
+     * knows which URLs it has seen (e.g. the scheduler), so that they
+     * are skipped without keeping another set of every URL.
+     *
+     * @param config   The configuration to take the URLs from.
+     * @param consumer Receives each canonical URL, and returns whether
+     *                 it kept it.
+     * @return The number of URLs the consumer kept.
+     */
+    public int forEachURLToCheck(Configuration config, Predicate<String> consumer) {
+
+        int keptURLs = 0;
+
+        for (String url : config.urlsToCheck()) {
+
+            String canonicalURL = URLCanonicalizer.canonicalize(url);
+
+            if (canonicalURL == null) {
+                System.err.println("Invalid URL in the configuration file: " + url);
+            } else if (consumer.test(canonicalURL)) {
+                keptURLs++;
+            }
+
+        }
+
+        if (config.urlsFile() != null) {
+
+            File urlsFile = new File(config.urlsFile());
+
+            // Gzipped files are decompressed as they're read
+            try (InputStream fileStream = new FileInputStream(urlsFile);
+                 InputStream inputStream = urlsFile.getName().endsWith(".gz") ? new GZIPInputStream(fileStream) : fileStream;
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+
+                    // Skip blank lines and comments
+                    if (line.isBlank() || line.stripLeading().startsWith("#")) {
+                        continue;
+                    }
+
+                    String canonicalURL = URLCanonicalizer.canonicalize(line);
+
+                    if (canonicalURL == null) {
+                        System.err.println("Invalid URL in the URLs file: " + line);
+                    } else if (consumer.test(canonicalURL)) {
+                        keptURLs++;
+                    }
+
+                }
+
+            } catch (Exception e) {
+                System.err.println("Failed to read URLs from the URLs file!");
+                e.printStackTrace();
+            }
+
+        }
+
+        return keptURLs;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * @return The configuration object read from the configuration
+     * file, or <code>null</code> if there was an issue loading it.
+     */
+    private Configuration readConfiguration() {
+
         Configuration config;
 
         try {
             config = this.objectMapper.readValue(this.configFile, Configuration.class);
+        } catch (ValueInstantiationException e) {
+
+            // A setting was rejected, which its message
+            // explains better than a stack trace
+            if (e.getCause() instanceof IllegalArgumentException) {
+                System.err.println("Invalid configuration in config file: " + e.getCause().getMessage());
+            } else {
+                System.err.println("Failed to read configuration from config file!");
+                e.printStackTrace();
+            }
+
+            return null;
+
         } catch (Exception e) {
             System.err.println("Failed to read configuration from config file!");
             e.printStackTrace();
@@ -81,8 +203,6 @@ public class ConfigurationMgr {
 
     }
 
-    /* ---------- PRIVATE METHODS ---------- */
-
     /**
      * Deletes the current configuration file (if it exists)
      * and writes a new one using the default values.
@@ -0,0 +1,260 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the configuration file (and the URLs file, if there is
+ * one) for changes, and hands every successfully reloaded
+ * configuration to a listener. Editors often save a file in
+ * several steps, so changes are only acted on once the files
+ * have been quiet for a moment.
+ */
+public class ConfigurationWatcher {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How long the watched files must go without changing
+     * before the configuration is reloaded.
+     */
+    private static final long QUIET_PERIOD_IN_MS = 500L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The configuration file.
+     */
+    private final Path configPath;
+
+    /**
+     * Receives every configuration that was reloaded successfully.
+     * Set by {@link #start(Configuration, Consumer)}, before the
+     * watcher thread starts.
+     */
+    private Consumer<Configuration> listener;
+
+    /**
+     * The directories we already watch.
+     */
+    private final Set<Path> watchedDirectories;
+
+    /**
+     * The thread that waits for changes and reloads the configuration.
+     */
+    private final Thread thread;
+
+    /**
+     * Tells us about changes in the watched directories, or
+     * <code>null</code> if watching couldn't be set up.
+     */
+    private WatchService watchService;
+
+    /**
+     * The URLs file of the current configuration, or
+     * <code>null</code> if there is none.
+     */
+    private volatile Path urlsPath;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param configFile The configuration file to watch.
+     */
+    public ConfigurationWatcher(File configFile) {
+        this.configPath = configFile.toPath().toAbsolutePath().normalize();
+        this.listener = null;
+        this.watchedDirectories = new HashSet<>();
+        this.thread = new Thread(this::run, "DocLookout-ConfigWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Starts watching the configuration file, and the
+     * URLs file of the given configuration.
+     *
+     * @param config   The configuration currently in use.
+     * @param listener Receives every configuration that was
+     *                 reloaded successfully.
+     */
+    public void start(Configuration config, Consumer<Configuration> listener) {
+
+        this.listener = listener;
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            watchDirectoryOf(this.configPath);
+            watchURLsFileOf(config);
+        } catch (Exception e) {
+            System.err.println("Failed to watch the configuration file, changes will need a restart!");
+            e.printStackTrace();
+            return;
+        }
+
+        this.thread.start();
+
+    }
+
+    /**
+     * Stops watching for changes, and waits for a reloaded
+     * configuration that is being applied.
+     */
+    public void stop() {
+
+        if (this.watchService == null) {
+            return;
+        }
+
+        try {
+            this.watchService.close();
+        } catch (Exception e) {
+            System.err.println("Failed to stop watching the configuration file!");
+            e.printStackTrace();
+        }
+
+        // Let a reload that is being applied finish,
+        // so that it doesn't race the rest of the shutdown
+        try {
+            if (Thread.currentThread() != this.thread) {
+                this.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * The body of the watcher thread.
+     */
+    private void run() {
+
+        try {
+
+            while (true) {
+
+                // Wait for a change to one of our files, then
+                // keep waiting until they have been quiet a while
+                if (!drainEvents(this.watchService.take())) {
+                    continue;
+                }
+
+                WatchKey key;
+
+                while ((key = this.watchService.poll(QUIET_PERIOD_IN_MS, TimeUnit.MILLISECONDS)) != null) {
+                    drainEvents(key);
+                }
+
+                Configuration config = ConfigurationMgr.getInstance().reloadConfiguration();
+
+                if (config == null) {
+                    System.err.println("Keeping the current configuration!");
+                    continue;
+                }
+
+                // The URLs file may have moved
+                try {
+                    watchURLsFileOf(config);
+                } catch (Exception e) {
+                    System.err.println("Failed to watch the URLs file, changes to it will need a reload!");
+                    e.printStackTrace();
+                }
+
+                try {
+                    this.listener.accept(config);
+                } catch (Exception e) {
+                    System.err.println("Failed to apply the reloaded configuration!");
+                    e.printStackTrace();
+                }
+
+            }
+
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Stopped
+        } catch (Exception e) {
+            System.err.println("Stopped watching the configuration file!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Takes every event off the given key and resets it.
+     *
+     * @return Whether any event was about one of our files.
+     */
+    private boolean drainEvents(WatchKey key) {
+
+        Path directory = (Path) key.watchable();
+        Path urlsPath = this.urlsPath;
+        boolean relevant = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+
+            // We may have missed events, so assume the worst
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+                continue;
+            }
+
+            Path changedPath = directory.resolve((Path) event.context());
+
+            if (changedPath.equals(this.configPath) || changedPath.equals(urlsPath)) {
+                relevant = true;
+            }
+
+        }
+
+        key.reset();
+
+        return relevant;
+
+    }
+
+    /**
+     * Starts watching the URLs file of the given configuration.
+     */
+    private void watchURLsFileOf(Configuration config) throws Exception {
+
+        if (config.urlsFile() == null) {
+            this.urlsPath = null;
+            return;
+        }
+
+        this.urlsPath = new File(config.urlsFile()).toPath().toAbsolutePath().normalize();
+        watchDirectoryOf(this.urlsPath);
+
+    }
+
+    /**
+     * Starts watching the directory holding the given
+     * file, since only directories can be watched.
+     */
+    private void watchDirectoryOf(Path path) throws Exception {
+
+        Path directory = path.getParent();
+
+        if (directory == null || !this.watchedDirectories.add(directory)) {
+            return;
+        }
+
+        directory.register(this.watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    }
+
+}
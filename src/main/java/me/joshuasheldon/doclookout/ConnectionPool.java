@@ -0,0 +1,317 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Owns the single {@link HttpClient} that all of DocLookout's
+ * web operations share, so that connections to a host are kept
+ * alive and reused across checks, webhook posts and cycles
+ * instead of paying for a new TCP and TLS handshake every time.
+ * Where the server supports it, requests to the same host are
+ * multiplexed over one HTTP/2 connection.
+ * <p>
+ * The client's own pool isn't observable, so this class also
+ * keeps per-host statistics. A request counts as a pool hit
+ * when an exchange with its host finished within the idle
+ * timeout, meaning the client still had a live connection to
+ * hand out.
+ * <p>
+ * Connections time out if they can't be established within the
+ * connect timeout, and requests time out if the server doesn't
+ * respond within the read timeout, so that a hanging server can
+ * only hold up its own requests.
+ */
+public class ConnectionPool {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The system property the JDK's HTTP client reads its
+     * HTTP/1.1 idle connection timeout (in seconds) from.
+     */
+    private static final String KEEP_ALIVE_TIMEOUT_PROPERTY = "jdk.httpclient.keepalive.timeout";
+
+    /**
+     * The system property newer JDKs read the HTTP/2 idle
+     * connection timeout (in seconds) from.
+     */
+    private static final String KEEP_ALIVE_TIMEOUT_H2_PROPERTY = "jdk.httpclient.keepalive.timeout.h2";
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * How long a connection may sit idle before it is evicted.
+     */
+    private final long idleTimeoutInMs;
+
+    /**
+     * How long a request may wait for its response, unless
+     * it was built with a timeout of its own.
+     */
+    private final Duration readTimeout;
+
+    /**
+     * The executor the HTTP client runs its response
+     * handlers on.
+     */
+    private final ExecutorService clientExecutor;
+
+    /**
+     * The client used to send all HTTP(S) requests.
+     */
+    private final HttpClient httpClient;
+
+    /**
+     * The statistics of every host used within the idle timeout.
+     */
+    private final Map<String, HostStats> hosts;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config The configuration to take the idle
+     *               timeout and the timeouts from.
+     */
+    public ConnectionPool(Configuration config) {
+
+        this.idleTimeoutInMs = config.connectionIdleTimeoutInMs();
+        this.readTimeout = Duration.ofMillis(config.readTimeoutInMs());
+
+        // The client reads these once, when its pool is first
+        // created, so they have to be set before it is built
+        String idleTimeoutInSeconds = String.valueOf(Math.max(1, this.idleTimeoutInMs / 1000));
+        System.setProperty(KEEP_ALIVE_TIMEOUT_PROPERTY, idleTimeoutInSeconds);
+        System.setProperty(KEEP_ALIVE_TIMEOUT_H2_PROPERTY, idleTimeoutInSeconds);
+
+        // The client only uses its executor to run response
+        // handlers, so a cached pool stays small in practice
+        this.clientExecutor = Executors.newCachedThreadPool();
+
+        this.httpClient = HttpClient.newBuilder()
+                .executor(this.clientExecutor)
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(config.connectTimeoutInMs()))
+                .build();
+        this.hosts = new ConcurrentHashMap<>();
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Sends a request asynchronously over a pooled connection.
+     *
+     * @param request     The request to send.
+     * @param bodyHandler The handler for the response body.
+     * @param <T>         The type of the response body.
+     * @return A future containing the response.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                            HttpResponse.BodyHandler<T> bodyHandler) {
+
+        HostStats stats = recordRequest(request.uri());
+
+        return this.httpClient.sendAsync(withReadTimeout(request), bodyHandler)
+                .whenComplete((response, throwable) -> recordResponse(stats, response));
+
+    }
+
+    /**
+     * Sends a request over a pooled connection, blocking
+     * until the response arrives.
+     *
+     * @param request     The request to send.
+     * @param bodyHandler The handler for the response body.
+     * @param <T>         The type of the response body.
+     * @return The response.
+     * @throws IOException          If the request fails.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+
+        HostStats stats = recordRequest(request.uri());
+        HttpResponse<T> response = null;
+
+        try {
+            response = this.httpClient.send(withReadTimeout(request), bodyHandler);
+            return response;
+        } finally {
+            recordResponse(stats, response);
+        }
+
+    }
+
+    /**
+     * Forgets the statistics of hosts that have been idle for
+     * longer than the idle timeout (their connections have been
+     * closed by now), then logs a summary of the rest.
+     */
+    public void logStats() {
+
+        evictIdleHosts();
+
+        long requests = 0;
+        long hits = 0;
+        long http2Responses = 0;
+
+        for (HostStats stats : this.hosts.values()) {
+            requests += stats.requests.sumThenReset();
+            hits += stats.hits.sumThenReset();
+            http2Responses += stats.http2Responses.sumThenReset();
+        }
+
+        if (requests == 0) {
+            return;
+        }
+
+        System.out.printf("Connection pool: %d/%d requests reused a connection, %d used HTTP/2, %d host(s) kept warm.%n",
+                hits, requests, http2Responses, this.hosts.size());
+
+    }
+
+    /**
+     * @return A snapshot of the per-host statistics, keyed by host.
+     */
+    public Map<String, HostStats> getHostStats() {
+        return Map.copyOf(this.hosts);
+    }
+
+    /**
+     * Stops the pool by shutting down the executor behind
+     * the HTTP client.
+     */
+    public void stop() {
+        this.clientExecutor.shutdown();
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * @param request The request about to be sent.
+     * @return The request, with the read timeout if
+     * it wasn't built with a timeout of its own.
+     */
+    private HttpRequest withReadTimeout(HttpRequest request) {
+
+        if (request.timeout().isPresent()) {
+            return request;
+        }
+
+        return HttpRequest.newBuilder(request, (name, value) -> true).timeout(this.readTimeout).build();
+
+    }
+
+    /**
+     * Counts a request against its host, and counts it as a
+     * pool hit if an earlier exchange with the host finished
+     * recently enough that its connection is still open.
+     */
+    private HostStats recordRequest(URI uri) {
+
+        String host = uri.getScheme() + "://" + uri.getAuthority();
+        long now = System.currentTimeMillis();
+
+        HostStats stats = this.hosts.computeIfAbsent(host, key -> new HostStats());
+        stats.requests.increment();
+
+        if (now - stats.lastUsedAtMs <= this.idleTimeoutInMs) {
+            stats.hits.increment();
+        }
+
+        stats.inFlight.increment();
+
+        return stats;
+
+    }
+
+    /**
+     * Records the end of an exchange with a host.
+     */
+    private void recordResponse(HostStats stats, HttpResponse<?> response) {
+
+        stats.inFlight.decrement();
+        stats.lastUsedAtMs = System.currentTimeMillis();
+
+        if (response != null && response.version() == HttpClient.Version.HTTP_2) {
+            stats.http2Responses.increment();
+        }
+
+    }
+
+    /**
+     * Removes the statistics of hosts that have been idle for
+     * longer than the idle timeout.
+     */
+    private void evictIdleHosts() {
+
+        long now = System.currentTimeMillis();
+        Iterator<HostStats> iterator = this.hosts.values().iterator();
+
+        while (iterator.hasNext()) {
+            HostStats stats = iterator.next();
+            if (stats.inFlight.sum() == 0 && now - stats.lastUsedAtMs > this.idleTimeoutInMs) {
+                iterator.remove();
+            }
+        }
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The statistics of a single host since they were last logged.
+     */
+    public static final class HostStats {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder http2Responses = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private volatile long lastUsedAtMs = Long.MIN_VALUE / 2;
+
+        /**
+         * @return The number of requests sent to the host.
+         */
+        public long getRequests() {
+            return this.requests.sum();
+        }
+
+        /**
+         * @return The number of requests that reused a connection.
+         */
+        public long getHits() {
+            return this.hits.sum();
+        }
+
+        /**
+         * @return The number of responses that came over HTTP/2.
+         */
+        public long getHttp2Responses() {
+            return this.http2Responses.sum();
+        }
+
+        /**
+         * @return When an exchange with the host last finished,
+         * in epoch milliseconds.
+         */
+        public long getLastUsedAtMs() {
+            return this.lastUsedAtMs;
+        }
+
+    }
+
+}
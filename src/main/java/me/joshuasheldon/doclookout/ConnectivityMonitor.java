@@ -0,0 +1,222 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Infers whether the Internet and each host are reachable from
+ * the outcomes of the checks themselves, rather than probing
+ * them before every cycle.
+ * <p>
+ * Each host has its own circuit breaker. After a few requests
+ * in a row fail to reach a host, its breaker opens, and its
+ * remaining URLs are skipped instead of each waiting out a
+ * connect timeout. Once the breaker has been open for a while,
+ * a single request is let through to see if the host is back.
+ * <p>
+ * When requests to several different hosts fail without any
+ * request succeeding in between, the Internet is presumed to
+ * be down. That verdict is cached for a while, after which
+ * the next cycle goes ahead and serves as the probe.
+ */
+public class ConnectivityMonitor {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many requests in a row must fail to reach
+     * a host before its breaker opens.
+     */
+    private static final int FAILURES_BEFORE_OPENING = 3;
+
+    /**
+     * How long a breaker stays open before a request
+     * is let through to try the host again.
+     */
+    private static final long OPEN_DURATION_IN_MS = 60_000L;
+
+    /**
+     * How many different hosts must fail to be reached, with no
+     * request succeeding in between, before the Internet is
+     * presumed to be down.
+     */
+    private static final int FAILED_HOSTS_BEFORE_OFFLINE = 3;
+
+    /**
+     * How long the Internet is presumed to be down before
+     * the next cycle is allowed to find out for itself.
+     */
+    private static final long OFFLINE_TTL_IN_MS = 30_000L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The breaker of each host we've failed to reach
+     * since last reaching it.
+     */
+    private final Map<String, CircuitBreaker> breakers;
+
+    /**
+     * The hosts we've failed to reach since any request last succeeded.
+     */
+    private final Set<String> failedHosts;
+
+    /**
+     * When the Internet was presumed to be down, or
+     * <code>0</code> if it isn't.
+     */
+    private long offlineSinceMs;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public ConnectivityMonitor() {
+        this.breakers = new HashMap<>();
+        this.failedHosts = new HashSet<>();
+        this.offlineSinceMs = 0;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Decides whether a request to the given host should be sent.
+     * If the host's breaker has been open long enough, this lets
+     * a single request through, and the breaker stays shut to
+     * every other request until that one's outcome is recorded.
+     *
+     * @param host The host the request would go to.
+     * @return Whether to send the request.
+     */
+    public synchronized boolean allowRequest(String host) {
+
+        CircuitBreaker breaker = this.breakers.get(host);
+
+        if (breaker == null || breaker.openedAtMs == 0) {
+            return true;
+        }
+
+        if (breaker.trialInFlight || System.currentTimeMillis() - breaker.openedAtMs < OPEN_DURATION_IN_MS) {
+            return false;
+        }
+
+        breaker.trialInFlight = true;
+        return true;
+
+    }
+
+    /**
+     * Records that a request reached the given host,
+     * whatever the response was.
+     *
+     * @param host The host that was reached.
+     */
+    public synchronized void recordSuccess(String host) {
+
+        CircuitBreaker breaker = this.breakers.remove(host);
+
+        if (breaker != null && breaker.openedAtMs != 0) {
+            System.out.println("Reached " + host + " again, no longer skipping it.");
+        }
+
+        this.failedHosts.clear();
+        this.offlineSinceMs = 0;
+
+    }
+
+    /**
+     * Records that a request failed to reach the given host.
+     *
+     * @param host The host that couldn't be reached.
+     */
+    public synchronized void recordFailure(String host) {
+
+        long now = System.currentTimeMillis();
+        CircuitBreaker breaker = this.breakers.computeIfAbsent(host, key -> new CircuitBreaker());
+
+        breaker.consecutiveFailures++;
+
+        // A failed trial keeps the breaker open for another round
+        if (breaker.trialInFlight) {
+            breaker.trialInFlight = false;
+            breaker.openedAtMs = now;
+        } else if (breaker.openedAtMs == 0 && breaker.consecutiveFailures >= FAILURES_BEFORE_OPENING) {
+            breaker.openedAtMs = now;
+            System.err.printf("Failed to reach %s %d times in a row, skipping it for %d ms.%n",
+                    host, breaker.consecutiveFailures, OPEN_DURATION_IN_MS);
+        }
+
+        this.failedHosts.add(host);
+
+        if (this.offlineSinceMs == 0 && this.failedHosts.size() >= FAILED_HOSTS_BEFORE_OFFLINE) {
+            this.offlineSinceMs = now;
+        }
+
+    }
+
+    /**
+     * Records that a request to the given host was cancelled before
+     * its outcome was known, which says nothing about the host. If
+     * it was the request let through to try the host again, the next
+     * request is let through in its place.
+     *
+     * @param host The host the request went to.
+     */
+    public synchronized void recordCancelled(String host) {
+
+        CircuitBreaker breaker = this.breakers.get(host);
+
+        if (breaker != null) {
+            breaker.trialInFlight = false;
+        }
+
+    }
+
+    /**
+     * @return Whether the Internet is presumed to be down. Once the
+     * verdict is old enough, it is forgotten, and this returns
+     * <code>false</code> until the failures pile up again.
+     */
+    public synchronized boolean isOffline() {
+
+        if (this.offlineSinceMs == 0) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() - this.offlineSinceMs < OFFLINE_TTL_IN_MS) {
+            return true;
+        }
+
+        this.failedHosts.clear();
+        this.offlineSinceMs = 0;
+
+        return false;
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The circuit breaker of a single host.
+     */
+    private static final class CircuitBreaker {
+
+        /**
+         * How many requests in a row have failed to reach the host.
+         */
+        private int consecutiveFailures;
+
+        /**
+         * When the breaker last opened, or <code>0</code> if it is closed.
+         */
+        private long openedAtMs;
+
+        /**
+         * Whether the one request let through to try
+         * the host again is still in flight.
+         */
+        private boolean trialInFlight;
+
+    }
+
+}
@@ -0,0 +1,319 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fingerprints documents whose headers can't tell us whether they
+ * changed, e.g. documents that are generated on the fly or sent
+ * in chunks, and so come without a <code>content-length</code>.
+ * <p>
+ * Only the first and last few KB of a document are fetched, with
+ * two <code>Range</code> requests, and hashed together with the
+ * total length the server reports. If the server ignores the
+ * range and sends the whole document, its first MB is hashed
+ * instead, and the rest is never downloaded, so that an endless
+ * document can't keep a check going. Either way, the body is
+ * hashed as it streams in and then dropped, so it is never held
+ * in memory.
+ */
+public class ContentFingerprinter {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many bytes are fetched from each end of a document.
+     */
+    private static final int EDGE_SIZE = 4_096;
+
+    /**
+     * The most bytes hashed of a single response. Only responses
+     * to servers that ignore the range come anywhere close.
+     */
+    private static final long MAX_HASHED_BYTES = 1_048_576L;
+
+    /**
+     * The algorithm the fingerprint is taken from.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The pool of connections used to send all requests.
+     */
+    private final ConnectionPool connectionPool;
+
+    /**
+     * Whether requests are sent with the blocking API, because
+     * we're called from virtual threads.
+     */
+    private final boolean blocking;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param connectionPool The pool of connections to send
+     *                       requests over.
+     * @param blocking       Whether to send requests with the
+     *                       blocking API, in which case the returned
+     *                       futures are already complete.
+     */
+    public ContentFingerprinter(ConnectionPool connectionPool, boolean blocking) {
+        this.connectionPool = connectionPool;
+        this.blocking = blocking;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Fingerprints the document at the given URI.
+     *
+     * @param uri The HTTP(S) URI of the document.
+     * @return A future containing the fingerprint, or an exception
+     * if the document couldn't be fetched. Cancelling it aborts
+     * the range request under way.
+     */
+    public CompletableFuture<Long> fingerprint(URI uri) {
+
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Long> fingerprint = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<?>> sent = new AtomicReference<>();
+
+        // Cancelling a dependent future doesn't reach the
+        // future it depends on, so abort the request by hand
+        fingerprint.whenComplete((value, throwable) -> {
+            CompletableFuture<?> request = sent.get();
+            if (fingerprint.isCancelled() && request != null) {
+                request.cancel(true);
+            }
+        });
+
+        send(buildRangeRequest(uri, "bytes=0-" + (EDGE_SIZE - 1)), digest, fingerprint, sent).thenCompose(head -> {
+
+            // The server ignored the range and we hashed the whole document
+            if (head.statusCode() == 200) {
+                return CompletableFuture.completedFuture(toFingerprint(digest, -1));
+            }
+
+            // Nothing to fetch from an empty document
+            if (head.statusCode() == 416) {
+                return CompletableFuture.completedFuture(toFingerprint(digest, 0));
+            }
+
+            if (head.statusCode() != 206) {
+                return CompletableFuture.failedFuture(new IOException(
+                        "Range request to " + uri + " failed with status " + head.statusCode()));
+            }
+
+            long totalLength = totalLengthOf(head);
+
+            // The first range already covered the whole document
+            if (totalLength >= 0 && totalLength <= EDGE_SIZE) {
+                return CompletableFuture.completedFuture(toFingerprint(digest, totalLength));
+            }
+
+            return send(buildRangeRequest(uri, "bytes=-" + EDGE_SIZE), digest, fingerprint, sent).thenApply(tail -> {
+
+                if (tail.statusCode() != 200 && tail.statusCode() != 206) {
+                    throw new CompletionException(new IOException(
+                            "Range request to " + uri + " failed with status " + tail.statusCode()));
+                }
+
+                return toFingerprint(digest, totalLength);
+
+            });
+
+        }).whenComplete((value, throwable) -> {
+            if (throwable != null) {
+                fingerprint.completeExceptionally(throwable);
+            } else {
+                fingerprint.complete(value);
+            }
+        });
+
+        return fingerprint;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Sends a request for a fingerprint, keeping it as the request
+     * under way, so that it is aborted if the fingerprint is cancelled.
+     */
+    private CompletableFuture<HttpResponse<Void>> send(HttpRequest request, MessageDigest digest,
+                                                       CompletableFuture<Long> fingerprint,
+                                                       AtomicReference<CompletableFuture<?>> sent) {
+
+        CompletableFuture<HttpResponse<Void>> response = send(request, digest);
+        sent.set(response);
+
+        // It may have been cancelled before the request was kept
+        if (fingerprint.isCancelled()) {
+            response.cancel(true);
+        }
+
+        return response;
+
+    }
+
+    /**
+     * Sends a request, hashing the body of a successful response
+     * into the given digest as it arrives.
+     */
+    private CompletableFuture<HttpResponse<Void>> send(HttpRequest request, MessageDigest digest) {
+
+        // Error pages say nothing about the document, so they aren't hashed
+        HttpResponse.BodyHandler<Void> bodyHandler = responseInfo ->
+                (responseInfo.statusCode() == 200 || responseInfo.statusCode() == 206)
+                        ? new DigestingSubscriber(digest)
+                        : HttpResponse.BodySubscribers.discarding();
+
+        if (!this.blocking) {
+            return this.connectionPool.sendAsync(request, bodyHandler);
+        }
+
+        try {
+            return CompletableFuture.completedFuture(this.connectionPool.send(request, bodyHandler));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param uri   The URI to request to.
+     * @param range The value of the <code>Range</code> header.
+     * @return A GET request for the given range of the document.
+     */
+    private static HttpRequest buildRangeRequest(URI uri, String range) {
+        return HttpRequest.newBuilder(uri)
+                .header("Range", range)
+                .GET()
+                .build();
+    }
+
+    /**
+     * @param response A <code>206 Partial Content</code> response.
+     * @return The total length of the document from the
+     * <code>Content-Range</code> header, or <code>-1</code>
+     * if the server didn't say.
+     */
+    private static long totalLengthOf(HttpResponse<?> response) {
+
+        String contentRange = response.headers().firstValue("content-range").orElse("");
+        int slash = contentRange.lastIndexOf('/');
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Finishes a digest, mixing in the total length of the document
+     * so that a change in the middle that alters the length is noticed.
+     *
+     * @return The first 8 bytes of the digest.
+     */
+    private static long toFingerprint(MessageDigest digest, long totalLength) {
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, totalLength));
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Hashes each chunk of a body as it arrives, then lets it go.
+     * Once {@link #MAX_HASHED_BYTES} have been hashed, the rest of
+     * the body is cancelled and the body counts as complete.
+     */
+    private static final class DigestingSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private final MessageDigest digest;
+        private final CompletableFuture<Void> body;
+        private Flow.Subscription subscription;
+        private long remainingBytes;
+
+        private DigestingSubscriber(MessageDigest digest) {
+            this.digest = digest;
+            this.body = new CompletableFuture<>();
+            this.subscription = null;
+            this.remainingBytes = MAX_HASHED_BYTES;
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return this.body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+
+            // Chunks may still arrive for a bit after cancelling
+            if (this.remainingBytes <= 0) {
+                return;
+            }
+
+            for (ByteBuffer buffer : buffers) {
+
+                int length = (int) Math.min(buffer.remaining(), this.remainingBytes);
+
+                buffer.limit(buffer.position() + length);
+                this.digest.update(buffer);
+                this.remainingBytes -= length;
+
+                if (this.remainingBytes <= 0) {
+                    this.subscription.cancel();
+                    this.body.complete(null);
+                    return;
+                }
+
+            }
+
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            this.body.complete(null);
+        }
+
+    }
+
+}
@@ -0,0 +1,222 @@
+package me.joshuasheldon.doclookout;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the hosts of a cycle up front, so that name resolution
+ * isn't on the path of every request. At the start of each cycle,
+ * every distinct host whose entry has expired is resolved in
+ * parallel. Hosts that resolve are kept for the TTL, and hosts that
+ * don't are kept for the negative TTL, during which their URLs are
+ * skipped instead of each waiting on the resolver again.
+ * <p>
+ * The HTTP client always resolves through {@link InetAddress},
+ * which has a cache of its own. Its TTLs are set to match ours,
+ * so that the client finds every pre-resolved host in it.
+ */
+public class DnsCache {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many hosts are resolved at once.
+     */
+    private static final int RESOLVER_THREADS = 16;
+
+    /**
+     * The longest a cycle waits for its hosts to be resolved.
+     * Hosts that take longer are left to the HTTP client.
+     */
+    private static final long MAX_PRE_RESOLUTION_WAIT_IN_MS = 5_000L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * How long a host that resolved is kept.
+     */
+    private final long ttlInMs;
+
+    /**
+     * How long a host that failed to resolve is kept.
+     */
+    private final long negativeTtlInMs;
+
+    /**
+     * The latest resolution of each host, keyed by host.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Runs the lookups, which block.
+     */
+    private final ExecutorService resolver;
+
+    /**
+     * How many requests found their host in the cache
+     * since the stats were last logged.
+     */
+    private final LongAdder hits;
+
+    /**
+     * How many requests didn't since the stats were last logged.
+     */
+    private final LongAdder misses;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * Must be created before anything resolves a host,
+     * since the JVM only reads its TTLs once.
+     *
+     * @param config The configuration to take the TTLs from.
+     */
+    public DnsCache(Configuration config) {
+
+        this.ttlInMs = config.dnsCacheTtlInMs();
+        this.negativeTtlInMs = config.dnsNegativeCacheTtlInMs();
+        this.entries = new ConcurrentHashMap<>();
+        this.resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "DocLookout-DNS");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+
+        Security.setProperty("networkaddress.cache.ttl", String.valueOf(Math.max(1, this.ttlInMs / 1000)));
+        Security.setProperty("networkaddress.cache.negative.ttl",
+                String.valueOf(Math.max(1, this.negativeTtlInMs / 1000)));
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Resolves every given host whose entry has expired, in
+     * parallel, and waits for them for a few seconds at most.
+     *
+     * @param hosts The distinct hosts a cycle is about to request.
+     */
+    public void preResolve(Collection<String> hosts) {
+
+        long now = System.currentTimeMillis();
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+
+        for (String host : hosts) {
+
+            Entry entry = this.entries.get(host);
+
+            if (entry == null || entry.expiresAtMs <= now) {
+                lookups.add(CompletableFuture.runAsync(() -> resolve(host), this.resolver));
+            }
+
+        }
+
+        if (lookups.isEmpty()) {
+            return;
+        }
+
+        try {
+            CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]))
+                    .get(MAX_PRE_RESOLUTION_WAIT_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.printf("Not every host resolved within %d ms, carrying on without them.%n",
+                    MAX_PRE_RESOLUTION_WAIT_IN_MS);
+        }
+
+    }
+
+    /**
+     * Looks up whether a host can be requested. Hosts that aren't
+     * in the cache (or have expired) are left to the HTTP client.
+     *
+     * @param host The host a request is about to go to.
+     * @return <code>false</code> if the host recently failed to resolve.
+     */
+    public boolean isResolvable(String host) {
+
+        Entry entry = this.entries.get(host);
+        boolean hit = entry != null && entry.expiresAtMs > System.currentTimeMillis();
+
+        if (hit) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+
+        Metrics.getInstance().recordDnsLookup(hit);
+
+        return !hit || entry.resolved;
+
+    }
+
+    /**
+     * Logs the hit rate since the last call, and how
+     * many hosts currently fail to resolve.
+     */
+    public void logStats() {
+
+        long hits = this.hits.sumThenReset();
+        long lookups = hits + this.misses.sumThenReset();
+
+        if (lookups == 0) {
+            return;
+        }
+
+        long unresolved = this.entries.values().stream().filter(entry -> !entry.resolved).count();
+
+        System.out.printf("DNS cache: %d/%d lookups hit (%.1f%%), %d host(s) failed to resolve.%n",
+                hits, lookups, 100.0 * hits / lookups, unresolved);
+
+    }
+
+    /**
+     * Stops the resolver threads.
+     */
+    public void stop() {
+        this.resolver.shutdownNow();
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Resolves a host, which also puts it in the JVM's cache,
+     * and remembers whether it resolved.
+     */
+    private void resolve(String host) {
+
+        try {
+            InetAddress.getAllByName(host);
+            this.entries.put(host, new Entry(true, System.currentTimeMillis() + this.ttlInMs));
+        } catch (UnknownHostException e) {
+            System.err.println("Failed to resolve " + host + ", skipping it for " + this.negativeTtlInMs + " ms.");
+            this.entries.put(host, new Entry(false, System.currentTimeMillis() + this.negativeTtlInMs));
+        } catch (Exception e) {
+            // Something other than the name is wrong, so
+            // leave the host to the HTTP client
+            this.entries.remove(host);
+        }
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The outcome of resolving a host, and when it expires.
+     */
+    private record Entry(boolean resolved, long expiresAtMs) {
+    }
+
+}
@@ -1,16 +1,29 @@
 package me.joshuasheldon.doclookout;
 
-import java.util.*;
-import java.util.concurrent.Future;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 public class DocLookout {
 
     /* ---------- INSTANCE VARIABLES ---------- */
 
     /**
-     * The configuration for the program.
+     * The configuration for the program. Replaced
+     * whenever the configuration file changes.
      */
-    private final Configuration config;
+    private volatile Configuration config;
+
+    /**
+     * The pool of connections shared by all web
+     * operations, so that connections to a host are
+     * reused across checks and cycles.
+     */
+    private final ConnectionPool connectionPool;
 
     /**
      * Class used to retrieve the size of a file
@@ -20,19 +33,73 @@ public class DocLookout {
     private final FilesizeRetriever filesizeRetriever;
 
     /**
-     * Class used to detect if the Internet is
-     * available for checking files and
-     * notifying webhooks.
+     * Carries the results of each cycle through
+     * storage and on to the webhook as they come in.
+     */
+    private final CheckPipeline checkPipeline;
+
+    /**
+     * Reloads the configuration whenever the
+     * configuration file or URLs file changes.
+     */
+    private final ConfigurationWatcher configurationWatcher;
+
+    /**
+     * Keeps every change seen to each document on disk.
+     */
+    private final ChangeHistory changeHistory;
+
+    /**
+     * Infers from the checks themselves whether the
+     * Internet and each host can be reached.
+     */
+    private final ConnectivityMonitor connectivityMonitor;
+
+    /**
+     * Resolves the hosts of each cycle before it starts.
+     */
+    private final DnsCache dnsCache;
+
+    /**
+     * Logs how often virtual threads were pinned to their
+     * carrier thread each cycle, or <code>null</code> if
+     * web operations run on platform threads.
+     */
+    private final PinningMonitor pinningMonitor;
+
+    /**
+     * Runs the cycles that check all URLs that are
+     * due, determine if any files have been updated,
+     * and notify the webhook if any files have been
+     * updated. Each URL has its own interval, which
+     * grows the longer its document goes unchanged.
      */
-    private final InternetChecker internetChecker;
+    private final CheckScheduler scheduler;
 
     /**
-     * Runs the task that checks all given URLs,
-     * determines if any files have been updated,
-     * and notifies the webhook if any files have
-     * been updated.
+     * Watches the documents behind <code>file:</code> URLs,
+     * and makes them due as soon as they change.
      */
-    private final Timer timer;
+    private final DocumentWatcher documentWatcher;
+
+    /**
+     * Serves the metrics to Prometheus, or <code>null</code>
+     * if <code>metricsPort</code> is <code>0</code>.
+     */
+    private final MetricsServer metricsServer;
+
+    /**
+     * Keeps every notification on disk until it has been
+     * delivered, so that none are lost to a crash or an outage.
+     */
+    private final NotificationOutbox notificationOutbox;
+
+    /**
+     * Decides which URLs this instance checks when
+     * <code>urlsToCheck</code> is split between several
+     * instances, or <code>null</code> if it isn't.
+     */
+    private final ShardCoordinator shardCoordinator;
 
     /**
      * Class used to notify the webhook if any
@@ -43,11 +110,44 @@ public class DocLookout {
     /* ---------- CONSTRUCTORS ---------- */
 
     public DocLookout() {
-        this.config = ConfigurationMgr.getInstance().getConfiguration();
-        this.filesizeRetriever = new FilesizeRetriever();
-        this.internetChecker = new InternetChecker();
-        this.timer = new Timer();
-        this.webhookNotifier = new WebhookNotifier();
+        this(ConfigurationMgr.getInstance().getConfiguration());
+    }
+
+    /**
+     * Package-private so that the load test can run
+     * DocLookout with a configuration of its own.
+     *
+     * @param config The configuration to run with, or <code>null</code>
+     *               if the configuration file couldn't be loaded.
+     */
+    DocLookout(Configuration config) {
+        this.config = config;
+
+        // If the configuration couldn't be loaded, start() bails out
+        // anyway, so the defaults are only here to keep stop() working
+        Configuration settings = (this.config != null) ? this.config : Configuration.getDefault();
+
+        // Before anything gets to resolve a host
+        this.dnsCache = new DnsCache(settings);
+
+        StorageMgr.initialize(settings);
+
+        this.connectionPool = new ConnectionPool(settings);
+        this.connectivityMonitor = new ConnectivityMonitor();
+        this.filesizeRetriever = new FilesizeRetriever(settings, this.connectionPool,
+                this.connectivityMonitor, this.dnsCache);
+        this.pinningMonitor = (settings.executionMode() == ExecutionMode.VIRTUAL) ? new PinningMonitor() : null;
+        this.metricsServer = (settings.metricsPort() > 0)
+                ? new MetricsServer(settings.metricsBindAddress(), settings.metricsPort()) : null;
+        this.notificationOutbox = new NotificationOutbox(settings);
+        this.changeHistory = new ChangeHistory(settings);
+        this.scheduler = new CheckScheduler(settings);
+        this.documentWatcher = new DocumentWatcher(this.scheduler::checkNow, this.scheduler::setUnwatched);
+        this.shardCoordinator = (settings.shardCount() > 1) ? new ShardCoordinator(settings) : null;
+        this.webhookNotifier = new WebhookNotifier(settings, this.connectionPool);
+        this.checkPipeline = new CheckPipeline(settings, this.filesizeRetriever,
+                this.notificationOutbox, this.changeHistory, this.webhookNotifier, this.scheduler::isScheduled);
+        this.configurationWatcher = new ConfigurationWatcher(new File(ConfigurationMgr.CONFIGURATION_FILE_NAME));
     }
 
     /* ---------- MAIN METHOD ---------- */
@@ -65,10 +165,9 @@ public class DocLookout {
 
     /**
      * Starts the program. This function simply schedules
-     * the task which checks the filesize of all the
-     * files linked by the URLs in the config, then
-     * updates the storage and notifies the webhook
-     * if any files have been updated.
+     * all the URLs in the config to be checked, and
+     * starts the scheduler, which runs a cycle whenever
+     * any of them come due.
      */
     public void start() {
 
@@ -83,76 +182,354 @@ public class DocLookout {
 
         System.out.println("DocLookout started!");
 
-        // Schedule the main logic loop
-        this.timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-
-                // Check if we can access the Internet,
-                // do not proceed if there is any issue
-                // with the process
-                try {
-                    boolean internetAvailable = internetChecker.isInternetAvailable().get();
-                    if (!internetAvailable) {
-                        System.err.println("The Internet is not available, not proceeding!");
-                        return;
-                    }
-                } catch (Exception e) {
-                    System.err.println("Failed to check if the Internet is available, not proceeding!");
-                    e.printStackTrace();
-                    return;
-                }
-
-                System.out.println("Checking for document changes...");
-
-                Future[] futures = new Future[config.urlsToCheck().length];
+        if (this.metricsServer != null) {
+            this.metricsServer.start();
+        }
 
-                // Start retrieving all file sizes
-                for (int i = 0; i < config.urlsToCheck().length; i++) {
-                    futures[i] = filesizeRetriever.retrieveFilesize(config.urlsToCheck()[i]);
-                }
+        replayOutbox();
 
-                Map<String, Long> newURLContentLengths = new HashMap<>();
+        if (this.shardCoordinator != null) {
+            this.shardCoordinator.start(new ShardListener());
+        }
 
-                // As they finish, add them to map
-                for (int i = 0; i < config.urlsToCheck().length; i++) {
-                    try {
-                        newURLContentLengths.put(config.urlsToCheck()[i], (Long) futures[i].get());
-                    } catch (Exception e) {
-                        System.err.println("Failed to retrieve filesize of " + config.urlsToCheck()[i] + "!");
-                        e.printStackTrace();
-                    }
-                }
+        this.documentWatcher.start();
 
-                System.out.printf("Successfully retrieved the content length of %d/%d URLs!%n",
-                        newURLContentLengths.size(), config.urlsToCheck().length);
+        // Schedule every URL we're responsible for,
+        // they're all due right away
+        int scheduledURLs = ConfigurationMgr.getInstance().forEachURLToCheck(this.config, url ->
+                (this.shardCoordinator == null || this.shardCoordinator.owns(url)) && schedule(url));
 
-                // Update the storage and see what URLS have changed
-                List<String> updated = StorageMgr.getInstance().updateStorage(newURLContentLengths);
+        System.out.printf("Scheduled %d URL(s) to check.%n", scheduledURLs);
 
-                // Notify the webhook if there are any changes
-                if (!updated.isEmpty()) {
-                    System.out.printf("%d changes detected, notifying the webhook!%n", updated.size());
-                    webhookNotifier.notifyWebhook(config.webhookURL(), config.roleIDToPing(), updated);
-                }
+        if (this.documentWatcher.size() > 0) {
+            System.out.printf("Watching %d local document(s) for changes.%n", this.documentWatcher.size());
+        }
 
-            }
-        }, 0, this.config.checkIntervalInMs());
+        this.scheduler.start(this::runCycle);
+        this.configurationWatcher.start(this.config, this::applyConfiguration);
 
     }
 
     /**
-     * Stops DocLookout by stopping the timer and
-     * the web operation executors.
+     * Stops DocLookout by stopping the scheduler and
+     * waiting for the running cycle, then stopping the
+     * web operation executors, and finally flushing the
+     * storage log.
      */
     public void stop() {
 
-        this.timer.cancel();
+        // A reload being applied may still remove states
+        this.configurationWatcher.stop();
+        this.documentWatcher.stop();
+
+        // Let the other instances take over our URLs right away
+        if (this.shardCoordinator != null) {
+            this.shardCoordinator.stop();
+        }
+
+        // Nothing may store a result once the outbox,
+        // the history and storage start shutting down
+        this.scheduler.stop(this.checkPipeline::cancelChecks);
+        this.checkPipeline.stop();
         this.filesizeRetriever.stop();
         this.webhookNotifier.stop();
+        this.notificationOutbox.stop();
+        this.changeHistory.stop();
+        this.connectionPool.stop();
+        this.dnsCache.stop();
+
+        if (this.pinningMonitor != null) {
+            this.pinningMonitor.stop();
+        }
+
+        if (this.metricsServer != null) {
+            this.metricsServer.stop();
+        }
+
+        // Make sure every change has been logged before we exit
+        StorageMgr.getInstance().stop();
 
         System.out.println("Goodbye!");
 
     }
 
-}
\ No newline at end of file
+    /* ---------- PACKAGE-PRIVATE METHODS ---------- */
+
+    /**
+     * Starts delivering notifications, opens the outbox, and sends
+     * whatever wasn't delivered before the last shutdown. Must be
+     * called before the first cycle, which is what {@link #start()} does.
+     */
+    void replayOutbox() {
+
+        this.webhookNotifier.start();
+
+        // The changes are put back in storage in case a crash kept them
+        // out of the storage log, so that they aren't detected a second time
+        for (NotificationOutbox.Notification notification : this.notificationOutbox.replayAndOpen()) {
+            StorageMgr.getInstance().restoreStates(notification.changes());
+            this.webhookNotifier.notifyWebhook(notification.webhookURL(), notification.roleIDsToPing(),
+                    notification.urls(), () -> this.notificationOutbox.markDelivered(notification.id()));
+        }
+
+    }
+
+    /**
+     * Checks the filesize of all the files linked by the
+     * given URLs, updating the storage and notifying the
+     * webhook as each check completes. Package-private so
+     * that the load test can drive cycles itself.
+     *
+     * @param urls The URLs that are due to be checked.
+     */
+    void runCycle(List<String> urls) {
+
+        // Don't proceed if the last checks suggest the Internet
+        // is down. Once that is old news, this cycle finds out
+        if (this.connectivityMonitor.isOffline()) {
+            System.err.println("The Internet is not available, not proceeding!");
+            return;
+        }
+
+        System.out.printf("Checking %d document(s) for changes...%n", urls.size());
+
+        long startNanos = System.nanoTime();
+
+        // Take name resolution off the path of each request
+        this.dnsCache.preResolve(distinctHosts(urls));
+
+        // Store each result and notify the webhook of each change
+        // as it comes in, then wait for the whole cycle to finish
+        // so that the scheduler sees the stored results
+        try {
+            this.checkPipeline.run(urls).get();
+        } catch (Exception e) {
+            System.err.println("Failed to finish checking for document changes!");
+            e.printStackTrace();
+        }
+
+        Metrics.getInstance().recordCycle(System.nanoTime() - startNanos);
+
+        this.changeHistory.flush();
+
+        this.connectionPool.logStats();
+        this.dnsCache.logStats();
+
+        if (this.pinningMonitor != null) {
+            this.pinningMonitor.logCycle();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Switches over to a reloaded configuration without a restart.
+     * Only the URLs that were added or removed are scheduled or
+     * unscheduled, so every other URL keeps its place in the
+     * schedule. The webhook and interval settings take effect
+     * right away, while settings that shape the program itself
+     * (concurrency, threads, timeouts, hedging, DNS caching, storage,
+     * sharding and metrics) need a restart.
+     *
+     * @param newConfig The reloaded configuration.
+     */
+    private void applyConfiguration(Configuration newConfig) {
+
+        Configuration oldConfig = this.config;
+
+        if (!oldConfig.maxConcurrentRequests().equals(newConfig.maxConcurrentRequests())
+                || !oldConfig.maxConcurrentRequestsPerHost().equals(newConfig.maxConcurrentRequestsPerHost())
+                || oldConfig.executionMode() != newConfig.executionMode()
+                || !oldConfig.connectionIdleTimeoutInMs().equals(newConfig.connectionIdleTimeoutInMs())
+                || oldConfig.storageFormat() != newConfig.storageFormat()
+                || !oldConfig.shardIndex().equals(newConfig.shardIndex())
+                || !oldConfig.shardCount().equals(newConfig.shardCount())
+                || !Objects.equals(oldConfig.shardDirectory(), newConfig.shardDirectory())
+                || !oldConfig.shardLeaseTimeoutInMs().equals(newConfig.shardLeaseTimeoutInMs())
+                || !oldConfig.metricsPort().equals(newConfig.metricsPort())
+                || !oldConfig.metricsBindAddress().equals(newConfig.metricsBindAddress())
+                || !oldConfig.connectTimeoutInMs().equals(newConfig.connectTimeoutInMs())
+                || !oldConfig.readTimeoutInMs().equals(newConfig.readTimeoutInMs())
+                || !oldConfig.hedgeRequests().equals(newConfig.hedgeRequests())
+                || !oldConfig.hedgeBudget().equals(newConfig.hedgeBudget())
+                || !oldConfig.dnsCacheTtlInMs().equals(newConfig.dnsCacheTtlInMs())
+                || !oldConfig.dnsNegativeCacheTtlInMs().equals(newConfig.dnsNegativeCacheTtlInMs())
+                || !oldConfig.webhookCoalesceWindowInMs().equals(newConfig.webhookCoalesceWindowInMs())) {
+            System.err.println("Some of the changed settings only take effect after a restart!");
+        }
+
+        this.config = newConfig;
+        this.scheduler.setConfiguration(newConfig);
+        this.checkPipeline.setConfiguration(newConfig);
+
+        // Diff the new set of URLs against the scheduled ones
+        Set<String> newURLs = new HashSet<>();
+        ConfigurationMgr.getInstance().forEachURLToCheck(newConfig, newURLs::add);
+
+        List<String> removedURLs = new ArrayList<>();
+
+        for (String url : this.scheduler.getURLs()) {
+            if (!newURLs.contains(url)) {
+                unschedule(url);
+                removedURLs.add(url);
+            }
+        }
+
+        int addedURLs = 0;
+
+        for (String url : newURLs) {
+            if ((this.shardCoordinator == null || this.shardCoordinator.owns(url)) && schedule(url)) {
+                addedURLs++;
+            }
+        }
+
+        // Nothing will check the removed URLs again. They were
+        // unscheduled first, so results still in flight for them
+        // are dropped rather than bringing their states back
+        StorageMgr.getInstance().removeStates(removedURLs);
+
+        System.out.printf("Reloaded the configuration, %d URL(s) added and %d removed.%n",
+                addedURLs, removedURLs.size());
+
+    }
+
+    /**
+     * Schedules a URL, and watches its document if it is a local one.
+     * Package-private so that the load test can schedule its URLs,
+     * since results for URLs that aren't scheduled aren't stored.
+     *
+     * @param url The URL to schedule.
+     * @return Whether the URL wasn't already scheduled.
+     */
+    boolean schedule(String url) {
+
+        if (!this.scheduler.add(url)) {
+            return false;
+        }
+
+        if (this.documentWatcher.watch(url)) {
+            this.scheduler.setWatched(url);
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Stops checking a URL, and watching its document.
+     *
+     * @param url The URL to unschedule.
+     */
+    private void unschedule(String url) {
+        this.scheduler.remove(url);
+        this.documentWatcher.unwatch(url);
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param urls The URLs of a cycle.
+     * @return The distinct hosts of the URLs that have one.
+     */
+    private static Set<String> distinctHosts(List<String> urls) {
+
+        Set<String> hosts = new HashSet<>();
+
+        for (String url : urls) {
+            try {
+                String host = URLCanonicalizer.toURI(url).getHost();
+                if (host != null) {
+                    hosts.add(host);
+                }
+            } catch (URISyntaxException e) {
+                // Malformed URLs are reported by the check itself
+            }
+        }
+
+        return hosts;
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Schedules or unschedules the URLs of the shards
+     * this instance takes over from or hands back to
+     * other instances, and hands over their states.
+     */
+    private final class ShardListener implements ShardCoordinator.Listener {
+
+        @Override
+        public void onAcquired(int shard) {
+            ConfigurationMgr.getInstance().forEachURLToCheck(config, url ->
+                    shardCoordinator.shardFor(url) == shard && schedule(url));
+        }
+
+        @Override
+        public List<StorageLog.Entry> onReleased(int shard) {
+
+            List<String> releasedURLs = urlsOf(shard);
+
+            for (String url : releasedURLs) {
+                unschedule(url);
+            }
+
+            // They were unscheduled first, so results still in
+            // flight for them are dropped rather than stored
+            List<StorageLog.Entry> states = statesOf(releasedURLs);
+            StorageMgr.getInstance().removeStates(releasedURLs);
+
+            return states;
+
+        }
+
+        @Override
+        public List<StorageLog.Entry> statesOf(int shard) {
+            return statesOf(urlsOf(shard));
+        }
+
+        @Override
+        public void onHandedBack(List<StorageLog.Entry> states) {
+            StorageMgr.getInstance().restoreStates(states);
+        }
+
+        /**
+         * @return The scheduled URLs of the given shard.
+         */
+        private List<String> urlsOf(int shard) {
+
+            List<String> urls = new ArrayList<>();
+
+            for (String url : scheduler.getURLs()) {
+                if (shardCoordinator.shardFor(url) == shard) {
+                    urls.add(url);
+                }
+            }
+
+            return urls;
+
+        }
+
+        /**
+         * @return The stored states of the given URLs, leaving
+         * out those we haven't seen yet.
+         */
+        private List<StorageLog.Entry> statesOf(List<String> urls) {
+
+            List<StorageLog.Entry> states = new ArrayList<>(urls.size());
+
+            for (String url : urls) {
+                DocumentState state = StorageMgr.getInstance().getState(url);
+                if (state != null) {
+                    states.add(new StorageLog.Entry(url, state));
+                }
+            }
+
+            return states;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Everything we remember about a document between checks.
+ *
+ * @param contentLength   The value of the <code>content-length</code>
+ *                        header, or <code>-1</code> if it was missing.
+ * @param fingerprint     A hash of the start and end of the document,
+ *                        taken when its headers can't tell whether it
+ *                        changed, or <code>null</code> if it wasn't.
+ * @param eTag            The value of the <code>ETag</code> header, or
+ *                        <code>null</code> if it was missing.
+ * @param lastModified    The value of the <code>Last-Modified</code>
+ *                        header, or <code>null</code> if it was missing.
+ * @param lastChangedAtMs When we last saw the document change, in epoch
+ *                        milliseconds, or <code>null</code> if it hasn't
+ *                        been recorded yet.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record DocumentState(Long contentLength, Long fingerprint, String eTag, String lastModified,
+                            Long lastChangedAtMs) {
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public DocumentState {
+        if (contentLength == null) {
+            contentLength = -1L;
+        }
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Determines whether the document has changed between this
+     * (older) state and a newer one. The content length is always
+     * compared. The fingerprint and validators are only compared
+     * when both states have them, so that a server that starts or
+     * stops sending them doesn't look like a change. The fingerprint
+     * comes first, since it is taken from the content itself, and
+     * the <code>ETag</code> takes precedence over
+     * <code>Last-Modified</code>, like it does in conditional requests.
+     *
+     * @param newer The newer state of the same document.
+     * @return Whether the document has changed.
+     */
+    public boolean hasChangedTo(DocumentState newer) {
+
+        if (!this.contentLength.equals(newer.contentLength)) {
+            return true;
+        }
+
+        if (this.fingerprint != null && newer.fingerprint != null) {
+            return !this.fingerprint.equals(newer.fingerprint);
+        }
+
+        if (this.eTag != null && newer.eTag != null) {
+            return !this.eTag.equals(newer.eTag);
+        }
+
+        if (this.lastModified != null && newer.lastModified != null) {
+            return !this.lastModified.equals(newer.lastModified);
+        }
+
+        return false;
+
+    }
+
+    /**
+     * @param lastChangedAtMs When the document last changed,
+     *                        in epoch milliseconds.
+     * @return A copy of this state with the given change time.
+     */
+    public DocumentState withLastChangedAtMs(long lastChangedAtMs) {
+        return new DocumentState(this.contentLength, this.fingerprint, this.eTag, this.lastModified, lastChangedAtMs);
+    }
+
+    /**
+     * @param fingerprint A hash of the start and end of the document.
+     * @return A copy of this state with the given fingerprint.
+     */
+    public DocumentState withFingerprint(long fingerprint) {
+        return new DocumentState(this.contentLength, fingerprint, this.eTag, this.lastModified, this.lastChangedAtMs);
+    }
+
+    /**
+     * @param fallbackMs The value to return if there is no usable
+     *                   <code>Last-Modified</code> value.
+     * @return The <code>Last-Modified</code> value in epoch
+     * milliseconds, or the fallback if it is missing or malformed.
+     */
+    public long lastModifiedAtMsOr(long fallbackMs) {
+
+        if (this.lastModified == null) {
+            return fallbackMs;
+        }
+
+        try {
+            return ZonedDateTime.parse(this.lastModified, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (Exception e) {
+            return fallbackMs;
+        }
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param contentLength The content length of a document.
+     * @return A state for a document that only has a known
+     * content length, as stored by older versions.
+     */
+    public static DocumentState ofContentLength(long contentLength) {
+        return new DocumentState(contentLength, null, null, null, null);
+    }
+
+}
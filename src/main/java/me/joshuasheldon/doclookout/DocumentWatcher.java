@@ -0,0 +1,406 @@
+package me.joshuasheldon.doclookout;
+
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the documents behind <code>file:</code> URLs for changes,
+ * so that they don't have to be polled. A URL pointing to a file is
+ * watched through the directory holding it, and a URL pointing to
+ * a directory through the directory itself. A directory is checked
+ * again whenever an entry is created in it or deleted from it. Only
+ * its listing is checked, so edits to the files in it go unnoticed.
+ * <p>
+ * Documents on network shares aren't watched, since changes made
+ * to them by other machines never raise an event here. They are
+ * polled like any other URL. So are the documents of a directory
+ * that can't be watched any more, e.g. because it was deleted.
+ * <p>
+ * Files are often written in several steps, so the URLs that
+ * changed are only handed to the listener once their directories
+ * have been quiet for a moment, or once they have been changing
+ * for a while, whichever comes first.
+ */
+public class DocumentWatcher {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How long the watched directories must go without
+     * changing before the changed URLs are handed over.
+     */
+    private static final long QUIET_PERIOD_IN_MS = 500L;
+
+    /**
+     * The longest changes are held back, so that a file that is
+     * written to all the time is still checked every so often.
+     */
+    private static final long MAX_DEBOUNCE_IN_MS = 5_000L;
+
+    /**
+     * The types of file stores (as in {@link FileStore#type()})
+     * that are network shares, besides FUSE file systems.
+     */
+    private static final Set<String> NETWORK_FILE_STORE_TYPES = Set.of(
+            "nfs", "nfs4", "cifs", "smb", "smb2", "smb3", "smbfs", "afpfs", "webdav", "davfs",
+            "9p", "afs", "ceph", "glusterfs", "lustre"
+    );
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * Receives the URLs whose documents changed.
+     */
+    private final Consumer<List<String>> listener;
+
+    /**
+     * Receives the URLs that aren't watched any more, since
+     * their directory can't be watched any more.
+     */
+    private final Consumer<List<String>> lostListener;
+
+    /**
+     * Every watched directory, keyed by its path.
+     */
+    private final Map<Path, WatchedDirectory> directories;
+
+    /**
+     * The thread that waits for changes and hands them over.
+     */
+    private final Thread thread;
+
+    /**
+     * Tells us about changes in the watched directories, or
+     * <code>null</code> if watching couldn't be set up.
+     */
+    private WatchService watchService;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param listener     Receives the URLs whose documents changed.
+     * @param lostListener Receives the URLs that aren't watched any
+     *                     more, since their directory can't be watched
+     *                     any more, e.g. because it was deleted.
+     */
+    public DocumentWatcher(Consumer<List<String>> listener, Consumer<List<String>> lostListener) {
+        this.listener = listener;
+        this.lostListener = lostListener;
+        this.directories = new HashMap<>();
+        this.thread = new Thread(this::run, "DocLookout-DocumentWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Starts the thread that waits for changes. Until this has
+     * been called, no URL can be watched.
+     */
+    public synchronized void start() {
+
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (Exception e) {
+            System.err.println("Failed to watch local documents, they will be polled instead!");
+            e.printStackTrace();
+            return;
+        }
+
+        this.thread.start();
+
+    }
+
+    /**
+     * Starts watching the document behind a URL, if it is a local one.
+     *
+     * @param url The URL to watch.
+     * @return Whether the URL is now watched. URLs that aren't
+     * <code>file:</code> URLs, that are on a network share, or
+     * whose directory can't be watched, have to be polled.
+     */
+    public synchronized boolean watch(String url) {
+
+        if (this.watchService == null) {
+            return false;
+        }
+
+        Path path;
+
+        try {
+            URI uri = new URI(url);
+            if (!"file".equalsIgnoreCase(uri.getScheme())) {
+                return false;
+            }
+            path = Paths.get(uri).toAbsolutePath().normalize();
+        } catch (Exception e) {
+            return false;
+        }
+
+        boolean isDirectory = Files.isDirectory(path);
+        Path directoryPath = isDirectory ? path : path.getParent();
+
+        if (directoryPath == null) {
+            return false;
+        }
+
+        WatchedDirectory directory = this.directories.get(directoryPath);
+
+        if (directory == null) {
+
+            if (isOnNetworkShare(directoryPath)) {
+                return false;
+            }
+
+            try {
+                directory = new WatchedDirectory(directoryPath.register(this.watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (Exception e) {
+                System.err.println("Failed to watch " + directoryPath + ", polling " + url + " instead!");
+                return false;
+            }
+
+            this.directories.put(directoryPath, directory);
+
+        }
+
+        if (isDirectory) {
+            directory.ownURLs.add(url);
+        } else {
+            directory.urlsByEntry.computeIfAbsent(path.getFileName(), entry -> new HashSet<>()).add(url);
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Stops watching the document behind a URL, and its
+     * directory once no other watched URL needs it.
+     *
+     * @param url The URL to stop watching.
+     */
+    public synchronized void unwatch(String url) {
+
+        Iterator<WatchedDirectory> iterator = this.directories.values().iterator();
+
+        while (iterator.hasNext()) {
+
+            WatchedDirectory directory = iterator.next();
+
+            directory.ownURLs.remove(url);
+            directory.urlsByEntry.values().removeIf(urls -> urls.remove(url) && urls.isEmpty());
+
+            if (directory.ownURLs.isEmpty() && directory.urlsByEntry.isEmpty()) {
+                directory.key.cancel();
+                iterator.remove();
+            }
+
+        }
+
+    }
+
+    /**
+     * @return The number of URLs watched.
+     */
+    public synchronized int size() {
+
+        int size = 0;
+
+        for (WatchedDirectory directory : this.directories.values()) {
+            size += directory.ownURLs.size();
+            for (Set<String> urls : directory.urlsByEntry.values()) {
+                size += urls.size();
+            }
+        }
+
+        return size;
+
+    }
+
+    /**
+     * Stops watching for changes.
+     */
+    public synchronized void stop() {
+
+        if (this.watchService == null) {
+            return;
+        }
+
+        try {
+            this.watchService.close();
+        } catch (Exception e) {
+            System.err.println("Failed to stop watching local documents!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * The body of the watcher thread.
+     */
+    private void run() {
+
+        try {
+
+            while (true) {
+
+                // Wait for a change, then keep collecting changes
+                // until it has been quiet a while, or for too long
+                Set<String> changedURLs = new LinkedHashSet<>();
+                Set<String> lostURLs = new LinkedHashSet<>();
+
+                drainEvents(this.watchService.take(), changedURLs, lostURLs);
+
+                long deadline = System.currentTimeMillis() + MAX_DEBOUNCE_IN_MS;
+
+                WatchKey key;
+
+                while (System.currentTimeMillis() < deadline
+                        && (key = this.watchService.poll(QUIET_PERIOD_IN_MS, TimeUnit.MILLISECONDS)) != null) {
+                    drainEvents(key, changedURLs, lostURLs);
+                }
+
+                // The lost URLs are checked as they are handed over
+                changedURLs.removeAll(lostURLs);
+
+                if (!lostURLs.isEmpty()) {
+                    try {
+                        this.lostListener.accept(new ArrayList<>(lostURLs));
+                    } catch (Exception e) {
+                        System.err.println("Failed to hand over the local documents that aren't watched any more!");
+                        e.printStackTrace();
+                    }
+                }
+
+                if (changedURLs.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    this.listener.accept(new ArrayList<>(changedURLs));
+                } catch (Exception e) {
+                    System.err.println("Failed to hand over the changed local documents!");
+                    e.printStackTrace();
+                }
+
+            }
+
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Stopped
+        } catch (Exception e) {
+            System.err.println("Stopped watching local documents!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Takes every event off the given key, resets it, and adds
+     * the URLs the events are about to the given set. If the key
+     * can't be reset, its directory can't be watched any more, so
+     * it is dropped, and all its URLs are added to the lost ones.
+     */
+    private synchronized void drainEvents(WatchKey key, Set<String> changedURLs, Set<String> lostURLs) {
+
+        Path directoryPath = (Path) key.watchable();
+        WatchedDirectory directory = this.directories.get(directoryPath);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+
+            if (directory == null || directory.key != key) {
+                continue;
+            }
+
+            // Only entries coming and going change the listing of
+            // the directory itself, modifying one doesn't
+            if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                changedURLs.addAll(directory.ownURLs);
+            }
+
+            // We may have missed events, so assume the worst
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                directory.urlsByEntry.values().forEach(changedURLs::addAll);
+                continue;
+            }
+
+            changedURLs.addAll(directory.urlsByEntry.getOrDefault((Path) event.context(), Set.of()));
+
+        }
+
+        if (key.reset() || directory == null || directory.key != key) {
+            return;
+        }
+
+        System.err.println("Stopped watching " + directoryPath + ", polling its documents instead!");
+
+        this.directories.remove(directoryPath);
+        lostURLs.addAll(directory.ownURLs);
+        directory.urlsByEntry.values().forEach(lostURLs::addAll);
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return Whether the directory is on a network share, or
+     * on a FUSE file system, which may well be one. If its file
+     * store can't be told, it is assumed to be local.
+     */
+    private static boolean isOnNetworkShare(Path directoryPath) {
+
+        String type;
+
+        try {
+            type = Files.getFileStore(directoryPath).type().toLowerCase(Locale.ROOT);
+        } catch (Exception e) {
+            return false;
+        }
+
+        return type.startsWith("fuse") || NETWORK_FILE_STORE_TYPES.contains(type);
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A watched directory, and the URLs that are watched through it.
+     */
+    private static final class WatchedDirectory {
+
+        private final WatchKey key;
+        private final Set<String> ownURLs;
+        private final Map<Path, Set<String>> urlsByEntry;
+
+        private WatchedDirectory(WatchKey key) {
+            this.key = key;
+            this.ownURLs = new HashSet<>();
+            this.urlsByEntry = new HashMap<>();
+        }
+
+    }
+
+}
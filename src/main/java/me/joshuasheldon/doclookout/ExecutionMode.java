@@ -0,0 +1,24 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * The kinds of threads that DocLookout can run its
+ * web operations on.
+ */
+public enum ExecutionMode {
+
+    /**
+     * Each web operation executor runs its tasks on its
+     * own dedicated platform thread(s).
+     */
+    PLATFORM,
+
+    /**
+     * Every task gets its own virtual thread, so blocking
+     * network calls park instead of tying up an OS thread.
+     * Requires a JVM with virtual thread support (Java 21+),
+     * otherwise DocLookout falls back to a cached pool of
+     * platform threads.
+     */
+    VIRTUAL
+
+}
@@ -1,10 +1,22 @@
 package me.joshuasheldon.doclookout;
 
+import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * Makes a HEAD request to a URL and attempts to retrieve
@@ -13,9 +25,163 @@ import java.util.concurrent.Future;
  * determine if a file has changed by comparing the
  * filesize of the file on the server to the locally
  * saved filesize for the file.
+ * <p>
+ * HTTP(S) requests are sent with the asynchronous API of
+ * {@link HttpClient}, over connections kept alive by the
+ * shared {@link ConnectionPool}, so no thread is tied up
+ * while a request is waiting on the network. A
+ * {@link ConcurrencyLimiter} caps how many requests are in
+ * flight in total and per host. In {@link ExecutionMode#VIRTUAL}
+ * mode, requests are instead sent with the blocking API, each
+ * on its own virtual thread.
+ * <p>
+ * When the headers can't tell whether a document changed (no
+ * usable <code>content-length</code> and no validators), the
+ * document is fingerprinted with a {@link ContentFingerprinter}
+ * while it still holds its concurrency slot.
+ * <p>
+ * The outcome of every HTTP(S) request is reported to the
+ * {@link ConnectivityMonitor}, and requests to hosts it has
+ * given up on for now fail right away with a
+ * {@link HostUnavailableException} instead of being sent. So do
+ * requests to hosts the {@link DnsCache} recently failed to resolve.
+ * <p>
+ * Checks that fail in a way that may not happen again are tried
+ * again a couple of times with exponential backoff. With hedging
+ * on, a HEAD request that is slower than its host's 95th
+ * percentile is sent a second time, and the first response wins.
+ * A budget keeps hedges to a small fraction of all requests, and
+ * each hedge waits for a concurrency slot like any other request.
+ * Hedging only applies to the asynchronous API.
  */
 public class FilesizeRetriever extends WebOperationExecutor {
 
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many times a check is attempted before it fails.
+     */
+    private static final int MAX_CHECK_ATTEMPTS = 3;
+
+    /**
+     * How long to back off before the second attempt at a check.
+     * Doubles with every attempt after that.
+     */
+    private static final long INITIAL_RETRY_BACKOFF_IN_MS = 500L;
+
+    /**
+     * The longest to back off before another attempt at a check.
+     */
+    private static final long MAX_RETRY_BACKOFF_IN_MS = 10_000L;
+
+    /**
+     * The percentile of a host's response times past which
+     * a request to it is hedged.
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * How many responses from a host must have been timed
+     * before its requests are hedged.
+     */
+    private static final long MIN_RESPONSES_BEFORE_HEDGING = 20;
+
+    /**
+     * How many unused hedges the budget can save up, which
+     * bounds how many hedges a burst of slow responses can
+     * cause.
+     */
+    private static final double MAX_SAVED_HEDGES = 10;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * Whether requests are sent from virtual threads with the
+     * blocking API rather than with the asynchronous API.
+     */
+    private final boolean blocking;
+
+    /**
+     * The pool of connections used to send all HTTP(S)
+     * HEAD requests.
+     */
+    private final ConnectionPool connectionPool;
+
+    /**
+     * Caps the number of requests in flight, globally
+     * and per host.
+     */
+    private final ConcurrencyLimiter limiter;
+
+    /**
+     * Fingerprints documents whose headers say too little.
+     */
+    private final ContentFingerprinter fingerprinter;
+
+    /**
+     * Tracks which hosts can be reached.
+     */
+    private final ConnectivityMonitor connectivityMonitor;
+
+    /**
+     * Knows which hosts recently failed to resolve.
+     */
+    private final DnsCache dnsCache;
+
+    /**
+     * How long a {@link URLConnection} may take to connect.
+     */
+    private final int connectTimeoutInMs;
+
+    /**
+     * How long a {@link URLConnection} may wait for data.
+     */
+    private final int readTimeoutInMs;
+
+    /**
+     * Whether slow HEAD requests are hedged.
+     */
+    private final boolean hedging;
+
+    /**
+     * Limits how many requests are hedged.
+     */
+    private final HedgeBudget hedgeBudget;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config              The configuration to take the
+     *                            concurrency limits, timeouts and
+     *                            hedging settings from.
+     * @param connectionPool      The pool of connections to send
+     *                            requests over.
+     * @param connectivityMonitor Told the outcome of every request,
+     *                            and asked before sending one.
+     * @param dnsCache            Asked before sending a request
+     *                            whether its host resolves.
+     */
+    public FilesizeRetriever(Configuration config, ConnectionPool connectionPool,
+                             ConnectivityMonitor connectivityMonitor, DnsCache dnsCache) {
+
+        super(config);
+
+        this.blocking = config.executionMode() == ExecutionMode.VIRTUAL;
+        this.connectionPool = connectionPool;
+        this.limiter = new ConcurrencyLimiter(
+                config.maxConcurrentRequests(),
+                config.maxConcurrentRequestsPerHost()
+        );
+        this.fingerprinter = new ContentFingerprinter(connectionPool, this.blocking);
+        this.connectivityMonitor = connectivityMonitor;
+        this.dnsCache = dnsCache;
+        this.connectTimeoutInMs = (int) Math.min(Integer.MAX_VALUE, config.connectTimeoutInMs());
+        this.readTimeoutInMs = (int) Math.min(Integer.MAX_VALUE, config.readTimeoutInMs());
+        this.hedging = config.hedgeRequests();
+        this.hedgeBudget = new HedgeBudget(config.hedgeBudget());
+
+    }
+
     /* ---------- PUBLIC METHODS ---------- */
 
     /**
@@ -34,11 +200,33 @@ public class FilesizeRetriever extends WebOperationExecutor {
      * Future will contain an exception.
      */
     public Future<Long> retrieveFilesize(String url) {
+        return checkDocument(url, null).thenApply(result -> result.state().contentLength());
+    }
+
+    /**
+     * Checks the state of the document at the given URL. If we
+     * already know an <code>ETag</code> or <code>Last-Modified</code>
+     * value for it, they are sent as <code>If-None-Match</code> and
+     * <code>If-Modified-Since</code>, so that the server can answer
+     * with <code>304 Not Modified</code> when nothing has changed.
+     *
+     * @param url      The URL to request to.
+     * @param previous The last known state of the document, or
+     *                 <code>null</code> if we don't know it yet.
+     * @return A future containing the result of the check, or an
+     * exception if every attempt failed. Cancelling it before the
+     * request is sent keeps it from being sent, and cancelling
+     * it afterwards aborts the request. In
+     * {@link ExecutionMode#VIRTUAL} mode, that interrupts the
+     * virtual thread sending it, and its concurrency slot is only
+     * freed once the thread is done.
+     */
+    public CompletableFuture<CheckResult> checkDocument(String url, DocumentState previous) {
 
         // Instantiate first so we have an easy return value
         // if the retrieval fails before we can actually
         // retrieve the filesize
-        CompletableFuture<Long> invalidURLResponse = new CompletableFuture<>();
+        CompletableFuture<CheckResult> invalidURLResponse = new CompletableFuture<>();
         invalidURLResponse.completeExceptionally(new IllegalArgumentException("Invalid URL!"));
 
         // Primitive sanity checks
@@ -46,17 +234,478 @@ public class FilesizeRetriever extends WebOperationExecutor {
             return invalidURLResponse;
         }
 
-        URL urlObj;
+        URI uri;
 
         try {
-            urlObj = new URL(url);
+            uri = URLCanonicalizer.toURI(url);
+            uri.toURL();
         } catch (Exception e) {
             System.err.println("Attempted to retrieve filesize of malformed URL: " + url);
             return invalidURLResponse;
         }
 
-        // Schedule filesize retrieval
-        return this.executor.submit(() -> {
+        // HttpClient only speaks HTTP, anything else
+        // (e.g. file:) goes through URLConnection
+        String scheme = uri.getScheme().toLowerCase();
+
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return checkDocumentViaURLConnection(uri);
+        }
+
+        HttpRequest request = buildHeadRequest(uri, previous);
+        CompletableFuture<CheckResult> check = new CompletableFuture<>();
+
+        attemptCheck(uri, request, 1, check);
+
+        check.whenComplete((result, throwable) -> {
+            if (throwable != null && !(unwrap(throwable) instanceof HostUnavailableException)
+                    && !(unwrap(throwable) instanceof CancellationException)) {
+                System.err.println("Error while attempting to retrieve filesize of URL: " + url);
+            }
+        });
+
+        return check;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Makes one attempt at checking a document, once the concurrency
+     * limiter lets it through. If the attempt fails in a way that may
+     * well not happen again (a network error, a timeout, or a server
+     * error), another attempt is made after an exponential backoff
+     * with jitter, without holding on to the concurrency slot.
+     *
+     * @param uri     The URI of the document.
+     * @param request The HEAD request to send.
+     * @param attempt Which attempt this is, starting at <code>1</code>.
+     * @param check   Completed with the outcome of the last attempt.
+     *                Cancelling it cancels the attempt under way.
+     */
+    private void attemptCheck(URI uri, HttpRequest request, int attempt, CompletableFuture<CheckResult> check) {
+
+        String host = uri.getHost();
+        CompletableFuture<CheckResult> attempted;
+
+        if (this.blocking) {
+
+            // In blocking mode the fingerprinter is blocking too, so
+            // everything happens on the virtual thread, which is
+            // interrupted if the check is cancelled. Its slot is held
+            // until the thread is done, so the limits still hold.
+            attempted = this.limiter.submitBlocking(host, this.executor, () -> {
+
+                if (!mayRequest(host)) {
+                    throw new HostUnavailableException(host);
+                }
+
+                return fingerprintIfNeeded(uri, readCheckResult(uri, sendBlocking(host, request))).join();
+
+            });
+
+        } else {
+
+            attempted = this.limiter.submit(host, () -> {
+
+                if (!mayRequest(host)) {
+                    return CompletableFuture.failedFuture(new HostUnavailableException(host));
+                }
+
+                CompletableFuture<HttpResponse<Void>> sent = sendHedged(host, request);
+                CompletableFuture<CheckResult> checked = new CompletableFuture<>();
+
+                // Cancelling a dependent future doesn't reach the
+                // future it depends on, so abort the requests by hand
+                checked.whenComplete((result, throwable) -> {
+                    if (checked.isCancelled()) {
+                        sent.cancel(true);
+                    }
+                });
+
+                sent.thenApply(response -> readCheckResult(uri, response))
+                        .thenCompose(result -> {
+                            CompletableFuture<CheckResult> fingerprinted = fingerprintIfNeeded(uri, result);
+                            checked.whenComplete((ignored, throwable) -> {
+                                if (checked.isCancelled()) {
+                                    fingerprinted.cancel(true);
+                                }
+                            });
+                            return fingerprinted;
+                        })
+                        .whenComplete((result, throwable) -> {
+                            if (throwable != null) {
+                                checked.completeExceptionally(throwable);
+                            } else {
+                                checked.complete(result);
+                            }
+                        });
+
+                return checked;
+
+            });
+
+        }
+
+        // The limiter's own future is kept, so that cancelling
+        // the check reaches the limiter and the request
+        check.whenComplete((result, throwable) -> {
+            if (check.isCancelled()) {
+                attempted.cancel(true);
+            }
+        });
+
+        attempted.whenComplete((result, throwable) -> {
+
+            if (throwable == null) {
+                check.complete(result);
+                return;
+            }
+
+            if (attempt >= MAX_CHECK_ATTEMPTS || !isTransient(throwable) || check.isDone()) {
+                check.completeExceptionally(throwable);
+                return;
+            }
+
+            Metrics.getInstance().recordHeadRetry();
+
+            // Half the backoff is fixed and half is random, so that
+            // the URLs of a host that failed together don't all
+            // come back at once
+            long backoffInMs = Math.min(MAX_RETRY_BACKOFF_IN_MS, INITIAL_RETRY_BACKOFF_IN_MS << (attempt - 1));
+            long delayInMs = backoffInMs / 2 + ThreadLocalRandom.current().nextLong(backoffInMs / 2 + 1);
+
+            CompletableFuture.delayedExecutor(delayInMs, TimeUnit.MILLISECONDS).execute(() -> {
+                if (!check.isDone()) {
+                    attemptCheck(uri, request, attempt + 1, check);
+                }
+            });
+
+        });
+
+    }
+
+    /**
+     * Asked only once a request is about to be sent, so that the
+     * queued URLs of a host that just went down are skipped.
+     *
+     * @param host The host a request goes to.
+     * @return Whether the request may be sent.
+     */
+    private boolean mayRequest(String host) {
+        return this.dnsCache.isResolvable(host) && this.connectivityMonitor.allowRequest(host);
+    }
+
+    /**
+     * Sends a HEAD request. If hedging is on and the response takes
+     * longer than the host usually takes to respond (its 95th
+     * percentile), the request is sent a second time, as long as the
+     * hedge budget and the concurrency limits allow, and whichever
+     * response arrives first is used.
+     *
+     * @param host    The host the request goes to.
+     * @param request The request to send.
+     * @return A future containing the first response. Cancelling it
+     * aborts every request still in flight.
+     */
+    private CompletableFuture<HttpResponse<Void>> sendHedged(String host, HttpRequest request) {
+
+        CompletableFuture<HttpResponse<Void>> primary = sendAsync(host, request);
+
+        this.hedgeBudget.deposit();
+
+        long hedgeDelayInNanos = this.hedging ? hedgeDelayInNanos(host) : -1;
+
+        if (hedgeDelayInNanos < 0) {
+            return primary;
+        }
+
+        CompletableFuture<HttpResponse<Void>> first = new CompletableFuture<>();
+        List<CompletableFuture<HttpResponse<Void>>> sent = new CopyOnWriteArrayList<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+
+        BiConsumer<HttpResponse<Void>, Throwable> onResponse = (response, throwable) -> {
+            if (throwable == null) {
+                first.complete(response);
+            } else if (outstanding.decrementAndGet() == 0) {
+                first.completeExceptionally(throwable);
+            }
+        };
+
+        sent.add(primary);
+        primary.whenComplete(onResponse);
+
+        CompletableFuture.delayedExecutor(hedgeDelayInNanos, TimeUnit.NANOSECONDS).execute(() -> {
+
+            if (first.isDone() || !this.hedgeBudget.tryWithdraw()) {
+                return;
+            }
+
+            outstanding.incrementAndGet();
+
+            // The hedge takes a slot of its own, so that hedging a
+            // slow host can't push it past its concurrency limits.
+            // If the first response arrives before a slot frees up,
+            // the hedge is never sent
+            CompletableFuture<HttpResponse<Void>> hedge = this.limiter.submit(host, () -> {
+                Metrics.getInstance().recordHeadHedge();
+                return sendAsync(host, request);
+            });
+
+            sent.add(hedge);
+            hedge.whenComplete(onResponse);
+
+            if (first.isDone()) {
+                hedge.cancel(true);
+            }
+
+        });
+
+        // The slower request isn't needed any more, and if
+        // the check was cancelled, neither is either of them
+        first.whenComplete((response, throwable) -> {
+            for (CompletableFuture<HttpResponse<Void>> inFlight : sent) {
+                inFlight.cancel(true);
+            }
+        });
+
+        return first;
+
+    }
+
+    /**
+     * @param host The host a request goes to.
+     * @return How long to wait for a response before hedging, or
+     * <code>-1</code> if too few responses from the host have been
+     * seen yet to know what is slow for it.
+     */
+    private static long hedgeDelayInNanos(String host) {
+
+        LatencyHistogram durations = Metrics.getInstance().getHeadRequestDurations().get(host);
+
+        if (durations == null || durations.count() < MIN_RESPONSES_BEFORE_HEDGING) {
+            return -1;
+        }
+
+        return (long) (durations.percentileInSeconds(HEDGE_PERCENTILE) * 1e9);
+
+    }
+
+    /**
+     * Sends a request with the asynchronous API.
+     *
+     * @param host    The host the request goes to.
+     * @param request The request to send.
+     * @return A future containing the response. Cancelling
+     * it aborts the request.
+     */
+    private CompletableFuture<HttpResponse<Void>> sendAsync(String host, HttpRequest request) {
+
+        long startNanos = System.nanoTime();
+
+        CompletableFuture<HttpResponse<Void>> sent =
+                this.connectionPool.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+
+        sent.whenComplete((response, throwable) -> recordOutcome(host, startNanos, throwable));
+
+        return sent;
+
+    }
+
+    /**
+     * Fingerprints the document if the result of its HEAD request
+     * can't tell whether it changed. If fingerprinting fails, the
+     * result is kept as it is.
+     *
+     * @param uri    The URI of the document.
+     * @param result The result of the HEAD request.
+     * @return A future containing the result, with a fingerprint if needed.
+     */
+    private CompletableFuture<CheckResult> fingerprintIfNeeded(URI uri, CheckResult result) {
+
+        if (result.notModified() || hasUsableHeaders(result.state())) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        CompletableFuture<Long> fingerprint = this.fingerprinter.fingerprint(uri);
+        CompletableFuture<CheckResult> fingerprinted = fingerprint
+                .thenApply(value -> CheckResult.of(result.state().withFingerprint(value)))
+                .exceptionally(throwable -> {
+                    System.err.println("Failed to fingerprint " + uri + ", relying on its headers!");
+                    return result;
+                });
+
+        // Cancelling the result aborts the range requests
+        fingerprinted.whenComplete((value, throwable) -> {
+            if (fingerprinted.isCancelled()) {
+                fingerprint.cancel(true);
+            }
+        });
+
+        return fingerprinted;
+
+    }
+
+    /**
+     * Sends a request with the blocking API. Meant to be called
+     * from a virtual thread, which parks while waiting.
+     *
+     * @param host    The host the request goes to.
+     * @param request The request to send.
+     * @return The response to the request.
+     */
+    private HttpResponse<Void> sendBlocking(String host, HttpRequest request) {
+
+        long startNanos = System.nanoTime();
+
+        try {
+            HttpResponse<Void> response = this.connectionPool.send(request, HttpResponse.BodyHandlers.discarding());
+            recordOutcome(host, startNanos, null);
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            recordOutcome(host, startNanos, e);
+            throw new CompletionException(e);
+        } catch (Exception e) {
+            recordOutcome(host, startNanos, e);
+            throw new CompletionException(e);
+        }
+
+    }
+
+    /**
+     * Tells the connectivity monitor whether a request reached its
+     * host. Only network errors count as not reaching it, any
+     * response at all (or any other error) counts as reaching it.
+     * Cancelled requests don't count either way, but they do hand
+     * a host's trial request back to the monitor. How long answered
+     * requests took goes to the {@link Metrics}.
+     *
+     * @param host       The host the request went to.
+     * @param startNanos When the request was sent, from {@link System#nanoTime()}.
+     * @param throwable  What the request failed with, or
+     *                   <code>null</code> if it didn't.
+     */
+    private void recordOutcome(String host, long startNanos, Throwable throwable) {
+
+        if (throwable != null && (unwrap(throwable) instanceof CancellationException
+                || unwrap(throwable) instanceof InterruptedException)) {
+            this.connectivityMonitor.recordCancelled(host);
+            return;
+        }
+
+        if (throwable == null) {
+            Metrics.getInstance().recordHeadRequest(host, System.nanoTime() - startNanos);
+        }
+
+        if (throwable != null && unwrap(throwable) instanceof IOException) {
+            this.connectivityMonitor.recordFailure(host);
+        } else {
+            this.connectivityMonitor.recordSuccess(host);
+        }
+
+    }
+
+    /**
+     * @param uri      The URI to request to.
+     * @param previous The last known state of the document,
+     *                 may be <code>null</code>.
+     * @return A HEAD request for the URI, made conditional on
+     * the validators of the previous state if there are any.
+     */
+    private static HttpRequest buildHeadRequest(URI uri, DocumentState previous) {
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody());
+
+        if (previous != null && previous.eTag() != null) {
+            builder.header("If-None-Match", previous.eTag());
+        }
+
+        if (previous != null && previous.lastModified() != null) {
+            builder.header("If-Modified-Since", previous.lastModified());
+        }
+
+        return builder.build();
+
+    }
+
+    /**
+     * @param throwable What a future failed with.
+     * @return The actual cause, without the layers of
+     * {@link CompletionException} futures wrap it in.
+     */
+    static Throwable unwrap(Throwable throwable) {
+
+        while (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+
+        return throwable;
+
+    }
+
+    /**
+     * @param state The state of a document from its headers.
+     * @return Whether the headers are enough to tell if the
+     * document changed. A content length of zero is not trusted,
+     * since some servers send it for every HEAD request.
+     */
+    private static boolean hasUsableHeaders(DocumentState state) {
+        return state.contentLength() > 0 || state.eTag() != null || state.lastModified() != null;
+    }
+
+    /**
+     * @param throwable What an attempt at a check failed with.
+     * @return Whether another attempt may well succeed.
+     */
+    private static boolean isTransient(Throwable throwable) {
+        Throwable cause = unwrap(throwable);
+        return cause instanceof IOException || cause instanceof ServerErrorException;
+    }
+
+    /**
+     * @param uri      The URI that was requested.
+     * @param response The response to a (possibly conditional)
+     *                 HEAD request.
+     * @return The result of the check. The content length is
+     * <code>-1</code> if the header is not present.
+     * @throws CompletionException Wrapping a {@link ServerErrorException}
+     *                             if the server is struggling, since the
+     *                             headers of an error response don't say
+     *                             anything about the document.
+     */
+    private static CheckResult readCheckResult(URI uri, HttpResponse<Void> response) {
+
+        if (response.statusCode() == 304) {
+            return CheckResult.ofNotModified();
+        }
+
+        if (response.statusCode() >= 500 || response.statusCode() == 429) {
+            throw new CompletionException(new ServerErrorException(uri, response.statusCode()));
+        }
+
+        return CheckResult.of(new DocumentState(
+                response.headers().firstValueAsLong("content-length").orElse(-1L),
+                null,
+                response.headers().firstValue("etag").orElse(null),
+                response.headers().firstValue("last-modified").orElse(null),
+                null
+        ));
+
+    }
+
+    /**
+     * Checks the state of a non-HTTP URL using a blocking
+     * {@link URLConnection} on the executor, once the concurrency
+     * limiter lets it through. These are never conditional, the
+     * validators are only recorded.
+     *
+     * @param uri The URI to check.
+     * @return See {@link #checkDocument(String, DocumentState)}.
+     */
+    private CompletableFuture<CheckResult> checkDocumentViaURLConnection(URI uri) {
+        return this.limiter.submitBlocking(uri.getHost(), this.executor, () -> {
 
             // Principles of logic from StackOverflow
             // https://stackoverflow.com/a/12800801
@@ -65,17 +714,22 @@ public class FilesizeRetriever extends WebOperationExecutor {
 
             try {
 
-                conn = urlObj.openConnection();
-                if (conn instanceof HttpURLConnection) {
-                    ((HttpURLConnection) conn).setRequestMethod("HEAD");
-                }
+                conn = uri.toURL().openConnection();
+                conn.setConnectTimeout(this.connectTimeoutInMs);
+                conn.setReadTimeout(this.readTimeoutInMs);
 
-                return conn.getContentLengthLong();
+                return CheckResult.of(new DocumentState(
+                        conn.getContentLengthLong(),
+                        null,
+                        conn.getHeaderField("ETag"),
+                        conn.getHeaderField("Last-Modified"),
+                        null
+                ));
 
             } catch (Exception e) {
 
-                System.err.println("Error while attempting to retrieve filesize of URL: " + url);
-                throw e;
+                System.err.println("Error while attempting to retrieve filesize of URL: " + uri);
+                throw new CompletionException(e);
 
             } finally {
 
@@ -86,8 +740,41 @@ public class FilesizeRetriever extends WebOperationExecutor {
             }
 
         });
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Earns a fraction of a hedge with every request sent,
+     * and spends a whole one on every hedge, so that hedges
+     * never add more than that fraction to the load on the
+     * origins.
+     */
+    private static final class HedgeBudget {
+
+        private final double hedgesPerRequest;
+        private double savedHedges;
+
+        private HedgeBudget(double hedgesPerRequest) {
+            this.hedgesPerRequest = hedgesPerRequest;
+            this.savedHedges = 0;
+        }
+
+        private synchronized void deposit() {
+            this.savedHedges = Math.min(MAX_SAVED_HEDGES, this.savedHedges + this.hedgesPerRequest);
+        }
+
+        private synchronized boolean tryWithdraw() {
+
+            if (this.savedHedges < 1) {
+                return false;
+            }
+
+            this.savedHedges--;
+            return true;
+
+        }
 
     }
 
 }
-
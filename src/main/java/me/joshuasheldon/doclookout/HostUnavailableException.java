@@ -0,0 +1,20 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * Thrown in place of sending a request to a host that
+ * the {@link ConnectivityMonitor} has recently failed
+ * to reach, or that the {@link DnsCache} has recently
+ * failed to resolve, so that its URLs are skipped cheaply.
+ */
+public class HostUnavailableException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param host The host that was skipped.
+     */
+    public HostUnavailableException(String host) {
+        super("Skipped " + host + ", which couldn't be reached recently!");
+    }
+
+}
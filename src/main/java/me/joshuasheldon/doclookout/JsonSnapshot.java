@@ -0,0 +1,109 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads and writes snapshots of URL states as a JSON object
+ * mapping each URL to its state. This is the format DocLookout
+ * has always used for <code>storage.json</code>.
+ */
+public class JsonSnapshot {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The object we use to read and write JSON.
+     */
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    private JsonSnapshot() {
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Attempts to read all URL-state pairs from a snapshot file.
+     * Older files, which map URLs straight to content lengths,
+     * are read as states without validators. Invalid pairs are
+     * reported and skipped.
+     *
+     * @param file The file to read.
+     * @return A map of every valid URL in the file to its state.
+     * @throws IOException If the file couldn't be read or parsed.
+     */
+    public static Map<String, DocumentState> read(File file) throws IOException {
+
+        JsonNode storageTree = OBJECT_MAPPER.readTree(file);
+        Map<String, DocumentState> states = new HashMap<>();
+
+        if (storageTree == null || !storageTree.isObject()) {
+            throw new IOException("The storage file does not contain a JSON object!");
+        }
+
+        // Add all valid key-value pairs to the map
+        Iterator<Map.Entry<String, JsonNode>> fields = storageTree.fields();
+
+        while (fields.hasNext()) {
+
+            Map.Entry<String, JsonNode> entry = fields.next();
+            JsonNode value = entry.getValue();
+
+            // Mathematical integer, not a programmatic integer
+            if (value.isIntegralNumber()) {
+                states.put(entry.getKey(), DocumentState.ofContentLength(value.longValue()));
+                continue;
+            }
+
+            try {
+                states.put(entry.getKey(), OBJECT_MAPPER.treeToValue(value, DocumentState.class));
+            } catch (Exception e) {
+                System.err.println("Invalid key-value pair in the storage file: <" + entry.getKey() + ", " + value + ">");
+            }
+
+        }
+
+        return states;
+
+    }
+
+    /**
+     * Atomically replaces a snapshot file with one holding the given
+     * states. The snapshot is written to a temporary file and synced
+     * before it takes the old one's place, so a crash never leaves a
+     * half-written snapshot.
+     *
+     * @param file   The file to write.
+     * @param states The states to write, keyed by URL.
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    public static void write(File file, Map<String, DocumentState> states) throws IOException {
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        // Jackson would otherwise close the stream before we can sync it
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            OBJECT_MAPPER.writer()
+                    .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                    .writeValue(outputStream, states);
+            outputStream.getFD().sync();
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets, which any number
+ * of threads can record into at once without taking a lock.
+ * Each bucket is a {@link LongAdder}, so threads that record at
+ * the same time rarely even touch the same memory.
+ */
+public class LatencyHistogram {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The upper bound of each bucket, in seconds. Anything slower
+     * than the last one only lands in the implicit
+     * <code>+Inf</code> bucket. Wide enough for a single request
+     * as well as a whole cycle.
+     */
+    private static final double[] BUCKET_BOUNDS_IN_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30, 60, 120, 300
+    };
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The upper bound of each bucket, in nanoseconds.
+     */
+    private final long[] boundsInNanos;
+
+    /**
+     * How many durations fell into each bucket, not counting
+     * the smaller buckets. The last one is <code>+Inf</code>.
+     */
+    private final LongAdder[] buckets;
+
+    /**
+     * The sum of all durations, in nanoseconds.
+     */
+    private final LongAdder sumInNanos;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public LatencyHistogram() {
+
+        this.boundsInNanos = new long[BUCKET_BOUNDS_IN_SECONDS.length];
+        this.buckets = new LongAdder[BUCKET_BOUNDS_IN_SECONDS.length + 1];
+        this.sumInNanos = new LongAdder();
+
+        for (int i = 0; i < BUCKET_BOUNDS_IN_SECONDS.length; i++) {
+            this.boundsInNanos[i] = (long) (BUCKET_BOUNDS_IN_SECONDS[i] * 1_000_000_000L);
+        }
+
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Records a single duration.
+     *
+     * @param durationInNanos The duration, in nanoseconds.
+     */
+    public void record(long durationInNanos) {
+
+        int bucket = 0;
+
+        while (bucket < this.boundsInNanos.length && durationInNanos > this.boundsInNanos[bucket]) {
+            bucket++;
+        }
+
+        this.buckets[bucket].increment();
+        this.sumInNanos.add(durationInNanos);
+
+    }
+
+    /**
+     * @return How many durations fell into each bucket so far,
+     * not counting the smaller buckets. The last is <code>+Inf</code>.
+     */
+    public long[] bucketCounts() {
+
+        long[] counts = new long[this.buckets.length];
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+
+        return counts;
+
+    }
+
+    /**
+     * @return How many durations were recorded so far.
+     */
+    public long count() {
+
+        long count = 0;
+
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+
+        return count;
+
+    }
+
+    /**
+     * @param percentile The percentile, e.g. <code>0.95</code>.
+     * @return The upper bound of the bucket the percentile falls in,
+     * in seconds, or <code>NaN</code> if nothing was recorded yet.
+     * Durations past the last bound count as the last bound.
+     */
+    public double percentileInSeconds(double percentile) {
+
+        long[] counts = bucketCounts();
+        long total = 0;
+        long seen = 0;
+
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+
+        for (int i = 0; i < counts.length && total > 0; i++) {
+            seen += counts[i];
+            if (seen >= Math.ceil(total * percentile)) {
+                return BUCKET_BOUNDS_IN_SECONDS[Math.min(i, BUCKET_BOUNDS_IN_SECONDS.length - 1)];
+            }
+        }
+
+        return Double.NaN;
+
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, without
+     * the <code># HELP</code> and <code># TYPE</code> lines, which
+     * are shared by every histogram of the same name. The buckets
+     * are read one by one while others may still be recording, so
+     * the counts can be off by a few in-flight recordings.
+     *
+     * @param output The text to append to.
+     * @param name   The name of the metric.
+     * @param labels The labels that tell this histogram apart, e.g.
+     *               <code>host="example.com",</code>, each followed
+     *               by a comma, or an empty string.
+     */
+    public void writePrometheus(StringBuilder output, String name, String labels) {
+
+        long cumulativeCount = 0;
+
+        for (int i = 0; i < this.buckets.length; i++) {
+
+            cumulativeCount += this.buckets[i].sum();
+
+            String bound = (i < BUCKET_BOUNDS_IN_SECONDS.length) ? Double.toString(BUCKET_BOUNDS_IN_SECONDS[i]) : "+Inf";
+
+            output.append(name).append("_bucket{").append(labels).append("le=\"").append(bound).append("\"} ")
+                    .append(cumulativeCount).append('\n');
+
+        }
+
+        String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+
+        output.append(name).append("_sum").append(plainLabels).append(' ')
+                .append(this.sumInNanos.sum() / 1_000_000_000.0).append('\n');
+        output.append(name).append("_count").append(plainLabels).append(' ')
+                .append(cumulativeCount).append('\n');
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param bucket The index of a bucket, as in {@link #bucketCounts()}.
+     * @return The upper bound of the bucket in seconds, or
+     * {@link Double#POSITIVE_INFINITY} for the last one.
+     */
+    public static double bucketBoundInSeconds(int bucket) {
+        return (bucket < BUCKET_BOUNDS_IN_SECONDS.length) ? BUCKET_BOUNDS_IN_SECONDS[bucket] : Double.POSITIVE_INFINITY;
+    }
+
+}
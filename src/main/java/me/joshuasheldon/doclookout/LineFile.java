@@ -0,0 +1,136 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and opens the append-only files of lines that the
+ * {@link StorageLog} and the {@link NotificationOutbox} are kept in.
+ * <p>
+ * A crash can cut off the last write, leaving a torn line at the end
+ * of the file. Reading stops there, so anything appended behind it
+ * would never be read again. That's why the torn tail is truncated
+ * away before the file is opened for appending.
+ */
+public class LineFile {
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    private LineFile() {
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Passes every line of a file to a reader, in order, then opens
+     * the file for appending. Reading stops at the first line that
+     * the reader can't read, or that isn't ended by a newline, since
+     * every line is written with one. Everything from there on is
+     * truncated, and the truncation synced, before the file is opened.
+     *
+     * @param file   The file to read and open, created if it doesn't exist.
+     * @param name   What the file is, for messages.
+     * @param reader Reads each line.
+     * @return The channel to append to the file through.
+     * @throws IOException If the file couldn't be opened or truncated.
+     */
+    public static FileChannel readAndOpen(File file, String name, LineReader reader) throws IOException {
+
+        // The offset just after the newline of the last line read,
+        // or -1 if the file couldn't be read and mustn't be truncated
+        long readEnd = 0;
+
+        if (file.exists()) {
+            try {
+                readEnd = readLines(file, name, reader);
+            } catch (IOException e) {
+                System.err.printf("Failed to read the %s!%n", name);
+                e.printStackTrace();
+                readEnd = -1;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        try {
+
+            if (readEnd >= 0 && channel.size() > readEnd) {
+                System.err.printf("Dropping %d byte(s) at the end of the %s that were cut off.%n",
+                        channel.size() - readEnd, name);
+                channel.truncate(readEnd);
+                channel.force(false);
+            }
+
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+
+    }
+
+    /**
+     * @return The offset just after the newline of the last line read.
+     */
+    private static long readLines(File file, String name, LineReader reader) throws IOException {
+
+        long readEnd = 0;
+        long position = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+
+            int b;
+
+            while ((b = in.read()) != -1) {
+
+                position++;
+
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+
+                if (!reader.read(line.toString(StandardCharsets.UTF_8))) {
+                    System.err.printf("Stopped reading the %s at an unreadable line!%n", name);
+                    return readEnd;
+                }
+
+                readEnd = position;
+                line.reset();
+
+            }
+
+        }
+
+        return readEnd;
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Reads the lines of a file.
+     */
+    @FunctionalInterface
+    public interface LineReader {
+
+        /**
+         * @param line A line, without its newline.
+         * @return Whether the line could be read. If it couldn't,
+         * it and everything after it are dropped.
+         */
+        boolean read(String line);
+
+    }
+
+}
@@ -0,0 +1,297 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the timings and counts that show where the time of
+ * a cycle goes, and renders them in the Prometheus text format
+ * for the {@link MetricsServer}. Recording never takes a lock,
+ * so it is cheap enough to do on every request.
+ */
+public class Metrics {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The outcome of a check that returned a fresh state.
+     */
+    public static final String CHECK_FETCHED = "fetched";
+
+    /**
+     * The outcome of a check the server answered
+     * with <code>304 Not Modified</code>.
+     */
+    public static final String CHECK_NOT_MODIFIED = "not_modified";
+
+    /**
+     * The outcome of a check that failed.
+     */
+    public static final String CHECK_FAILED = "failed";
+
+    /**
+     * The outcome of a check that was skipped because
+     * its host couldn't be reached recently.
+     */
+    public static final String CHECK_SKIPPED = "skipped";
+
+    /**
+     * The outcome of a check that was cancelled because
+     * it was still outstanding at the cycle deadline.
+     */
+    public static final String CHECK_CANCELLED = "cancelled";
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * How long each HEAD request took to be answered, by host.
+     */
+    private final Map<String, LatencyHistogram> headRequestDurations;
+
+    /**
+     * How many checks were attempted again after failing.
+     */
+    private final LongAdder headRetries;
+
+    /**
+     * How many HEAD requests were hedged.
+     */
+    private final LongAdder headHedges;
+
+    /**
+     * How many requests found their host in the DNS cache,
+     * and how many didn't.
+     */
+    private final Map<String, LongAdder> dnsLookups;
+
+    /**
+     * How many checks had each outcome.
+     */
+    private final Map<String, LongAdder> checkOutcomes;
+
+    /**
+     * How many document changes were detected.
+     */
+    private final LongAdder changes;
+
+    /**
+     * How long each cycle took, from the first request
+     * until every result was stored.
+     */
+    private final LatencyHistogram cycleDurations;
+
+    /**
+     * How long each write to the storage log took, sync included.
+     */
+    private final LatencyHistogram storageWriteDurations;
+
+    /**
+     * How long each webhook message took to be answered.
+     */
+    private final LatencyHistogram webhookRequestDurations;
+
+    /**
+     * How many webhook notifications had each outcome.
+     */
+    private final Map<String, LongAdder> webhookOutcomes;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    private Metrics() {
+        this.headRequestDurations = new ConcurrentHashMap<>();
+        this.headRetries = new LongAdder();
+        this.headHedges = new LongAdder();
+        this.dnsLookups = new ConcurrentHashMap<>();
+        this.checkOutcomes = new ConcurrentHashMap<>();
+        this.changes = new LongAdder();
+        this.cycleDurations = new LatencyHistogram();
+        this.storageWriteDurations = new LatencyHistogram();
+        this.webhookRequestDurations = new LatencyHistogram();
+        this.webhookOutcomes = new ConcurrentHashMap<>();
+    }
+
+    /* ---------- SINGLETON ---------- */
+
+    private static final Metrics instance = new Metrics();
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * @param host            The host the HEAD request went to.
+     * @param durationInNanos How long it took to be answered.
+     */
+    public void recordHeadRequest(String host, long durationInNanos) {
+        this.headRequestDurations.computeIfAbsent(host, key -> new LatencyHistogram()).record(durationInNanos);
+    }
+
+    /**
+     * Records that a check is being attempted again after failing.
+     */
+    public void recordHeadRetry() {
+        this.headRetries.increment();
+    }
+
+    /**
+     * Records that a slow HEAD request was sent a second time.
+     */
+    public void recordHeadHedge() {
+        this.headHedges.increment();
+    }
+
+    /**
+     * @param hit Whether a request found its host in the DNS cache.
+     */
+    public void recordDnsLookup(boolean hit) {
+        this.dnsLookups.computeIfAbsent(hit ? "hit" : "miss", key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param outcome The outcome of a check, one of the
+     *                <code>CHECK_</code> constants.
+     */
+    public void recordCheck(String outcome) {
+        this.checkOutcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param count How many document changes were detected.
+     */
+    public void recordChanges(int count) {
+        this.changes.add(count);
+    }
+
+    /**
+     * @param durationInNanos How long a cycle took.
+     */
+    public void recordCycle(long durationInNanos) {
+        this.cycleDurations.record(durationInNanos);
+    }
+
+    /**
+     * @param durationInNanos How long a write to the
+     *                        storage log took.
+     */
+    public void recordStorageWrite(long durationInNanos) {
+        this.storageWriteDurations.record(durationInNanos);
+    }
+
+    /**
+     * @param durationInNanos How long a webhook message
+     *                        took to be answered.
+     */
+    public void recordWebhookRequest(long durationInNanos) {
+        this.webhookRequestDurations.record(durationInNanos);
+    }
+
+    /**
+     * @param outcome How delivering a webhook notification went,
+     *                e.g. <code>delivered</code>.
+     */
+    public void recordWebhookOutcome(String outcome) {
+        this.webhookOutcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return How long HEAD requests took to be answered, by host.
+     */
+    public Map<String, LatencyHistogram> getHeadRequestDurations() {
+        return Collections.unmodifiableMap(this.headRequestDurations);
+    }
+
+    /**
+     * @param outcome The outcome of a check, one of the
+     *                <code>CHECK_</code> constants.
+     * @return How many checks had that outcome so far.
+     */
+    public long getCheckCount(String outcome) {
+        LongAdder counter = this.checkOutcomes.get(outcome);
+        return (counter != null) ? counter.sum() : 0;
+    }
+
+    /**
+     * @return Every metric in the Prometheus text format.
+     */
+    public String toPrometheus() {
+
+        StringBuilder output = new StringBuilder();
+
+        writeHeader(output, "doclookout_head_request_duration_seconds", "histogram",
+                "How long HEAD requests took to be answered, by host.");
+
+        // Sorted, so that hosts don't jump around between scrapes
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(this.headRequestDurations).entrySet()) {
+            entry.getValue().writePrometheus(output, "doclookout_head_request_duration_seconds",
+                    "host=\"" + escapeLabelValue(entry.getKey()) + "\",");
+        }
+
+        writeHeader(output, "doclookout_head_retries_total", "counter",
+                "How many checks were attempted again after failing.");
+        output.append("doclookout_head_retries_total ").append(this.headRetries.sum()).append('\n');
+
+        writeHeader(output, "doclookout_head_hedges_total", "counter", "How many HEAD requests were hedged.");
+        output.append("doclookout_head_hedges_total ").append(this.headHedges.sum()).append('\n');
+
+        writeHeader(output, "doclookout_dns_lookups_total", "counter",
+                "How many requests found their host in the DNS cache, and how many didn't.");
+        writeCounters(output, "doclookout_dns_lookups_total", "result", this.dnsLookups);
+
+        writeHeader(output, "doclookout_checks_total", "counter", "How many checks had each outcome.");
+        writeCounters(output, "doclookout_checks_total", "outcome", this.checkOutcomes);
+
+        writeHeader(output, "doclookout_changes_total", "counter", "How many document changes were detected.");
+        output.append("doclookout_changes_total ").append(this.changes.sum()).append('\n');
+
+        writeHeader(output, "doclookout_cycle_duration_seconds", "histogram", "How long each cycle took.");
+        this.cycleDurations.writePrometheus(output, "doclookout_cycle_duration_seconds", "");
+
+        writeHeader(output, "doclookout_storage_write_duration_seconds", "histogram",
+                "How long each write to the storage log took, sync included.");
+        this.storageWriteDurations.writePrometheus(output, "doclookout_storage_write_duration_seconds", "");
+
+        writeHeader(output, "doclookout_webhook_request_duration_seconds", "histogram",
+                "How long each webhook message took to be answered.");
+        this.webhookRequestDurations.writePrometheus(output, "doclookout_webhook_request_duration_seconds", "");
+
+        writeHeader(output, "doclookout_webhook_notifications_total", "counter",
+                "How many webhook notifications had each outcome.");
+        writeCounters(output, "doclookout_webhook_notifications_total", "outcome", this.webhookOutcomes);
+
+        return output.toString();
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Appends the <code># HELP</code> and <code># TYPE</code> lines of a metric.
+     */
+    private static void writeHeader(StringBuilder output, String name, String type, String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Appends a counter for each value of a label.
+     */
+    private static void writeCounters(StringBuilder output, String name, String label, Map<String, LongAdder> counters) {
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            output.append(name).append('{').append(label).append("=\"").append(escapeLabelValue(entry.getKey()))
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    /**
+     * @return The value, escaped to fit between the quotes of a label.
+     */
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
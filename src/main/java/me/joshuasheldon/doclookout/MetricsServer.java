@@ -0,0 +1,137 @@
+package me.joshuasheldon.doclookout;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text format at
+ * <code>/metrics</code>, from the HTTP server built into the JDK.
+ * Scrapes are answered one at a time on a single daemon thread.
+ */
+public class MetricsServer {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The path the metrics are served at.
+     */
+    private static final String METRICS_PATH = "/metrics";
+
+    /**
+     * The content type of the Prometheus text format.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The address to listen on.
+     */
+    private final String bindAddress;
+
+    /**
+     * The port to listen on.
+     */
+    private final int port;
+
+    /**
+     * Answers the scrapes.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The server, or <code>null</code> if it isn't running.
+     */
+    private HttpServer server;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param bindAddress The address to listen on, e.g. the loopback address.
+     * @param port        The port to listen on.
+     */
+    public MetricsServer(String bindAddress, int port) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DocLookout-Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Starts listening. If the address can't be bound, the error
+     * is logged and DocLookout runs on without metrics.
+     */
+    public void start() {
+
+        try {
+            this.server = HttpServer.create(new InetSocketAddress(this.bindAddress, this.port), 0);
+            this.server.createContext(METRICS_PATH, this::handle);
+            this.server.setExecutor(this.executor);
+            this.server.start();
+            System.out.printf("Serving metrics at http://%s:%d%s%n", this.bindAddress, this.port, METRICS_PATH);
+        } catch (Exception e) {
+            System.err.println("Failed to serve metrics on " + this.bindAddress + ":" + this.port + "!");
+            e.printStackTrace();
+            this.server = null;
+        }
+
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void stop() {
+
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+
+        this.executor.shutdown();
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Answers a single scrape.
+     */
+    private void handle(HttpExchange exchange) {
+
+        try (exchange) {
+
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = Metrics.getInstance().toPrometheus().getBytes(StandardCharsets.UTF_8);
+            boolean head = exchange.getRequestMethod().equals("HEAD");
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, head ? -1 : body.length);
+
+            if (!head) {
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            }
+
+        } catch (Exception e) {
+            System.err.println("Failed to serve metrics!");
+            e.printStackTrace();
+        }
+
+    }
+
+}
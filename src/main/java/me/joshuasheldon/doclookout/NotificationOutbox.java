@@ -0,0 +1,546 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A durable outbox of webhook notifications that haven't been
+ * delivered yet. Each notification is written to disk together
+ * with the storage changes that produced it, before those changes
+ * are logged to storage, so a change is never stored without its
+ * notification surviving a crash. Once a notification has been
+ * delivered, that is written too. On startup, every notification
+ * that was never delivered is handed back to be sent again.
+ * <p>
+ * Like the {@link StorageLog}, the outbox is a single file of
+ * JSON lines written by a single thread, which writes and syncs
+ * whatever has piled up together. Once delivered notifications
+ * make up most of the file, it is rewritten with only the
+ * pending ones.
+ * <p>
+ * Adding notifications never waits for the disk, since it happens
+ * while storage is locked. The storage log holds the changes back
+ * until the notifications have been synced instead.
+ */
+public class NotificationOutbox {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The name of the file the outbox is kept in, without its extension.
+     */
+    public static final String OUTBOX_BASE_NAME = "outbox";
+
+    /**
+     * The outbox is never compacted while it has fewer lines than this.
+     */
+    private static final int MIN_LINES_BEFORE_COMPACTION = 1_000;
+
+    /**
+     * The longest {@link Added#awaitSynced()} waits for the disk.
+     */
+    private static final long MAX_SYNC_WAIT_IN_MS = 10_000L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The object we use to read and write JSON.
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The file the outbox is kept in.
+     */
+    private final File outboxFile;
+
+    /**
+     * The notifications that haven't been delivered yet, by ID.
+     * Only touched by the writer thread once it has started.
+     */
+    private final Map<Long, Notification> pendingNotifications;
+
+    /**
+     * The lines waiting to be written by the writer thread.
+     */
+    private final BlockingQueue<Write> pendingWrites;
+
+    /**
+     * The thread that writes and syncs all lines.
+     */
+    private final Thread writerThread;
+
+    /**
+     * The ID of the next notification.
+     */
+    private long nextID;
+
+    /**
+     * The channel lines are appended through, or
+     * <code>null</code> if the outbox couldn't be opened.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of lines in the file.
+     */
+    private long lineCount;
+
+    /**
+     * Whether the outbox has been stopped, after which nothing
+     * more is queued. Guarded by the lock on the outbox, so that
+     * nothing can be queued behind the writer thread's last write.
+     */
+    private boolean stopped;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config The configuration, which decides whether
+     *               this instance keeps the outbox of a shard.
+     */
+    public NotificationOutbox(Configuration config) {
+        this.objectMapper = new ObjectMapper();
+
+        // Every shard keeps its own outbox, like its own storage
+        String baseName = (config.shardCount() > 1)
+                ? NotificationOutbox.OUTBOX_BASE_NAME + "-shard-" + config.shardIndex()
+                : NotificationOutbox.OUTBOX_BASE_NAME;
+
+        this.outboxFile = new File(baseName + ".log");
+        this.pendingNotifications = new LinkedHashMap<>();
+        this.pendingWrites = new LinkedBlockingQueue<>();
+        this.writerThread = new Thread(this::runWriter, "DocLookout-Outbox");
+        this.writerThread.setDaemon(true);
+        this.nextID = 1;
+        this.lineCount = 0;
+        this.stopped = false;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Reads the outbox, then opens it for appending and starts
+     * the writer thread. Reading stops at the first line that
+     * can't be read, which is where a crash cut off the last write.
+     * The outbox is truncated there, so that what's written from
+     * now on can be read again.
+     *
+     * @return Every notification that was never delivered, oldest first.
+     */
+    public synchronized List<Notification> replayAndOpen() {
+
+        try {
+
+            this.channel = LineFile.readAndOpen(this.outboxFile, "outbox", line -> {
+
+                Line entry;
+
+                try {
+                    entry = this.objectMapper.readValue(line, Line.class);
+                } catch (Exception e) {
+                    return false;
+                }
+
+                if (entry.added() != null) {
+                    this.pendingNotifications.put(entry.added().id(), withCanonicalURLs(entry.added()));
+                    this.nextID = Math.max(this.nextID, entry.added().id() + 1);
+                } else if (entry.deliveredID() != null) {
+                    this.pendingNotifications.remove(entry.deliveredID());
+                }
+
+                this.lineCount++;
+
+                return true;
+
+            });
+
+        } catch (Exception e) {
+            System.err.println("Failed to open the outbox, notifications won't survive a restart!");
+            e.printStackTrace();
+        }
+
+        List<Notification> undelivered = new ArrayList<>(this.pendingNotifications.values());
+
+        if (!undelivered.isEmpty()) {
+            System.out.printf("Found %d undelivered notification(s) in the outbox.%n", undelivered.size());
+        }
+
+        this.writerThread.start();
+
+        return undelivered;
+
+    }
+
+    /**
+     * Queues a notification for each route to be added to the
+     * outbox. Doesn't wait for them to be synced to disk, which
+     * usually takes a single sync for all of them.
+     *
+     * @param changesByRoute The storage changes that go to each route.
+     * @return The notifications, and a future that completes once they
+     * have been synced. The notifications are returned even if they
+     * can't be written, e.g. because the outbox has been stopped, so
+     * that they are at least delivered once.
+     */
+    public Added addAll(Map<WebhookRouter.Route, List<StorageLog.Entry>> changesByRoute) {
+
+        List<Notification> notifications = new ArrayList<>(changesByRoute.size());
+        List<Write> writes = new ArrayList<>(changesByRoute.size());
+
+        synchronized (this) {
+
+            changesByRoute.forEach((route, changes) -> notifications.add(
+                    new Notification(this.nextID++, route.webhookURL(), route.roleIDsToPing(), changes)));
+
+            if (this.stopped) {
+                return new Added(notifications,
+                        CompletableFuture.failedFuture(new IOException("The outbox has been stopped!")));
+            }
+
+            // Queued together, so the writer can sync them together
+            for (Notification notification : notifications) {
+                writes.add(new Write(new Line(notification, null)));
+            }
+
+            this.pendingWrites.addAll(writes);
+
+        }
+
+        CompletableFuture<?>[] synced = new CompletableFuture<?>[writes.size()];
+
+        for (int i = 0; i < synced.length; i++) {
+            synced[i] = writes.get(i).synced;
+        }
+
+        return new Added(notifications, CompletableFuture.allOf(synced));
+
+    }
+
+    /**
+     * Marks a notification as delivered, so that it won't be sent
+     * again after a restart. Doesn't wait for it to be synced.
+     * Ignored once the outbox has been stopped, in which case the
+     * notification is sent again after the restart.
+     *
+     * @param id The ID of the delivered notification.
+     */
+    public synchronized void markDelivered(long id) {
+        if (!this.stopped) {
+            this.pendingWrites.add(new Write(new Line(null, id)));
+        }
+    }
+
+    /**
+     * Writes whatever is still queued, then closes the outbox.
+     * Notifications added from then on are only delivered.
+     */
+    public void stop() {
+
+        synchronized (this) {
+            this.stopped = true;
+            this.pendingWrites.add(Write.POISON);
+        }
+
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * The body of the writer thread.
+     */
+    private void runWriter() {
+
+        List<Write> writes = new ArrayList<>();
+
+        while (true) {
+
+            try {
+                writes.add(this.pendingWrites.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Commit everything that queued up while we were busy
+            this.pendingWrites.drainTo(writes);
+
+            boolean stopping = writes.remove(Write.POISON);
+
+            writeLines(writes);
+            writes.clear();
+
+            if (stopping) {
+                closeChannel();
+                return;
+            }
+
+        }
+
+    }
+
+    /**
+     * Writes the given lines with one write and one sync,
+     * then compacts the outbox if it is mostly delivered
+     * notifications.
+     */
+    private void writeLines(List<Write> writes) {
+
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        for (Write write : writes) {
+            if (write.line.added() != null) {
+                this.pendingNotifications.put(write.line.added().id(), write.line.added());
+            } else {
+                this.pendingNotifications.remove(write.line.deliveredID());
+            }
+        }
+
+        try {
+
+            if (this.channel == null) {
+                throw new IOException("The outbox is not open!");
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            for (Write write : writes) {
+                bytes.write(this.objectMapper.writeValueAsBytes(write.line));
+                bytes.write('\n');
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+
+            this.channel.force(false);
+            this.lineCount += writes.size();
+
+            for (Write write : writes) {
+                write.synced.complete(null);
+            }
+
+        } catch (Exception e) {
+
+            System.err.println("Failed to write to the outbox!");
+            e.printStackTrace();
+
+            for (Write write : writes) {
+                write.synced.completeExceptionally(e);
+            }
+
+            return;
+
+        }
+
+        compactIfNeeded();
+
+    }
+
+    /**
+     * Rewrites the outbox with only the pending notifications
+     * once they make up less than half of its lines.
+     */
+    private void compactIfNeeded() {
+
+        if (this.lineCount < MIN_LINES_BEFORE_COMPACTION || this.lineCount < this.pendingNotifications.size() * 2L) {
+            return;
+        }
+
+        File temporaryFile = new File(this.outboxFile.getPath() + ".tmp");
+
+        try {
+
+            try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                for (Notification notification : this.pendingNotifications.values()) {
+                    bytes.write(this.objectMapper.writeValueAsBytes(new Line(notification, null)));
+                    bytes.write('\n');
+                }
+
+                outputStream.write(bytes.toByteArray());
+                outputStream.getFD().sync();
+
+            }
+
+            this.channel.close();
+            Files.move(temporaryFile.toPath(), this.outboxFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.channel = FileChannel.open(this.outboxFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.lineCount = this.pendingNotifications.size();
+
+        } catch (Exception e) {
+            System.err.println("Failed to compact the outbox!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Closes the outbox file.
+     */
+    private void closeChannel() {
+
+        if (this.channel == null) {
+            return;
+        }
+
+        try {
+            this.channel.close();
+        } catch (Exception e) {
+            System.err.println("Failed to close the outbox!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return The notification with the URLs of its changes in
+     * canonical form, since it may have been written before URLs
+     * were canonicalized, and its changes are put back in storage.
+     */
+    private static Notification withCanonicalURLs(Notification notification) {
+
+        List<StorageLog.Entry> changes = new ArrayList<>(notification.changes().size());
+
+        for (StorageLog.Entry change : notification.changes()) {
+            String canonicalURL = URLCanonicalizer.canonicalize(change.url());
+            changes.add((canonicalURL != null) ? new StorageLog.Entry(canonicalURL, change.state()) : change);
+        }
+
+        return new Notification(notification.id(), notification.webhookURL(), notification.roleIDsToPing(), changes);
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A notification waiting to be delivered.
+     *
+     * @param id            Identifies the notification in the outbox.
+     * @param webhookURL    The URL of the webhook to notify.
+     * @param roleIDsToPing The IDs of the roles to ping. Outboxes
+     *                      written before a webhook could ping several
+     *                      roles hold a single, possibly blank, one.
+     * @param changes       The storage changes the notification is about.
+     */
+    public record Notification(long id, String webhookURL,
+                               @JsonAlias("roleIDToPing")
+                               @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+                               List<String> roleIDsToPing,
+                               List<StorageLog.Entry> changes) {
+
+        /**
+         * @return The URLs the notification is about.
+         */
+        public List<String> urls() {
+
+            List<String> urls = new ArrayList<>(this.changes.size());
+
+            for (StorageLog.Entry change : this.changes) {
+                urls.add(change.url());
+            }
+
+            return urls;
+
+        }
+
+    }
+
+    /**
+     * Notifications that were queued to be added to the outbox.
+     *
+     * @param notifications The notifications, one per route.
+     * @param synced        Completes once they have been synced to
+     *                      disk, or exceptionally if they couldn't be.
+     */
+    public record Added(List<Notification> notifications, CompletableFuture<Void> synced) {
+
+        /**
+         * Waits a while for the notifications to be synced to disk,
+         * and reports it if they weren't. Mustn't be called while
+         * storage is locked.
+         *
+         * @return Whether the notifications will survive a restart.
+         */
+        public boolean awaitSynced() {
+
+            try {
+                this.synced.get(MAX_SYNC_WAIT_IN_MS, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (TimeoutException e) {
+                System.err.println("Timed out adding a notification to the outbox, it may not survive a restart!");
+            } catch (Exception e) {
+                System.err.println("Failed to add a notification to the outbox, it won't survive a restart!");
+            }
+
+            return false;
+
+        }
+
+    }
+
+    /**
+     * A single line of the outbox, which either adds a
+     * notification or marks one as delivered.
+     *
+     * @param added       The notification added, if any.
+     * @param deliveredID The ID of the notification delivered, if any.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private record Line(Notification added, Long deliveredID) {
+    }
+
+    /**
+     * A line to write, and the future completed once it has been synced.
+     */
+    private static final class Write {
+
+        private static final Write POISON = new Write(new Line(null, null));
+
+        private final Line line;
+        private final CompletableFuture<Void> synced;
+
+        private Write(Line line) {
+            this.line = line;
+            this.synced = new CompletableFuture<>();
+        }
+
+    }
+
+}
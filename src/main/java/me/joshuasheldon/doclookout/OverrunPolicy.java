@@ -0,0 +1,31 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * What the {@link CheckScheduler} does with URLs that come
+ * due while a cycle is still running.
+ */
+public enum OverrunPolicy {
+
+    /**
+     * URLs that came due while the cycle ran miss that check,
+     * and are next checked at their usual interval from when
+     * the cycle finished. URLs that were just added are
+     * checked right away regardless.
+     */
+    SKIP,
+
+    /**
+     * URLs that came due while the cycle ran are all checked
+     * together in one cycle as soon as it finishes.
+     */
+    COALESCE,
+
+    /**
+     * Each cycle starts as soon as its URLs come due, even
+     * while earlier cycles are still running. A URL is never
+     * in two cycles at once, and the concurrency limits are
+     * shared by all of them.
+     */
+    OVERLAP
+
+}
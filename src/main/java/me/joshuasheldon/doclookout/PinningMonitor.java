@@ -0,0 +1,103 @@
+package me.joshuasheldon.doclookout;
+
+import jdk.jfr.consumer.RecordingStream;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listens for the JFR <code>jdk.VirtualThreadPinned</code>
+ * event, which fires whenever a virtual thread blocks while
+ * pinned to its carrier thread (for example inside a
+ * <code>synchronized</code> block). Used in
+ * {@link ExecutionMode#VIRTUAL} mode to confirm that web
+ * operations really park while they wait on I/O.
+ */
+public class PinningMonitor {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The name of the JFR event emitted when a virtual
+     * thread blocks while pinned.
+     */
+    private static final String PINNED_EVENT_NAME = "jdk.VirtualThreadPinned";
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The stream of JFR events we listen to, or <code>null</code>
+     * if JFR isn't available in this JVM.
+     */
+    private final RecordingStream recordingStream;
+
+    /**
+     * The number of pinning events since the last cycle was logged.
+     */
+    private final LongAdder pinnedCount;
+
+    /**
+     * The total time spent pinned since the last cycle was logged.
+     */
+    private final LongAdder pinnedNanos;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public PinningMonitor() {
+
+        this.pinnedCount = new LongAdder();
+        this.pinnedNanos = new LongAdder();
+
+        RecordingStream stream;
+
+        try {
+            stream = new RecordingStream();
+            stream.enable(PINNED_EVENT_NAME).withoutThreshold().withStackTrace();
+            stream.onEvent(PINNED_EVENT_NAME, event -> {
+                this.pinnedCount.increment();
+                this.pinnedNanos.add(event.getDuration().toNanos());
+            });
+            stream.startAsync();
+        } catch (Exception e) {
+            System.err.println("Failed to start JFR recording, carrier-thread pinning will not be logged!");
+            e.printStackTrace();
+            stream = null;
+        }
+
+        this.recordingStream = stream;
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Logs how often virtual threads were pinned since the
+     * last call, then resets the counters.
+     */
+    public void logCycle() {
+
+        if (this.recordingStream == null) {
+            return;
+        }
+
+        long count = this.pinnedCount.sumThenReset();
+        long nanos = this.pinnedNanos.sumThenReset();
+
+        if (count == 0) {
+            System.out.println("No virtual threads were pinned to their carrier this cycle.");
+        } else {
+            System.out.printf("Virtual threads were pinned to their carrier %d time(s) this cycle, for %.1f ms in total!%n",
+                    count, nanos / 1_000_000.0);
+        }
+
+    }
+
+    /**
+     * Stops listening for JFR events.
+     */
+    public void stop() {
+        if (this.recordingStream != null) {
+            this.recordingStream.close();
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * Thrown in place of reading a document's state from a response
+ * that only says the server is struggling (a <code>5xx</code> or
+ * <code>429</code> status), so that the error response isn't
+ * mistaken for a change and the check can be tried again.
+ */
+public class ServerErrorException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param uri        The URI that was requested.
+     * @param statusCode The status the server responded with.
+     */
+    public ServerErrorException(Object uri, int statusCode) {
+        super(uri + " responded with status " + statusCode + "!");
+    }
+
+}
@@ -0,0 +1,456 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits <code>urlsToCheck</code> between several DocLookout
+ * instances, and lets the survivors take over the slice of an
+ * instance that dies. Instances only coordinate through lease
+ * files in a directory they all share (e.g. over NFS or SMB).
+ * <p>
+ * Each instance always holds the lease on its own shard, and
+ * renews it a few times per lease timeout. When the lease on
+ * another shard goes stale, any instance may claim it. Since
+ * two instances may claim a lease at the same time, a claim
+ * only counts if the lease still names the claimant on the
+ * next round. When the rightful owner comes back, it simply
+ * takes its lease back, and whoever was covering for it lets
+ * go on its next round.
+ * <p>
+ * Whoever covers for a shard checks it against its own storage,
+ * so the states it finds are handed back to the owner through a
+ * handoff file next to the lease. It is rewritten every round
+ * the shard is held, and once more when it is let go. The owner
+ * takes it in when it starts, before checking anything, and on
+ * every round after, so that it doesn't notify the changes found
+ * while it was gone a second time. Only changes found in the last
+ * round before the owner started can still be notified twice. The
+ * instance that let go forgets the states, so that they don't go
+ * stale should it cover for the shard again.
+ * <p>
+ * Leases are dated by the clock of whoever renewed them, so
+ * the clocks of all instances should be kept in sync (e.g.
+ * with NTP) to well within the lease timeout.
+ */
+public class ShardCoordinator {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many times per lease timeout leases are renewed and checked.
+     */
+    private static final int ROUNDS_PER_LEASE_TIMEOUT = 3;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The object we use to read and write JSON.
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The ring that decides which shard each URL belongs to.
+     */
+    private final ShardRing ring;
+
+    /**
+     * The shard this instance owns.
+     */
+    private final int ownShard;
+
+    /**
+     * The directory holding every shard's lease file.
+     */
+    private final File leaseDirectory;
+
+    /**
+     * How long a lease may go without being renewed.
+     */
+    private final long leaseTimeoutInMs;
+
+    /**
+     * Identifies this instance in the leases it holds.
+     */
+    private final String ownerID;
+
+    /**
+     * Told whenever this instance gains or loses a shard.
+     * Set by {@link #start(Listener)}, before the first round.
+     */
+    private Listener listener;
+
+    /**
+     * The shards this instance currently checks the URLs of.
+     */
+    private final Set<Integer> heldShards;
+
+    /**
+     * The shards whose leases we wrote last round, and
+     * which are ours if nobody overwrote them since.
+     */
+    private final Set<Integer> claimedShards;
+
+    /**
+     * Runs each round of renewing and checking leases.
+     */
+    private final ScheduledExecutorService timer;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config The configuration to take the shard settings from.
+     */
+    public ShardCoordinator(Configuration config) {
+        this.objectMapper = new ObjectMapper();
+        this.ring = new ShardRing(config.shardCount());
+        this.ownShard = config.shardIndex();
+        this.leaseDirectory = new File(config.shardDirectory());
+        this.leaseTimeoutInMs = config.shardLeaseTimeoutInMs();
+        this.ownerID = createOwnerID();
+        this.listener = null;
+        this.heldShards = ConcurrentHashMap.newKeySet();
+        this.claimedShards = new HashSet<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Takes the lease on this instance's own shard, then
+     * starts renewing it and watching the other leases.
+     *
+     * @param listener Told whenever this instance gains or loses a shard.
+     */
+    public void start(Listener listener) {
+
+        this.listener = listener;
+
+        if (!this.leaseDirectory.isDirectory() && !this.leaseDirectory.mkdirs()) {
+            System.err.println("Failed to create the shard directory, other instances won't see this one!");
+        }
+
+        writeLease(this.ownShard);
+        this.heldShards.add(this.ownShard);
+
+        // Whoever covered for us may still hold states we haven't seen
+        takeHandoff();
+
+        System.out.printf("Checking shard %d of %d as %s.%n", this.ownShard, this.ring.getShardCount(), this.ownerID);
+
+        long roundIntervalInMs = Math.max(1, this.leaseTimeoutInMs / ROUNDS_PER_LEASE_TIMEOUT);
+        this.timer.scheduleWithFixedDelay(this::runRound, roundIntervalInMs, roundIntervalInMs, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return The shard the URL belongs to.
+     */
+    public int shardFor(String url) {
+        return this.ring.shardFor(url);
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return Whether this instance should currently check the URL.
+     */
+    public boolean owns(String url) {
+        return this.heldShards.contains(this.ring.shardFor(url));
+    }
+
+    /**
+     * Stops renewing leases and gives up every lease we
+     * hold, so that the other instances can take over
+     * our slice right away.
+     */
+    public void stop() {
+
+        this.timer.shutdownNow();
+
+        try {
+            this.timer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int shard : this.heldShards) {
+
+            Lease lease = readLease(shard);
+
+            if (shard != this.ownShard) {
+                writeHandoff(shard, this.listener.statesOf(shard));
+            }
+
+            if (lease != null && this.ownerID.equals(lease.owner())) {
+                leaseFile(shard).delete();
+            }
+
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Renews the leases we hold, lets go of the ones that were
+     * taken from us, confirms last round's claims, and claims
+     * the leases that have gone stale.
+     */
+    private void runRound() {
+
+        try {
+
+            long now = System.currentTimeMillis();
+
+            for (int shard = 0; shard < this.ring.getShardCount(); shard++) {
+
+                // Our own lease is ours no matter what
+                if (shard == this.ownShard) {
+                    writeLease(shard);
+                    takeHandoff();
+                    continue;
+                }
+
+                Lease lease = readLease(shard);
+                boolean ours = lease != null && this.ownerID.equals(lease.owner());
+                boolean stale = lease == null || now - lease.renewedAtMs() > this.leaseTimeoutInMs;
+
+                if (this.heldShards.contains(shard)) {
+
+                    if (ours) {
+                        writeLease(shard);
+                        writeHandoff(shard, this.listener.statesOf(shard));
+                    } else {
+                        release(shard);
+                    }
+
+                } else if (this.claimedShards.remove(shard)) {
+
+                    // Nobody else claimed it since last round
+                    if (ours) {
+                        writeLease(shard);
+                        acquire(shard);
+                    }
+
+                } else if (stale) {
+                    writeLease(shard);
+                    this.claimedShards.add(shard);
+                }
+
+            }
+
+        } catch (Exception e) {
+            System.err.println("Unexpected error while renewing shard leases!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Starts checking the URLs of another shard.
+     */
+    private void acquire(int shard) {
+        System.out.printf("Taking over shard %d, its lease went stale.%n", shard);
+        this.heldShards.add(shard);
+        this.listener.onAcquired(shard);
+    }
+
+    /**
+     * Stops checking the URLs of another shard, and
+     * hands the states found for them to its owner.
+     */
+    private void release(int shard) {
+        System.out.printf("Handing shard %d back, another instance holds its lease.%n", shard);
+        this.heldShards.remove(shard);
+        writeHandoff(shard, this.listener.onReleased(shard));
+    }
+
+    /**
+     * Atomically replaces the handoff file of the given shard
+     * with the given states.
+     */
+    private void writeHandoff(int shard, List<StorageLog.Entry> states) {
+
+        File handoffFile = handoffFile(shard);
+        File temporaryFile = new File(this.leaseDirectory, handoffFile.getName() + "." + this.ownerID + ".tmp");
+
+        try {
+            this.objectMapper.writeValue(temporaryFile, states);
+            Files.move(temporaryFile.toPath(), handoffFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.err.println("Failed to hand back the states of shard " + shard + "!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Takes in the states left in the handoff file of our own
+     * shard, if there is one. The file is moved out of the way
+     * before it is read, so that a newer one written meanwhile
+     * is left for the next round rather than deleted unread.
+     */
+    private void takeHandoff() {
+
+        File handoffFile = handoffFile(this.ownShard);
+
+        if (!handoffFile.exists()) {
+            return;
+        }
+
+        File takenFile = new File(this.leaseDirectory, handoffFile.getName() + "." + this.ownerID + ".taken");
+        StorageLog.Entry[] states;
+
+        try {
+            Files.move(handoffFile.toPath(), takenFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            states = this.objectMapper.readValue(takenFile, StorageLog.Entry[].class);
+        } catch (Exception e) {
+            System.err.println("Failed to take back the states of shard " + this.ownShard + "!");
+            e.printStackTrace();
+            return;
+        } finally {
+            takenFile.delete();
+        }
+
+        this.listener.onHandedBack(List.of(states));
+
+    }
+
+    /**
+     * @return The lease on the given shard, or <code>null</code>
+     * if there is none or it can't be read.
+     */
+    private Lease readLease(int shard) {
+
+        File leaseFile = leaseFile(shard);
+
+        if (!leaseFile.exists()) {
+            return null;
+        }
+
+        try {
+            return this.objectMapper.readValue(leaseFile, Lease.class);
+        } catch (Exception e) {
+            // Being replaced right now, or left half-written
+            return null;
+        }
+
+    }
+
+    /**
+     * Atomically replaces the lease on the given shard with
+     * one naming this instance, renewed right now.
+     */
+    private void writeLease(int shard) {
+
+        File leaseFile = leaseFile(shard);
+        File temporaryFile = new File(this.leaseDirectory, leaseFile.getName() + "." + this.ownerID + ".tmp");
+
+        try {
+            this.objectMapper.writeValue(temporaryFile, new Lease(this.ownerID, System.currentTimeMillis()));
+            Files.move(temporaryFile.toPath(), leaseFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.err.println("Failed to write the lease on shard " + shard + "!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * @return The lease file of the given shard.
+     */
+    private File leaseFile(int shard) {
+        return new File(this.leaseDirectory, "shard-" + shard + ".lease");
+    }
+
+    /**
+     * @return The handoff file of the given shard.
+     */
+    private File handoffFile(int shard) {
+        return new File(this.leaseDirectory, "shard-" + shard + ".handoff.json");
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return An ID that is unique to this run of this instance,
+     * and says where it runs to whoever reads the lease files.
+     */
+    private static String createOwnerID() {
+
+        String host;
+
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+
+        return host + "-" + ProcessHandle.current().pid() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * The contents of a lease file.
+     *
+     * @param owner       The ID of the instance holding the lease.
+     * @param renewedAtMs When the lease was last renewed, in epoch
+     *                    milliseconds.
+     */
+    public record Lease(String owner, long renewedAtMs) {
+    }
+
+    /**
+     * Told whenever an instance gains or loses a shard other than its
+     * own, and asked for and handed the states that go with them.
+     */
+    public interface Listener {
+
+        /**
+         * @param shard The shard whose URLs should now be checked.
+         */
+        void onAcquired(int shard);
+
+        /**
+         * Stops checking the URLs of a shard, and forgets their states.
+         *
+         * @param shard The shard whose URLs should no longer be checked.
+         * @return The states that were forgotten, to hand back to the
+         * shard's owner.
+         */
+        List<StorageLog.Entry> onReleased(int shard);
+
+        /**
+         * @param shard A shard other than our own that is still held.
+         * @return The states of the shard's URLs, to hand back to its owner.
+         */
+        List<StorageLog.Entry> statesOf(int shard);
+
+        /**
+         * @param states The states of our own shard's URLs, found by
+         *               whoever covered for this instance. They are
+         *               only newer than ours if they changed since.
+         */
+        void onHandedBack(List<StorageLog.Entry> states);
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package me.joshuasheldon.doclookout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring that splits URLs between shards. Every
+ * shard owns many points on the ring, and a URL belongs to the
+ * shard owning the first point at or after the URL's hash. The
+ * hash is the same on every machine and JVM, so every instance
+ * agrees on who owns what without talking to the others, and
+ * changing the shard count only moves the URLs it has to.
+ */
+public class ShardRing {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * How many points each shard owns. More points
+     * spread the URLs more evenly between shards.
+     */
+    private static final int POINTS_PER_SHARD = 128;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The number of shards on the ring.
+     */
+    private final int shardCount;
+
+    /**
+     * The shard owning each point, keyed by the point's hash.
+     */
+    private final TreeMap<Long, Integer> points;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param shardCount The number of shards to split URLs between.
+     */
+    public ShardRing(int shardCount) {
+
+        this.shardCount = shardCount;
+        this.points = new TreeMap<>();
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                this.points.put(hash("shard-" + shard + "-" + point), shard);
+            }
+        }
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * @return The number of shards on the ring.
+     */
+    public int getShardCount() {
+        return this.shardCount;
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return The shard the URL belongs to.
+     */
+    public int shardFor(String url) {
+
+        if (this.shardCount == 1) {
+            return 0;
+        }
+
+        // Wrap around past the last point
+        Map.Entry<Long, Integer> point = this.points.ceilingEntry(hash(url));
+        return (point != null) ? point.getValue() : this.points.firstEntry().getValue();
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * A 64-bit FNV-1a hash of the string's UTF-8 bytes, followed
+     * by a finalizer that spreads similar strings (like URLs that
+     * only differ at the end) across the whole ring.
+     *
+     * @param value The string to hash.
+     * @return The hash of the string.
+     */
+    static long hash(String value) {
+
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package me.joshuasheldon.doclookout;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Converts snapshots of URL states between the JSON and binary
+ * formats, for switching {@link StorageFormat} by hand or for
+ * reading a binary snapshot. Fold the storage log into the
+ * snapshot (by running DocLookout until it compacts) or delete
+ * it before converting, since the log isn't converted.
+ * <p>
+ * Usage:<br>
+ * <code>SnapshotConverter to-binary storage.json storage.bin</code><br>
+ * <code>SnapshotConverter to-json storage.bin storage.json</code>
+ */
+public class SnapshotConverter {
+
+    /* ---------- MAIN METHOD ---------- */
+
+    /**
+     * The entry point for the converter.
+     *
+     * @param args The direction to convert in, the file to
+     *             read, and the file to write.
+     */
+    public static void main(String[] args) {
+
+        if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-json"))) {
+            System.err.println("Usage: SnapshotConverter <to-binary|to-json> <input file> <output file>");
+            System.exit(1);
+            return;
+        }
+
+        File inputFile = new File(args[1]);
+        File outputFile = new File(args[2]);
+
+        try {
+
+            Map<String, DocumentState> states;
+
+            if (args[0].equals("to-binary")) {
+                states = JsonSnapshot.read(inputFile);
+                BinarySnapshot.write(outputFile, states);
+            } else {
+                states = BinarySnapshot.open(inputFile).toMap();
+                JsonSnapshot.write(outputFile, states);
+            }
+
+            System.out.printf("Converted %d URL state(s) from %s to %s.%n", states.size(), inputFile, outputFile);
+
+        } catch (Exception e) {
+            System.err.println("Failed to convert the snapshot!");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * The formats DocLookout can store its snapshot of URL
+ * states in. Either way, changes made since the snapshot
+ * was written are kept in the storage log.
+ */
+public enum StorageFormat {
+
+    /**
+     * A JSON object mapping each URL to its state, which is
+     * parsed in full on startup. Easy to read and edit by hand.
+     */
+    JSON,
+
+    /**
+     * A memory-mapped {@link BinarySnapshot}, which opens
+     * instantly and is looked up one URL at a time. Meant
+     * for very large URL lists.
+     */
+    BINARY
+
+}
@@ -0,0 +1,472 @@
+package me.joshuasheldon.doclookout;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * An append-only log of changes to the stored URL states, kept
+ * next to the storage snapshot. Each line is one changed entry,
+ * so the disk I/O of a cycle scales with the number of changes
+ * rather than with the number of URLs.
+ * <p>
+ * All writes go through a single writer thread. Whatever piles
+ * up while it is busy is written and synced to disk together
+ * (group commit), so a burst of changes costs one fsync rather
+ * than one per change. When the log grows past the size of the
+ * snapshot, the writer thread folds it into a fresh snapshot and
+ * truncates it.
+ * <p>
+ * A batch can be appended after something else that has to reach
+ * the disk first, e.g. the notifications of the changes in it. The
+ * writer thread holds it back until then, so that whoever appends
+ * it never has to wait for the disk while storage is locked.
+ */
+public class StorageLog {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The log is never compacted while it has fewer entries than this.
+     */
+    private static final int MIN_ENTRIES_BEFORE_COMPACTION = 1_000;
+
+    /**
+     * The longest the writer thread holds a batch back for what
+     * it was appended after, before writing it anyway.
+     */
+    private static final long MAX_WAIT_FOR_PRECEDING_WRITE_IN_MS = 10_000L;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The object we use to read and write JSON.
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * The file the log is written to.
+     */
+    private final File logFile;
+
+    /**
+     * Folds the log into a fresh snapshot. Called on the writer
+     * thread, which makes sure no entries are appended meanwhile.
+     */
+    private final Compactor compactor;
+
+    /**
+     * The batches waiting to be written by the writer thread.
+     */
+    private final BlockingQueue<Batch> pendingBatches;
+
+    /**
+     * The thread that writes and syncs all batches.
+     */
+    private final Thread writerThread;
+
+    /**
+     * The channel the log is appended through, or <code>null</code>
+     * until the log has been opened.
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of entries in the log since it was last compacted.
+     */
+    private long entryCount;
+
+    /**
+     * Whether the log has been stopped, after which nothing more
+     * is appended. Guarded by the lock on the log, so that nothing
+     * can be queued behind the writer thread's last write.
+     */
+    private boolean stopped;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param logFile   The file the log is written to.
+     * @param compactor Folds the log into a fresh snapshot.
+     */
+    public StorageLog(File logFile, Compactor compactor) {
+        this.objectMapper = new ObjectMapper();
+        this.logFile = logFile;
+        this.compactor = compactor;
+        this.pendingBatches = new LinkedBlockingQueue<>();
+        this.writerThread = new Thread(this::runWriter, "DocLookout-StorageLog");
+        this.writerThread.setDaemon(true);
+        this.entryCount = 0;
+        this.stopped = false;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Replays every entry in the log, in order, then opens the log
+     * for appending and starts the writer thread. Replay stops at
+     * the first entry that can't be read, which is where a crash
+     * cut off the last write. The log is truncated there, so that
+     * what's appended from now on can be replayed again.
+     *
+     * @param consumer Receives the URL and state of each entry. The
+     *                 state is <code>null</code> if the URL was removed.
+     */
+    public void replayAndOpen(BiConsumer<String, DocumentState> consumer) {
+
+        try {
+
+            this.channel = LineFile.readAndOpen(this.logFile, "storage log", line -> {
+
+                Entry entry;
+
+                try {
+                    entry = this.objectMapper.readValue(line, Entry.class);
+                } catch (Exception e) {
+                    return false;
+                }
+
+                consumer.accept(entry.url(), entry.state());
+                this.entryCount++;
+
+                return true;
+
+            });
+
+        } catch (Exception e) {
+            System.err.println("Failed to open the storage log, changes will not be saved!");
+            e.printStackTrace();
+        }
+
+        this.writerThread.start();
+
+    }
+
+    /**
+     * Queues entries to be appended to the log.
+     *
+     * @param entries The entries to append.
+     * @return A future that completes once the entries have been
+     * synced to disk, or completes exceptionally if they couldn't be.
+     */
+    public CompletableFuture<Void> append(List<Entry> entries) {
+        return append(entries, null);
+    }
+
+    /**
+     * Queues entries to be appended to the log once something else
+     * has completed. Batches appended later wait for it as well, so
+     * that the log stays in the order entries were appended.
+     *
+     * @param entries The entries to append.
+     * @param after   Completes once the entries may be written,
+     *                or <code>null</code> if they may be right away.
+     *                The entries are written even if it fails.
+     * @return A future that completes once the entries have been
+     * synced to disk, or completes exceptionally if they couldn't be,
+     * e.g. because the log has been stopped.
+     */
+    public CompletableFuture<Void> append(List<Entry> entries, CompletableFuture<?> after) {
+
+        Batch batch = new Batch(entries, after);
+
+        if (entries.isEmpty()) {
+            batch.synced.complete(null);
+            return batch.synced;
+        }
+
+        synchronized (this) {
+
+            if (this.stopped) {
+                System.err.printf("The storage log has been stopped, dropped %d change(s)!%n", entries.size());
+                batch.synced.completeExceptionally(new IOException("The storage log has been stopped!"));
+                return batch.synced;
+            }
+
+            this.pendingBatches.add(batch);
+
+        }
+
+        return batch.synced;
+
+    }
+
+    /**
+     * @return A future that completes once whatever the queued
+     * batches were appended after has completed, or <code>null</code>
+     * if it already has. Until then, their entries mustn't make it
+     * into a snapshot, which the log is truncated after.
+     */
+    public CompletableFuture<Void> precedingWrites() {
+
+        List<CompletableFuture<?>> incomplete = null;
+
+        for (Batch batch : this.pendingBatches) {
+            if (batch.after != null && !batch.after.isDone()) {
+                incomplete = (incomplete != null) ? incomplete : new ArrayList<>();
+                incomplete.add(batch.after);
+            }
+        }
+
+        return (incomplete != null) ? CompletableFuture.allOf(incomplete.toArray(CompletableFuture<?>[]::new)) : null;
+
+    }
+
+    /**
+     * Writes whatever is still queued, then closes the log.
+     * Entries appended from then on are rejected.
+     */
+    public void stop() {
+
+        synchronized (this) {
+            this.stopped = true;
+            this.pendingBatches.add(Batch.POISON);
+        }
+
+        try {
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * The body of the writer thread.
+     */
+    private void runWriter() {
+
+        List<Batch> batches = new ArrayList<>();
+
+        while (true) {
+
+            try {
+                batches.add(this.pendingBatches.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Commit everything that queued up while we were busy
+            this.pendingBatches.drainTo(batches);
+
+            boolean stopping = batches.remove(Batch.POISON);
+
+            writeBatches(batches);
+            batches.clear();
+
+            if (stopping) {
+                closeChannel();
+                return;
+            }
+
+        }
+
+    }
+
+    /**
+     * Writes the given batches to the log with one write and one
+     * sync, then compacts the log if it has grown too large.
+     */
+    private void writeBatches(List<Batch> batches) {
+
+        if (batches.isEmpty()) {
+            return;
+        }
+
+        awaitPrecedingWrites(batches);
+
+        try {
+
+            if (this.channel == null) {
+                throw new IOException("The storage log is not open!");
+            }
+
+            long startNanos = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int written = 0;
+
+            for (Batch batch : batches) {
+                for (Entry entry : batch.entries) {
+                    bytes.write(this.objectMapper.writeValueAsBytes(entry));
+                    bytes.write('\n');
+                    written++;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+
+            this.channel.force(false);
+            this.entryCount += written;
+
+            Metrics.getInstance().recordStorageWrite(System.nanoTime() - startNanos);
+
+            for (Batch batch : batches) {
+                batch.synced.complete(null);
+            }
+
+        } catch (Exception e) {
+
+            System.err.println("Failed to write to the storage log!");
+            e.printStackTrace();
+
+            for (Batch batch : batches) {
+                batch.synced.completeExceptionally(e);
+            }
+
+            return;
+
+        }
+
+        compactIfNeeded();
+
+    }
+
+    /**
+     * Waits for whatever the given batches were appended after.
+     * Failures were already reported by whoever failed, so they
+     * don't keep the batches out of the log.
+     */
+    private void awaitPrecedingWrites(List<Batch> batches) {
+
+        long deadline = System.currentTimeMillis() + MAX_WAIT_FOR_PRECEDING_WRITE_IN_MS;
+
+        for (Batch batch : batches) {
+
+            if (batch.after == null) {
+                continue;
+            }
+
+            try {
+                batch.after.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (TimeoutException e) {
+                System.err.println("Timed out waiting to write to the storage log, writing anyway!");
+                return;
+            } catch (Exception e) {
+                // Reported by whoever failed
+            }
+
+        }
+
+    }
+
+    /**
+     * Folds the log into a fresh snapshot once it holds more
+     * entries than the snapshot would. Runs on the writer thread,
+     * so every entry written so far is already reflected in the
+     * snapshot, and nothing can be appended until the log has been
+     * truncated.
+     */
+    private void compactIfNeeded() {
+
+        if (this.entryCount < MIN_ENTRIES_BEFORE_COMPACTION || this.entryCount < this.compactor.snapshotSize()) {
+            return;
+        }
+
+        try {
+
+            // If we crash after the snapshot is replaced but before
+            // the log is truncated, replaying the old log on top of
+            // the new snapshot still ends at the same state
+            this.compactor.writeSnapshot();
+            this.channel.truncate(0);
+            this.channel.force(false);
+            this.entryCount = 0;
+
+        } catch (Exception e) {
+            System.err.println("Failed to compact the storage log!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Closes the log file.
+     */
+    private void closeChannel() {
+
+        if (this.channel == null) {
+            return;
+        }
+
+        try {
+            this.channel.close();
+        } catch (Exception e) {
+            System.err.println("Failed to close the storage log!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A single line of the log.
+     *
+     * @param url   The URL whose state changed.
+     * @param state The new state of the URL, or <code>null</code>
+     *              if the URL was removed.
+     */
+    public record Entry(String url, DocumentState state) {
+    }
+
+    /**
+     * Writes snapshots on behalf of the log.
+     */
+    public interface Compactor {
+
+        /**
+         * @return The number of entries a snapshot would hold.
+         */
+        int snapshotSize();
+
+        /**
+         * Atomically replaces the snapshot with the current state.
+         *
+         * @throws IOException If the snapshot couldn't be written.
+         */
+        void writeSnapshot() throws IOException;
+
+    }
+
+    /**
+     * Entries appended together, what they were appended after,
+     * and the future completed once they have been synced.
+     */
+    private static final class Batch {
+
+        private static final Batch POISON = new Batch(List.of(), null);
+
+        private final List<Entry> entries;
+        private final CompletableFuture<?> after;
+        private final CompletableFuture<Void> synced;
+
+        private Batch(List<Entry> entries, CompletableFuture<?> after) {
+            this.entries = entries;
+            this.after = after;
+            this.synced = new CompletableFuture<>();
+        }
+
+    }
+
+}
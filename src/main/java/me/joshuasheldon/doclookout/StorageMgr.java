@@ -1,174 +1,772 @@
 package me.joshuasheldon.doclookout;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import java.io.File;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
- * Manages the last found content length of all URLs.
+ * Manages the last found state (content length,
+ * validators and when it last changed) of all URLs.
+ * <p>
+ * State is persisted as a snapshot plus a
+ * {@link StorageLog} of the changes made since. Only
+ * changed entries are written each cycle, and the log
+ * is folded back into the snapshot once it grows past it.
+ * <p>
+ * In {@link StorageFormat#BINARY} mode, the snapshot is a
+ * memory-mapped {@link BinarySnapshot} that is looked up one
+ * URL at a time, and only the changes made since it was
+ * written are kept in memory.
+ * <p>
+ * States in memory are kept in a {@link URLStateTable}, and
+ * results are diffed against it in place, so that checking a
+ * document that didn't change allocates nothing here.
  */
-public class StorageMgr {
+public class StorageMgr implements StorageLog.Compactor {
 
     /* ---------- CONSTANTS ---------- */
 
     /**
-     * The name of the file where we store the last found content length of all URLs.
+     * The name all storage files share, before their extension.
+     */
+    public static final String STORAGE_BASE_NAME = "storage";
+
+    /**
+     * The name of the file where we store the last found state of all URLs.
+     */
+    public static final String STORAGE_FILE_NAME = STORAGE_BASE_NAME + ".json";
+
+    /**
+     * The name of the file where we store the last found state
+     * of all URLs in {@link StorageFormat#BINARY} mode.
+     */
+    public static final String BINARY_STORAGE_FILE_NAME = STORAGE_BASE_NAME + ".bin";
+
+    /**
+     * The name of the file where we log the changes made since the snapshot.
+     */
+    public static final String STORAGE_LOG_FILE_NAME = STORAGE_BASE_NAME + ".log";
+
+    /**
+     * The longest a snapshot waits for the changes it would hold
+     * to be recorded, before the log is left uncompacted for now.
      */
-    public static final String STORAGE_FILE_NAME = "storage.json";
+    private static final long MAX_WAIT_FOR_RECORDING_IN_MS = 10_000L;
 
     /* ---------- INSTANCE VARIABLES ---------- */
 
     /**
-     * The object we use to read and write JSON.
+     * The format the snapshot is written in.
      */
-    private final ObjectMapper objectMapper;
+    private final StorageFormat storageFormat;
 
     /**
-     * The file where we store the last found content length of all URLs.
+     * The file where we store the last found state of all URLs.
      */
     private final File storageFile;
 
     /**
-     * The map where we store the last found content length of all URLs.
+     * The file where we store the last found state of all
+     * URLs in {@link StorageFormat#BINARY} mode.
+     */
+    private final File binaryStorageFile;
+
+    /**
+     * The table where we store the last found state of all URLs.
+     * While a binary snapshot is mapped, it only holds the states
+     * that changed since the snapshot was written, and URLs removed
+     * since then are mapped to <code>null</code>.
      */
-    private final Map<String, Long> urlContentLengths;
+    private final URLStateTable urlStates;
+
+    /**
+     * The log of changes made since the snapshot was written.
+     */
+    private final StorageLog storageLog;
+
+    /**
+     * The mapped binary snapshot, or <code>null</code> if there
+     * isn't one. Guarded by the lock on {@link #urlStates}.
+     */
+    private BinarySnapshot binarySnapshot;
 
     /* ---------- CONSTRUCTORS ---------- */
 
-    private StorageMgr() {
-        this.objectMapper = new ObjectMapper();
-        this.storageFile = new File(StorageMgr.STORAGE_FILE_NAME);
-        this.urlContentLengths = new HashMap<>();
+    /**
+     * @param baseName      The name all storage files share,
+     *                      before their extension.
+     * @param storageFormat The format to write the snapshot in.
+     */
+    StorageMgr(String baseName, StorageFormat storageFormat) {
+        this.storageFormat = storageFormat;
+        this.storageFile = new File(baseName + ".json");
+        this.binaryStorageFile = new File(baseName + ".bin");
+        this.urlStates = new URLStateTable();
+        this.storageLog = new StorageLog(new File(baseName + ".log"), this);
+        this.binarySnapshot = null;
         readFromStorage();
     }
 
     /* ---------- SINGLETON ---------- */
 
-    private static final StorageMgr instance = new StorageMgr();
+    private static volatile StorageMgr instance;
+
+    /**
+     * Creates the storage manager with the storage settings of
+     * the given configuration. Must be called before the first
+     * call to {@link #getInstance()} for them to take effect.
+     *
+     * @param config The configuration to take the storage settings from.
+     */
+    public static synchronized void initialize(Configuration config) {
+
+        if (instance != null) {
+            System.err.println("Storage has already been loaded, ignoring the storage settings!");
+            return;
+        }
+
+        // Every shard keeps its own storage, so that instances
+        // sharing a working directory don't overwrite each other
+        String baseName = (config.shardCount() > 1)
+                ? StorageMgr.STORAGE_BASE_NAME + "-shard-" + config.shardIndex()
+                : StorageMgr.STORAGE_BASE_NAME;
+
+        instance = new StorageMgr(baseName, config.storageFormat());
+
+    }
 
     public static StorageMgr getInstance() {
+
+        // Fall back to the default settings if we weren't initialized
+        if (instance == null) {
+            synchronized (StorageMgr.class) {
+                if (instance == null) {
+                    instance = new StorageMgr(StorageMgr.STORAGE_BASE_NAME, StorageFormat.JSON);
+                }
+            }
+        }
+
         return instance;
+
     }
 
     /* ---------- PUBLIC METHODS ---------- */
 
+    /**
+     * @param url The URL to look up.
+     * @return The last found state of the URL, or
+     * <code>null</code> if we haven't seen it yet.
+     */
+    public DocumentState getState(String url) {
+        synchronized (this.urlStates) {
+            return lookupState(url);
+        }
+    }
+
+    /**
+     * Same as the last change time of {@link #getState(String)},
+     * but read from the table in place, so that nothing is
+     * allocated unless the URL is only in the binary snapshot.
+     *
+     * @param url The URL to look up.
+     * @return When the URL's document last changed, or
+     * {@link Long#MIN_VALUE} if we don't know.
+     */
+    public long getLastChangedAtMs(String url) {
+
+        synchronized (this.urlStates) {
+
+            if (this.binarySnapshot != null && !this.urlStates.containsKey(url)) {
+                DocumentState state = this.binarySnapshot.lookup(url);
+                return (state != null && state.lastChangedAtMs() != null) ? state.lastChangedAtMs() : Long.MIN_VALUE;
+            }
+
+            int id = this.urlStates.idOf(url);
+
+            return this.urlStates.hasState(id) ? this.urlStates.lastChangedAtMs(id) : Long.MIN_VALUE;
+
+        }
+
+    }
+
     /**
      * Attempts to insert all the entries from the parameter
-     * into the internal map, and then starts a new thread
-     * to writes the updated internal map to a file.
+     * into the internal table, and then appends the entries
+     * that actually changed to the storage log. Results
+     * of conditional requests that came back
+     * <code>304 Not Modified</code> are skipped without
+     * comparing anything.
      *
-     * @param newURLContentLengths The new URL-content length pairs.
+     * @param checkResults The new URL-check result pairs.
      * @return A list of the URLs that:<br>
-     * 1) were already in the map and<br>
-     * 2) had their value changed.<br>
+     * 1) were already in storage and<br>
+     * 2) had their state changed.<br>
      * This effectively reports which files have changed.
      */
-    public List<String> updateStorage(Map<String, Long> newURLContentLengths) {
+    public List<String> updateStorage(Map<String, CheckResult> checkResults) {
+        return updateStorage(checkResults, changes -> null);
+    }
 
-        LinkedList<String> updatedURLs = new LinkedList<>();
+    /**
+     * Same as {@link #updateStorage(Map)}, but first hands the new
+     * state of every changed URL to the given recorder, before any
+     * of it is logged. The entries are only written to the storage
+     * log once the future the recorder returns has completed, so if
+     * the recorder makes them durable by then, a change can never be
+     * stored without being recorded.
+     *
+     * @param checkResults   The new URL-check result pairs.
+     * @param changeRecorder Receives the new state of every changed
+     *                       URL, if any changed, and returns what the
+     *                       log has to wait for, or <code>null</code>.
+     *                       Called while storage is locked, so it
+     *                       mustn't wait for anything itself.
+     * @return The URLs that had their state changed.
+     */
+    public List<String> updateStorage(Map<String, CheckResult> checkResults,
+                                      Function<List<StorageLog.Entry>, CompletableFuture<?>> changeRecorder) {
 
-        // Synchronize on the map to ensure that we're not updating
-        // it and writing it to the file at the same time
-        synchronized (this.urlContentLengths) {
+        // Only allocated once something has to be stored, so a
+        // cycle in which nothing changed allocates nothing here
+        List<String> updatedURLs = null;
+        List<StorageLog.Entry> logEntries = null;
+        List<StorageLog.Entry> changedEntries = null;
+        long now = System.currentTimeMillis();
 
-            // Add all pairs from the parameter to the internal map
-            for (Map.Entry<String, Long> pair : newURLContentLengths.entrySet()) {
+        // Synchronize on the table to ensure that we're not updating
+        // it and writing it to the snapshot at the same time
+        synchronized (this.urlStates) {
 
-                Long oldValue = this.urlContentLengths.put(pair.getKey(), pair.getValue());
+            for (Map.Entry<String, CheckResult> pair : checkResults.entrySet()) {
 
-                // If a URL has had its content length changed,
+                Update update = storeResult(pair.getKey(), pair.getValue(), now);
+
+                if (update == Update.NONE) {
+                    continue;
+                }
+
+                StorageLog.Entry entry = new StorageLog.Entry(pair.getKey(), lookupState(pair.getKey()));
+
+                logEntries = (logEntries != null) ? logEntries : new ArrayList<>();
+                logEntries.add(entry);
+
+                // If a URL has had its state changed,
                 // then add it to the list of updated URLs
-                if (oldValue != null && !oldValue.equals(pair.getValue())) {
-                    updatedURLs.push(pair.getKey());
+                if (update == Update.CHANGED) {
+                    updatedURLs = (updatedURLs != null) ? updatedURLs : new ArrayList<>();
+                    changedEntries = (changedEntries != null) ? changedEntries : new ArrayList<>();
+                    updatedURLs.add(pair.getKey());
+                    changedEntries.add(entry);
                 }
 
             }
+
+            CompletableFuture<?> recorded = (changedEntries != null) ? changeRecorder.apply(changedEntries) : null;
+
+            // Append while still holding the lock, so that entries
+            // reach the log in the same order they hit the table
+            if (logEntries != null) {
+                this.storageLog.append(logEntries, recorded);
+            }
+
         }
 
-        // Now that we've updated our internal map, start a new thread
-        // to write those changes to the storage file.
-        new Thread(this::writeToStorage).start();
+        return (updatedURLs != null) ? updatedURLs : List.of();
 
-        return updatedURLs;
+    }
 
+    /**
+     * Same as {@link #updateStorage(Map, Function)} for a single
+     * result, which it stores without allocating anything unless
+     * the result differs from the stored state.
+     *
+     * @param url            The URL that was checked.
+     * @param checkResult    The result of checking it.
+     * @param changeRecorder Receives the new state of the URL if it
+     *                       changed, and returns what the log has to
+     *                       wait for, or <code>null</code>. Called
+     *                       while storage is locked, so it mustn't
+     *                       wait for anything itself.
+     * @return Whether the URL had its state changed.
+     */
+    public boolean updateStorage(String url, CheckResult checkResult,
+                                 Function<List<StorageLog.Entry>, CompletableFuture<?>> changeRecorder) {
+        return updateStorage(url, checkResult, checkedURL -> true, changeRecorder);
     }
 
-    /* ---------- PRIVATE METHODS ---------- */
+    /**
+     * Same as {@link #updateStorage(String, CheckResult, Function)},
+     * but drops the result if the URL is no longer checked. That is
+     * decided while storage is locked, so that a result that comes
+     * in after {@link #removeStates(Collection)} can't bring back
+     * the state it removed, as long as the URL stops being checked
+     * before its state is removed.
+     *
+     * @param url            The URL that was checked.
+     * @param checkResult    The result of checking it.
+     * @param isChecked      Tells whether a URL is still checked.
+     *                       Called while storage is locked, so it
+     *                       mustn't take any other locks.
+     * @param changeRecorder Receives the new state of the URL if it
+     *                       changed, and returns what the log has to
+     *                       wait for, or <code>null</code>. Called
+     *                       while storage is locked, so it mustn't
+     *                       wait for anything itself.
+     * @return Whether the URL had its state changed.
+     */
+    public boolean updateStorage(String url, CheckResult checkResult, Predicate<String> isChecked,
+                                 Function<List<StorageLog.Entry>, CompletableFuture<?>> changeRecorder) {
+
+        synchronized (this.urlStates) {
+
+            if (!isChecked.test(url)) {
+                return false;
+            }
+
+            Update update = storeResult(url, checkResult, System.currentTimeMillis());
+
+            if (update == Update.NONE) {
+                return false;
+            }
+
+            List<StorageLog.Entry> entries = List.of(new StorageLog.Entry(url, lookupState(url)));
+
+            CompletableFuture<?> recorded = (update == Update.CHANGED) ? changeRecorder.apply(entries) : null;
+
+            this.storageLog.append(entries, recorded);
+
+            return update == Update.CHANGED;
+
+        }
+
+    }
 
     /**
-     * Attempts to read all existing URL-content length pairs
-     * from the storage file into our in-memory map.
+     * Puts back states that were recorded elsewhere before they
+     * were stored, in case they never made it into the storage
+     * log. URLs whose stored state is as new or newer are left alone.
+     *
+     * @param entries The URLs and the states to put back.
      */
-    private void readFromStorage() {
+    public void restoreStates(List<StorageLog.Entry> entries) {
+
+        List<StorageLog.Entry> logEntries = new ArrayList<>();
+
+        synchronized (this.urlStates) {
+
+            for (StorageLog.Entry entry : entries) {
+
+                DocumentState storedState = lookupState(entry.url());
+
+                if (entry.state() == null || entry.state().lastChangedAtMs() == null) {
+                    continue;
+                }
+
+                if (storedState == null || storedState.lastChangedAtMs() == null
+                        || storedState.lastChangedAtMs() < entry.state().lastChangedAtMs()) {
+                    this.urlStates.put(entry.url(), entry.state());
+                    logEntries.add(entry);
+                }
+
+            }
+
+            this.storageLog.append(logEntries);
 
-        if (!this.storageFile.exists()) {
-            System.out.println("No existing storage file found.");
-            return;
         }
 
-        // Attempt to read storage file into map object
-        Map<?, ?> storageURLContentLengths;
+    }
 
-        try {
-            storageURLContentLengths =
-                    this.objectMapper.readValue(this.storageFile, this.urlContentLengths.getClass());
-        } catch (Exception e) {
-            System.err.println("Failed to read storage file!");
-            e.printStackTrace();
+    /**
+     * Forgets the state of URLs that are no longer checked,
+     * and logs their removal.
+     *
+     * @param urls The URLs to forget.
+     */
+    public void removeStates(Collection<String> urls) {
+
+        List<StorageLog.Entry> logEntries = new ArrayList<>();
+
+        synchronized (this.urlStates) {
+
+            for (String url : urls) {
+
+                if (lookupState(url) == null) {
+                    continue;
+                }
+
+                // The binary snapshot still has it, so leave a tombstone
+                if (this.binarySnapshot != null) {
+                    this.urlStates.put(url, null);
+                } else {
+                    this.urlStates.remove(url);
+                }
+
+                logEntries.add(new StorageLog.Entry(url, null));
+
+            }
+
+            this.storageLog.append(logEntries);
+
+        }
+
+    }
+
+    /**
+     * Writes any changes that are still queued to the storage
+     * log, then closes it.
+     */
+    public void stop() {
+        this.storageLog.stop();
+    }
+
+    /**
+     * @return The number of URLs in the snapshot.
+     */
+    @Override
+    public int snapshotSize() {
+        synchronized (this.urlStates) {
+            int snapshotSize = this.urlStates.size();
+            return (this.binarySnapshot != null) ? snapshotSize + this.binarySnapshot.size() : snapshotSize;
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot with the current state
+     * of all URLs, in the configured format.
+     * <p>
+     * Changes whose log entries are still waiting for their
+     * notifications to be recorded would be lost along with the
+     * truncated log, so the snapshot waits until they have been.
+     * Entries are queued while the table is locked, so once none
+     * are waiting under that lock, every state in it may be written.
+     *
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    @Override
+    public void writeSnapshot() throws IOException {
+
+        // Make a copy of the table so that we can write it to the file
+        // without worrying about it being modified while we're writing
+        Map<String, DocumentState> urlStatesCopy;
+        BinarySnapshot currentSnapshot;
+        long deadline = System.currentTimeMillis() + MAX_WAIT_FOR_RECORDING_IN_MS;
+
+        while (true) {
+
+            CompletableFuture<Void> precedingWrites;
+
+            synchronized (this.urlStates) {
+
+                precedingWrites = this.storageLog.precedingWrites();
+
+                if (precedingWrites == null) {
+                    urlStatesCopy = this.urlStates.toMap();
+                    currentSnapshot = this.binarySnapshot;
+                    break;
+                }
+
+            }
+
+            try {
+                precedingWrites.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for changes to be recorded!", e);
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out waiting for changes to be recorded!", e);
+            } catch (ExecutionException e) {
+                // Reported by whoever failed, and the entries are logged anyway
+            }
+
+        }
+
+        if (this.storageFormat == StorageFormat.JSON) {
+            JsonSnapshot.write(this.storageFile, urlStatesCopy);
             return;
         }
 
-        // Add all valid key-value pairs to the map
-        for (Map.Entry<?, ?> entry : storageURLContentLengths.entrySet()) {
+        // Fold the changes into what the current binary snapshot holds,
+        // one record at a time, skipping the URLs that changed since
+        // (or were removed), whose states are written after them
+        BinarySnapshot.write(this.binaryStorageFile, consumer -> {
+
+            if (currentSnapshot != null) {
+                currentSnapshot.forEach((url, state) -> {
+                    if (!urlStatesCopy.containsKey(url)) {
+                        consumer.accept(url, state);
+                    }
+                });
+            }
+
+            urlStatesCopy.forEach((url, state) -> {
+                if (state != null) {
+                    consumer.accept(url, state);
+                }
+            });
+
+        });
+        BinarySnapshot newSnapshot = BinarySnapshot.open(this.binaryStorageFile);
 
-            // Make sure key is String and value is Long
-            Object key = entry.getKey();
-            Object value = entry.getValue();
+        synchronized (this.urlStates) {
 
-            // Mathematical integer, not a programmatic integer
-            boolean valueIsInteger = (value instanceof Long) || (value instanceof Integer);
+            this.binarySnapshot = newSnapshot;
 
-            if (!(key instanceof String) || !valueIsInteger) {
-                System.err.println("Invalid key-value pair in the storage file: <" + key + ", " + value + ">");
-                continue;
+            // Changes made while we were writing aren't
+            // in the new snapshot, so they have to stay
+            for (Map.Entry<String, DocumentState> entry : urlStatesCopy.entrySet()) {
+                this.urlStates.remove(entry.getKey(), entry.getValue());
             }
 
-            // Fancy statement to either cast the value to Long
-            // or convert it from an Integer to a Long
-            Long valueAsLong = (value instanceof Long) ? (Long) value : ((Integer) value).longValue();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
 
-            // Should be a pair going from URL to content length
-            this.urlContentLengths.put((String) key, valueAsLong);
+    /**
+     * Diffs a result against the stored state in place, and
+     * stores it if it differs. Results of conditional requests
+     * that came back <code>304 Not Modified</code> are skipped
+     * without comparing anything. Must hold the lock on
+     * {@link #urlStates}.
+     *
+     * @return What had to be stored.
+     */
+    private Update storeResult(String url, CheckResult checkResult, long now) {
 
+        // The server already told us nothing changed
+        if (checkResult.notModified()) {
+            return Update.NONE;
         }
 
+        DocumentState newValue = checkResult.state();
+        int id = this.urlStates.idOf(url);
+
+        // With a binary snapshot, URLs that haven't changed
+        // since it was written are only found in the snapshot
+        DocumentState snapshotValue = (this.binarySnapshot != null && !this.urlStates.containsKey(url))
+                ? this.binarySnapshot.lookup(url) : null;
+
+        boolean known = snapshotValue != null || this.urlStates.hasState(id);
+        boolean changed;
+        long oldLastChangedAtMs;
+
+        if (snapshotValue != null) {
+            changed = snapshotValue.hasChangedTo(newValue);
+            oldLastChangedAtMs = (snapshotValue.lastChangedAtMs() != null)
+                    ? snapshotValue.lastChangedAtMs() : Long.MIN_VALUE;
+        } else {
+            changed = known && this.urlStates.hasChangedTo(id, newValue);
+            oldLastChangedAtMs = known ? this.urlStates.lastChangedAtMs(id) : Long.MIN_VALUE;
+        }
+
+        // Keep track of when each document last changed, which
+        // the scheduler uses to decide how often to check it.
+        // Documents we haven't seen change yet are dated by
+        // their Last-Modified header, if they have one.
+        long lastChangedAtMs;
+
+        if (changed) {
+            lastChangedAtMs = now;
+        } else if (oldLastChangedAtMs != Long.MIN_VALUE) {
+            lastChangedAtMs = oldLastChangedAtMs;
+        } else {
+            lastChangedAtMs = newValue.lastModifiedAtMsOr(now);
+        }
+
+        // Only entries that differ need to hit the disk (or,
+        // with a binary snapshot, be kept in memory at all)
+        boolean unchanged = (snapshotValue != null)
+                ? snapshotValue.equals(newValue.withLastChangedAtMs(lastChangedAtMs))
+                : this.urlStates.matches(id, newValue, lastChangedAtMs);
+
+        if (unchanged) {
+            return Update.NONE;
+        }
+
+        this.urlStates.put(url, newValue.withLastChangedAtMs(lastChangedAtMs));
+
+        return changed ? Update.CHANGED : Update.STORED;
+
     }
 
     /**
-     * Writes the internal map to the storage file. Synchronized
-     * so that we're not doing concurrent writing.
+     * Looks a URL up in the in-memory table, falling back to the
+     * binary snapshot. Must hold the lock on {@link #urlStates}.
      */
-    private synchronized void writeToStorage() {
+    private DocumentState lookupState(String url) {
 
-        // Make a copy of the map so that we can write it to the file
-        // without worrying about it being modified while we're writing
-        Map<String, Long> urlContentLengthsCopy;
+        if (this.binarySnapshot == null || this.urlStates.containsKey(url)) {
+            return this.urlStates.get(url);
+        }
+
+        return this.binarySnapshot.lookup(url);
 
-        synchronized (this.urlContentLengths) {
-            urlContentLengthsCopy = new HashMap<>(this.urlContentLengths);
+    }
+
+    /**
+     * Attempts to load the snapshot, then replays
+     * the changes logged since on top of it.
+     * <p>
+     * Storage written before URLs were canonicalized may hold them
+     * in the form they were listed in, which the URLs now checked
+     * would never find. So URLs are canonicalized as they are read.
+     * Binary snapshots written before then are migrated once, by
+     * moving their URLs afterwards and writing a new snapshot.
+     */
+    private void readFromStorage() {
+
+        readSnapshot();
+
+        this.storageLog.replayAndOpen((url, state) -> {
+
+            String canonicalURL = URLCanonicalizer.canonicalize(url);
+            url = (canonicalURL != null) ? canonicalURL : url;
+
+            if (state == null && this.binarySnapshot == null) {
+                this.urlStates.remove(url);
+            } else {
+                this.urlStates.put(url, state);
+            }
+
+        });
+
+        if (this.binarySnapshot != null && !this.binarySnapshot.hasCanonicalURLs()) {
+            moveSnapshotToCanonicalURLs();
+        }
+
+    }
+
+    /**
+     * Moves the state of every URL in the binary snapshot that
+     * isn't canonical to its canonical URL, unless that URL has
+     * a state of its own, and leaves a tombstone in its place.
+     * Must be called after the log is replayed, since the logged
+     * states are newer. A new snapshot is written right away, which
+     * is marked as only holding canonical URLs, so that this only
+     * ever has to scan the snapshot once.
+     */
+    private void moveSnapshotToCanonicalURLs() {
+
+        int[] moved = {0};
+
+        this.binarySnapshot.forEach((url, state) -> {
+
+            String canonicalURL = URLCanonicalizer.canonicalize(url);
+
+            if (canonicalURL == null || canonicalURL.equals(url)) {
+                return;
+            }
+
+            if (!this.urlStates.containsKey(canonicalURL) && this.binarySnapshot.lookup(canonicalURL) == null) {
+                this.urlStates.put(canonicalURL, state);
+                moved[0]++;
+            }
+
+            this.urlStates.put(url, null);
+
+        });
+
+        if (moved[0] > 0) {
+            System.out.printf("Moved the state of %d URL(s) to their canonical form.%n", moved[0]);
+        }
+
+        // The log is left as it is, since replaying it on top of
+        // the new snapshot, with its URLs canonicalized, ends at
+        // the same state. If this fails, the moved states are
+        // still used, and the next start migrates the snapshot again.
+        try {
+            writeSnapshot();
+        } catch (Exception e) {
+            System.err.println("Failed to write the migrated binary storage file!");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Attempts to map the binary snapshot in binary mode, or
+     * otherwise to read all existing URL-state pairs from the
+     * storage file into our in-memory table. In binary mode, the
+     * storage file is still read if there's no binary snapshot
+     * yet, and becomes one the first time the log is compacted.
+     */
+    private void readSnapshot() {
+
+        if (this.storageFormat == StorageFormat.BINARY && this.binaryStorageFile.exists()) {
+
+            try {
+                this.binarySnapshot = BinarySnapshot.open(this.binaryStorageFile);
+            } catch (Exception e) {
+                System.err.println("Failed to map binary storage file!");
+                e.printStackTrace();
+            }
+
+            return;
+
+        }
+
+        if (!this.storageFile.exists()) {
+            System.out.println("No existing storage file found.");
+            return;
         }
 
         try {
-            this.objectMapper.writeValue(this.storageFile, urlContentLengthsCopy);
+
+            Map<String, DocumentState> states = JsonSnapshot.read(this.storageFile);
+
+            // URLs that are already canonical win over those that
+            // only become it, which can't have been checked since
+            for (Map.Entry<String, DocumentState> entry : states.entrySet()) {
+
+                String canonicalURL = URLCanonicalizer.canonicalize(entry.getKey());
+
+                if (canonicalURL == null) {
+                    this.urlStates.put(entry.getKey(), entry.getValue());
+                } else if (canonicalURL.equals(entry.getKey()) || !states.containsKey(canonicalURL)) {
+                    this.urlStates.put(canonicalURL, entry.getValue());
+                }
+
+            }
+
         } catch (Exception e) {
-            System.err.println("Failed to write storage to file!");
+            System.err.println("Failed to read storage file!");
             e.printStackTrace();
         }
 
     }
 
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * What storing a single result came down to.
+     */
+    private enum Update {
+
+        /**
+         * The result matched the stored state, so nothing was stored.
+         */
+        NONE,
+
+        /**
+         * The result was stored, but the document didn't change.
+         */
+        STORED,
+
+        /**
+         * The result was stored, and the document changed.
+         */
+        CHANGED
+
+    }
+
 }
@@ -0,0 +1,137 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * A token bucket, which lets bursts of up to its capacity
+ * through at once, and otherwise limits the rate to how fast
+ * it refills. It can also be paused outright, for when a
+ * server tells us exactly how long to back off for.
+ */
+public class TokenBucket {
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The most tokens the bucket can hold.
+     */
+    private final double capacity;
+
+    /**
+     * How many tokens are added per nanosecond.
+     */
+    private final double tokensPerNano;
+
+    /**
+     * The tokens currently in the bucket.
+     */
+    private double tokens;
+
+    /**
+     * When the tokens were last topped up, in nanoseconds.
+     */
+    private long refilledAtNanos;
+
+    /**
+     * No tokens are handed out before this time, in nanoseconds.
+     */
+    private long pausedUntilNanos;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param capacity        The most tokens the bucket can hold,
+     *                        which it starts out with.
+     * @param refillPerSecond How many tokens are added per second.
+     */
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerNano = refillPerSecond / 1_000_000_000.0;
+        this.tokens = capacity;
+        this.refilledAtNanos = System.nanoTime();
+        this.pausedUntilNanos = this.refilledAtNanos;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Takes a token, waiting for one if the bucket is empty or paused.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized void acquire() throws InterruptedException {
+
+        while (true) {
+
+            long waitNanos = nanosUntilAvailable();
+
+            if (waitNanos <= 0) {
+                this.tokens -= 1;
+                return;
+            }
+
+            // Woken early if the bucket is paused further
+            wait(Math.max(1, waitNanos / 1_000_000));
+
+        }
+
+    }
+
+    /**
+     * Takes a token if one is available right now.
+     *
+     * @return Whether a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+
+        if (nanosUntilAvailable() > 0) {
+            return false;
+        }
+
+        this.tokens -= 1;
+        return true;
+
+    }
+
+    /**
+     * @return How long until a token can be taken, in milliseconds,
+     * or <code>0</code> if one can be taken right now. Doesn't take it.
+     */
+    public synchronized long millisUntilAvailable() {
+        return (nanosUntilAvailable() + 999_999) / 1_000_000;
+    }
+
+    /**
+     * Hands out no tokens for the given time, on top of
+     * whatever pause is already in effect.
+     *
+     * @param pauseInMs How long to hand out no tokens for.
+     */
+    public synchronized void pauseFor(long pauseInMs) {
+        this.pausedUntilNanos = Math.max(this.pausedUntilNanos, System.nanoTime() + pauseInMs * 1_000_000);
+        notifyAll();
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Tops up the bucket.
+     *
+     * @return How long until a token can be taken, in nanoseconds.
+     */
+    private long nanosUntilAvailable() {
+
+        long now = System.nanoTime();
+
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilledAtNanos) * this.tokensPerNano);
+        this.refilledAtNanos = now;
+
+        long pausedNanos = this.pausedUntilNanos - now;
+
+        if (pausedNanos > 0) {
+            return pausedNanos;
+        }
+
+        return (this.tokens >= 1) ? 0 : (long) Math.ceil((1 - this.tokens) / this.tokensPerNano);
+
+    }
+
+}
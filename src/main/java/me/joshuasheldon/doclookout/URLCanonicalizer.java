@@ -0,0 +1,209 @@
+package me.joshuasheldon.doclookout;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Brings URLs into one canonical form, so that the same document
+ * listed in slightly different ways is only checked (and stored)
+ * once. Only changes that can't change which document a URL points
+ * to are made:<br>
+ * - the scheme and host are lowercased,<br>
+ * - the port is dropped if it's the scheme's default,<br>
+ * - an empty path becomes <code>/</code>,<br>
+ * - <code>.</code> and <code>..</code> path segments are resolved, and<br>
+ * - the fragment is dropped, since it never reaches the server.
+ */
+public class URLCanonicalizer {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The digits percent-encoded octets are written with.
+     */
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    private URLCanonicalizer() {
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param url The URL to canonicalize.
+     * @return The canonical form of the URL, or <code>null</code>
+     * if it isn't a valid absolute URL.
+     */
+    public static String canonicalize(String url) {
+
+        URI uri;
+
+        try {
+            uri = toURI(url.trim()).normalize();
+        } catch (Exception e) {
+            return null;
+        }
+
+        if (uri.getScheme() == null) {
+            return null;
+        }
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+
+        // Without a host (e.g. file: URLs) there's
+        // nothing to do besides dropping the fragment
+        if (uri.isOpaque() || uri.getHost() == null) {
+            String canonical = scheme + uri.toString().substring(scheme.length());
+            return (uri.getRawFragment() != null) ? canonical.substring(0, canonical.lastIndexOf('#')) : canonical;
+        }
+
+        StringBuilder canonical = new StringBuilder(scheme).append("://");
+
+        if (uri.getRawUserInfo() != null) {
+            canonical.append(uri.getRawUserInfo()).append('@');
+        }
+
+        canonical.append(uri.getHost().toLowerCase(Locale.ROOT));
+
+        if (uri.getPort() != -1 && uri.getPort() != defaultPortOf(scheme)) {
+            canonical.append(':').append(uri.getPort());
+        }
+
+        String path = uri.getRawPath();
+        canonical.append((path == null || path.isEmpty()) ? "/" : path);
+
+        if (uri.getRawQuery() != null) {
+            canonical.append('?').append(uri.getRawQuery());
+        }
+
+        return canonical.toString();
+
+    }
+
+    /**
+     * Parses a URL. Links to documents are often pasted with
+     * characters that aren't allowed in URIs, like spaces or
+     * brackets, which {@link URL} accepts but {@link URI} doesn't.
+     * Those URLs are split up by {@link URL} instead, and the illegal
+     * characters of each part are percent-encoded. Whatever is already
+     * percent-encoded is kept as it is, so the server is still sent
+     * the same path and query.
+     *
+     * @param url The URL to parse.
+     * @return The URL as a URI.
+     * @throws URISyntaxException If it isn't a valid URI, nor a valid URL.
+     */
+    public static URI toURI(String url) throws URISyntaxException {
+
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+
+            URL parsed;
+
+            try {
+                parsed = new URL(url);
+            } catch (MalformedURLException malformed) {
+                throw e;
+            }
+
+            StringBuilder encoded = new StringBuilder(parsed.getProtocol()).append(':');
+
+            if (parsed.getHost() != null && !parsed.getHost().isEmpty()) {
+
+                encoded.append("//");
+
+                if (parsed.getUserInfo() != null) {
+                    encoded.append(encodeIllegal(parsed.getUserInfo(), ":")).append('@');
+                }
+
+                encoded.append(parsed.getHost());
+
+                if (parsed.getPort() != -1) {
+                    encoded.append(':').append(parsed.getPort());
+                }
+
+            }
+
+            encoded.append(encodeIllegal(parsed.getPath(), ":@/"));
+
+            if (parsed.getQuery() != null) {
+                encoded.append('?').append(encodeIllegal(parsed.getQuery(), ":@/?"));
+            }
+
+            if (parsed.getRef() != null) {
+                encoded.append('#').append(encodeIllegal(parsed.getRef(), ":@/?"));
+            }
+
+            return new URI(encoded.toString());
+
+        }
+
+    }
+
+    /**
+     * Percent-encodes the characters of a part of a URL that a
+     * {@link URI} doesn't allow in it. Unreserved characters, the
+     * sub-delimiters, the given characters, existing percent-encoded
+     * octets, and non-ASCII letters (which {@link URI} allows) are kept.
+     */
+    private static String encodeIllegal(String part, String allowed) {
+
+        StringBuilder encoded = new StringBuilder(part.length());
+
+        for (int i = 0; i < part.length(); ) {
+
+            int codePoint = part.codePointAt(i);
+            int length = Character.charCount(codePoint);
+
+            boolean legal = (codePoint < 0x80)
+                    ? Character.isLetterOrDigit(codePoint) || "-._~!$&'()*+,;=".indexOf(codePoint) >= 0
+                    || allowed.indexOf(codePoint) >= 0 || isEscapedOctet(part, i)
+                    : !Character.isISOControl(codePoint) && !Character.isSpaceChar(codePoint);
+
+            if (legal) {
+                encoded.appendCodePoint(codePoint);
+            } else {
+                for (byte b : part.substring(i, i + length).getBytes(StandardCharsets.UTF_8)) {
+                    encoded.append('%').append(HEX_DIGITS.charAt((b >> 4) & 0xF)).append(HEX_DIGITS.charAt(b & 0xF));
+                }
+            }
+
+            i += length;
+
+        }
+
+        return encoded.toString();
+
+    }
+
+    /**
+     * @return Whether a percent-encoded octet starts at the given index.
+     */
+    private static boolean isEscapedOctet(String part, int index) {
+        return part.charAt(index) == '%' && index + 2 < part.length()
+                && Character.digit(part.charAt(index + 1), 16) >= 0
+                && Character.digit(part.charAt(index + 2), 16) >= 0;
+    }
+
+    /**
+     * @return The default port of the given scheme, or
+     * <code>-1</code> if it doesn't have one we know of.
+     */
+    private static int defaultPortOf(String scheme) {
+        switch (scheme) {
+            case "http":
+                return 80;
+            case "https":
+                return 443;
+            default:
+                return -1;
+        }
+    }
+
+}
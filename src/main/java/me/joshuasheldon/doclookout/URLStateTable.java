@@ -0,0 +1,479 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The states of many URLs, kept in columns of primitive arrays
+ * rather than as one {@link DocumentState} per URL, so that a
+ * state costs a few dozen bytes and nothing needs to be boxed.
+ * <p>
+ * Each URL is given an ID when it is put, which indexes every
+ * column. URLs are found by an open-addressing hash index from
+ * URL to ID, like the one of the {@link BinarySnapshot}. When a
+ * URL is removed, its ID is freed and handed to the next URL that
+ * is put, so that URLs that come and go (like the states dropped
+ * from memory whenever a binary snapshot is swapped in) don't
+ * leave dead rows behind.
+ * <p>
+ * Apart from how it stores states, the table behaves like a
+ * map from URL to state, including that a URL can be mapped to
+ * <code>null</code>. Not thread-safe.
+ */
+public class URLStateTable {
+
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The number of rows and index slots to start with.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Stored in place of a missing fingerprint. A real fingerprint
+     * that happens to collide with it is read back as missing, which
+     * only means one comparison is skipped.
+     */
+    private static final long NO_FINGERPRINT = Long.MIN_VALUE;
+
+    /**
+     * Stored in place of a missing last change time.
+     */
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * The row of a URL that isn't in the table.
+     */
+    private static final byte ABSENT = 0;
+
+    /**
+     * The row of a URL that is mapped to a state.
+     */
+    private static final byte PRESENT = 1;
+
+    /**
+     * The row of a URL that is mapped to <code>null</code>.
+     */
+    private static final byte NULL = 2;
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * The URL of each ID.
+     */
+    private String[] urls;
+
+    /**
+     * Whether each ID is {@link #ABSENT}, {@link #PRESENT} or {@link #NULL}.
+     */
+    private byte[] presence;
+
+    /**
+     * The content length of each ID.
+     */
+    private long[] contentLengths;
+
+    /**
+     * The fingerprint of each ID, or {@link #NO_FINGERPRINT}.
+     */
+    private long[] fingerprints;
+
+    /**
+     * The last change time of each ID, or {@link #NO_TIME}.
+     */
+    private long[] lastChangedAtMs;
+
+    /**
+     * The ETag of each ID, or <code>null</code>.
+     */
+    private String[] eTags;
+
+    /**
+     * The Last-Modified value of each ID, or <code>null</code>.
+     */
+    private String[] lastModifieds;
+
+    /**
+     * The hash index, in which each slot holds an ID plus one,
+     * or <code>0</code> if it is empty. Its length is a power of
+     * two, and it is kept at most half full.
+     */
+    private int[] slots;
+
+    /**
+     * The number of IDs given out, including freed ones.
+     */
+    private int idCount;
+
+    /**
+     * The IDs of removed URLs, waiting to be given out again.
+     */
+    private int[] freeIDs;
+
+    /**
+     * The number of IDs in {@link #freeIDs}.
+     */
+    private int freeIDCount;
+
+    /**
+     * The number of URLs that aren't {@link #ABSENT}.
+     */
+    private int size;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    public URLStateTable() {
+        this.urls = new String[INITIAL_CAPACITY];
+        this.presence = new byte[INITIAL_CAPACITY];
+        this.contentLengths = new long[INITIAL_CAPACITY];
+        this.fingerprints = new long[INITIAL_CAPACITY];
+        this.lastChangedAtMs = new long[INITIAL_CAPACITY];
+        this.eTags = new String[INITIAL_CAPACITY];
+        this.lastModifieds = new String[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+        this.idCount = 0;
+        this.freeIDs = new int[INITIAL_CAPACITY];
+        this.freeIDCount = 0;
+        this.size = 0;
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * @param url The URL to look up.
+     * @return The ID of the URL, or <code>-1</code> if it isn't in the table.
+     */
+    public int idOf(String url) {
+
+        int mask = this.slots.length - 1;
+
+        for (int slot = slotOf(url, mask); this.slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = this.slots[slot] - 1;
+            if (this.urls[id].equals(url)) {
+                return id;
+            }
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return Whether the URL is in the table, even if it is mapped to <code>null</code>.
+     */
+    public boolean containsKey(String url) {
+        int id = idOf(url);
+        return id >= 0 && this.presence[id] != ABSENT;
+    }
+
+    /**
+     * @param id The ID of a URL, or <code>-1</code>.
+     * @return Whether the URL is mapped to a state.
+     */
+    public boolean hasState(int id) {
+        return id >= 0 && this.presence[id] == PRESENT;
+    }
+
+    /**
+     * @param url The URL to look up.
+     * @return The state of the URL, or <code>null</code> if it
+     * is mapped to <code>null</code> or isn't in the table.
+     */
+    public DocumentState get(String url) {
+        return get(idOf(url));
+    }
+
+    /**
+     * @param id The ID of a URL, or <code>-1</code>.
+     * @return The state of the URL, or <code>null</code> if it
+     * is mapped to <code>null</code> or isn't in the table.
+     */
+    public DocumentState get(int id) {
+
+        if (!hasState(id)) {
+            return null;
+        }
+
+        return new DocumentState(this.contentLengths[id],
+                (this.fingerprints[id] != NO_FINGERPRINT) ? this.fingerprints[id] : null,
+                this.eTags[id], this.lastModifieds[id],
+                (this.lastChangedAtMs[id] != NO_TIME) ? this.lastChangedAtMs[id] : null);
+
+    }
+
+    /**
+     * @param id The ID of a URL with a state.
+     * @return When the URL's document last changed, or
+     * {@link Long#MIN_VALUE} if that hasn't been recorded.
+     */
+    public long lastChangedAtMs(int id) {
+        return this.lastChangedAtMs[id];
+    }
+
+    /**
+     * Same as {@link DocumentState#hasChangedTo(DocumentState)},
+     * but compares the stored state in place.
+     *
+     * @param id    The ID of a URL with a state.
+     * @param newer The newer state of the same document.
+     * @return Whether the document has changed.
+     */
+    public boolean hasChangedTo(int id, DocumentState newer) {
+
+        if (this.contentLengths[id] != newer.contentLength()) {
+            return true;
+        }
+
+        if (this.fingerprints[id] != NO_FINGERPRINT && newer.fingerprint() != null) {
+            return this.fingerprints[id] != newer.fingerprint();
+        }
+
+        if (this.eTags[id] != null && newer.eTag() != null) {
+            return !this.eTags[id].equals(newer.eTag());
+        }
+
+        if (this.lastModifieds[id] != null && newer.lastModified() != null) {
+            return !this.lastModifieds[id].equals(newer.lastModified());
+        }
+
+        return false;
+
+    }
+
+    /**
+     * @param id              The ID of a URL, or <code>-1</code>.
+     * @param state           A state, without its last change time.
+     * @param lastChangedAtMs The last change time to compare instead.
+     * @return Whether the URL is mapped to exactly that state.
+     */
+    public boolean matches(int id, DocumentState state, long lastChangedAtMs) {
+        return hasState(id)
+                && this.contentLengths[id] == state.contentLength()
+                && this.fingerprints[id] == ((state.fingerprint() != null) ? state.fingerprint() : NO_FINGERPRINT)
+                && this.lastChangedAtMs[id] == lastChangedAtMs
+                && Objects.equals(this.eTags[id], state.eTag())
+                && Objects.equals(this.lastModifieds[id], state.lastModified());
+    }
+
+    /**
+     * Maps a URL to a state, giving it an ID if it doesn't have one.
+     *
+     * @param url   The URL.
+     * @param state The state, or <code>null</code>.
+     */
+    public void put(String url, DocumentState state) {
+
+        int id = idOf(url);
+
+        if (id < 0) {
+            id = addID(url);
+        }
+
+        if (this.presence[id] == ABSENT) {
+            this.size++;
+        }
+
+        if (state == null) {
+            this.presence[id] = NULL;
+            this.eTags[id] = null;
+            this.lastModifieds[id] = null;
+            return;
+        }
+
+        this.presence[id] = PRESENT;
+        this.contentLengths[id] = state.contentLength();
+        this.fingerprints[id] = (state.fingerprint() != null) ? state.fingerprint() : NO_FINGERPRINT;
+        this.lastChangedAtMs[id] = (state.lastChangedAtMs() != null) ? state.lastChangedAtMs() : NO_TIME;
+        this.eTags[id] = state.eTag();
+        this.lastModifieds[id] = state.lastModified();
+
+    }
+
+    /**
+     * Removes a URL from the table, freeing its ID.
+     *
+     * @param url The URL.
+     */
+    public void remove(String url) {
+        remove(idOf(url));
+    }
+
+    /**
+     * Removes a URL from the table, but only if it is still
+     * mapped to the given state.
+     *
+     * @param url   The URL.
+     * @param state The state, or <code>null</code>.
+     */
+    public void remove(String url, DocumentState state) {
+
+        int id = idOf(url);
+
+        if (id < 0 || this.presence[id] == ABSENT) {
+            return;
+        }
+
+        boolean same = (state == null)
+                ? this.presence[id] == NULL
+                : matches(id, state, (state.lastChangedAtMs() != null) ? state.lastChangedAtMs() : NO_TIME);
+
+        if (same) {
+            remove(id);
+        }
+
+    }
+
+    /**
+     * @return The number of URLs in the table, including
+     * those mapped to <code>null</code>.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return A copy of the table as a map, including
+     * the URLs mapped to <code>null</code>.
+     */
+    public Map<String, DocumentState> toMap() {
+
+        Map<String, DocumentState> map = new HashMap<>(this.size * 2);
+
+        for (int id = 0; id < this.idCount; id++) {
+            if (this.presence[id] != ABSENT) {
+                map.put(this.urls[id], get(id));
+            }
+        }
+
+        return map;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    private void remove(int id) {
+
+        if (id < 0 || this.presence[id] == ABSENT) {
+            return;
+        }
+
+        removeSlot(id);
+
+        this.urls[id] = null;
+        this.presence[id] = ABSENT;
+        this.eTags[id] = null;
+        this.lastModifieds[id] = null;
+        this.size--;
+
+        if (this.freeIDCount == this.freeIDs.length) {
+            this.freeIDs = Arrays.copyOf(this.freeIDs, this.freeIDs.length * 2);
+        }
+
+        this.freeIDs[this.freeIDCount++] = id;
+
+    }
+
+    /**
+     * Gives a URL a freed ID, or else the next one, growing
+     * the columns and the index if they are full.
+     */
+    private int addID(String url) {
+
+        if (this.freeIDCount > 0) {
+            int id = this.freeIDs[--this.freeIDCount];
+            this.urls[id] = url;
+            insertSlot(id);
+            return id;
+        }
+
+        if (this.idCount == this.urls.length) {
+            int capacity = this.urls.length * 2;
+            this.urls = Arrays.copyOf(this.urls, capacity);
+            this.presence = Arrays.copyOf(this.presence, capacity);
+            this.contentLengths = Arrays.copyOf(this.contentLengths, capacity);
+            this.fingerprints = Arrays.copyOf(this.fingerprints, capacity);
+            this.lastChangedAtMs = Arrays.copyOf(this.lastChangedAtMs, capacity);
+            this.eTags = Arrays.copyOf(this.eTags, capacity);
+            this.lastModifieds = Arrays.copyOf(this.lastModifieds, capacity);
+        }
+
+        int id = this.idCount++;
+        this.urls[id] = url;
+
+        if (this.idCount * 2 > this.slots.length) {
+            this.slots = new int[this.slots.length * 2];
+            for (int existingID = 0; existingID < this.idCount; existingID++) {
+                if (this.urls[existingID] != null) {
+                    insertSlot(existingID);
+                }
+            }
+        } else {
+            insertSlot(id);
+        }
+
+        return id;
+
+    }
+
+    /**
+     * Puts an ID into the first free slot for its URL.
+     */
+    private void insertSlot(int id) {
+
+        int mask = this.slots.length - 1;
+        int slot = slotOf(this.urls[id], mask);
+
+        while (this.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        this.slots[slot] = id + 1;
+
+    }
+
+    /**
+     * Takes an ID out of the index, moving the IDs probed after
+     * it back into the gap where their probe allows, so that no
+     * probe ends early at the emptied slot.
+     */
+    private void removeSlot(int id) {
+
+        int mask = this.slots.length - 1;
+        int gap = slotOf(this.urls[id], mask);
+
+        while (this.slots[gap] != id + 1) {
+            gap = (gap + 1) & mask;
+        }
+
+        for (int slot = (gap + 1) & mask; this.slots[slot] != 0; slot = (slot + 1) & mask) {
+
+            int start = slotOf(this.urls[this.slots[slot] - 1], mask);
+
+            // Its probe starts at or before the gap, so it can move there
+            if (((slot - start) & mask) >= ((slot - gap) & mask)) {
+                this.slots[gap] = this.slots[slot];
+                gap = slot;
+            }
+
+        }
+
+        this.slots[gap] = 0;
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return The slot a URL's probe starts at. The high bits
+     * of its hash are mixed in, since URLs that only differ at
+     * the end tend to share the low ones.
+     */
+    private static int slotOf(String url, int mask) {
+        int hash = url.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+}
@@ -7,7 +7,9 @@ import java.util.concurrent.Executors;
  * A simple parent class to be extended by all classes
  * of DocLookout that need to execute web operations.
  * Implements an executor service to ensure that only
- * one web operation is done per executor at a time.
+ * one web operation is done per executor at a time,
+ * or, in {@link ExecutionMode#VIRTUAL} mode, to run each
+ * web operation on its own virtual thread.
  */
 public class WebOperationExecutor {
 
@@ -16,14 +18,30 @@ public class WebOperationExecutor {
     /**
      * The executor service that executes all web operations
      * in a single thread/queue to avoid resource consumption spikes
-     * or resource contention.
+     * or resource contention. In virtual mode, a virtual-thread-per-task
+     * executor takes its place, and the subclass limits how many of
+     * its web operations run at once (see {@link ConcurrencyLimiter}).
      */
     protected final ExecutorService executor;
 
     /* ---------- CONSTRUCTORS ---------- */
 
-    public WebOperationExecutor() {
-        this.executor = Executors.newSingleThreadExecutor();
+    /**
+     * @param config The configuration to take the
+     *               execution mode from.
+     */
+    public WebOperationExecutor(Configuration config) {
+        this(createExecutor(config));
+    }
+
+    /**
+     * Lets subclasses that manage their own concurrency
+     * supply a different executor service.
+     *
+     * @param executor The executor service to run web operations on.
+     */
+    protected WebOperationExecutor(ExecutorService executor) {
+        this.executor = executor;
     }
 
     /* ---------- PUBLIC METHODS ---------- */
@@ -36,4 +54,38 @@ public class WebOperationExecutor {
         this.executor.shutdown();
     }
 
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @param config The configuration to take the execution mode from.
+     * @return A single-thread executor in platform mode, or a
+     * virtual-thread-per-task executor in virtual mode.
+     */
+    protected static ExecutorService createExecutor(Configuration config) {
+
+        if (config.executionMode() != ExecutionMode.VIRTUAL) {
+            return Executors.newSingleThreadExecutor();
+        }
+
+        return newVirtualThreadPerTaskExecutor();
+
+    }
+
+    /**
+     * Looks up <code>Executors.newVirtualThreadPerTaskExecutor()</code>
+     * reflectively, since DocLookout still targets JVMs that predate
+     * virtual threads.
+     *
+     * @return A virtual-thread-per-task executor, or a cached pool of
+     * platform threads if this JVM doesn't support virtual threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            System.err.println("This JVM doesn't support virtual threads, falling back to platform threads!");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
 }
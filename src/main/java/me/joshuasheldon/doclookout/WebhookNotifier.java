@@ -1,19 +1,120 @@
 package me.joshuasheldon.doclookout;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import javax.net.ssl.HttpsURLConnection;
-import java.io.OutputStream;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Notifies a Discord webhook of any updated documents.
+ * <p>
+ * Notifications are queued and delivered by a single task,
+ * which runs on a platform or a virtual thread depending on
+ * the execution mode.
+ * Changes queued within the configured window of each other
+ * (e.g. by several cycles in a row) are merged into one notification,
+ * and URLs that changed more than once are only listed once.
+ * Notifications too large for one Discord message are split
+ * into as many embeds and messages as needed.
+ * <p>
+ * Discord rate limits each webhook on its own, so messages are
+ * paced by a token bucket per webhook, and Discord's rate limit
+ * headers and <code>429 Too Many Requests</code> responses only
+ * pause the bucket of the webhook they came from. The delivery
+ * thread never sleeps on a bucket: a notification whose webhook
+ * has to wait stays queued, picking up with its next unposted
+ * message once the bucket lets it through, while notifications
+ * to other webhooks go ahead.
+ * <p>
+ * Notifications that can't be delivered (e.g. while Discord or
+ * the network is down) are queued again with an exponential
+ * backoff, until they are delivered or DocLookout stops. Each
+ * notification may come with a callback that runs once it has
+ * been delivered, which the {@link NotificationOutbox} uses to
+ * forget it.
  */
 public class WebhookNotifier extends WebOperationExecutor {
 
+    /* ---------- CONSTANTS ---------- */
+
+    /**
+     * The title of every embed.
+     */
+    private static final String EMBED_TITLE = "Document(s) Updated!";
+
+    /**
+     * The first line of the first embed of a notification.
+     */
+    private static final String DESCRIPTION_HEADER = "The following document(s) have been updated:";
+
+    /**
+     * The first line of every other embed of a notification.
+     */
+    private static final String CONTINUED_DESCRIPTION_HEADER = "(continued)";
+
+    /**
+     * The longest description Discord allows in an embed.
+     */
+    private static final int MAX_DESCRIPTION_LENGTH = 4_096;
+
+    /**
+     * The most embeds Discord allows in a message.
+     */
+    private static final int MAX_EMBEDS_PER_MESSAGE = 10;
+
+    /**
+     * The most characters Discord allows across all embeds of a message.
+     */
+    private static final int MAX_EMBED_CHARACTERS_PER_MESSAGE = 6_000;
+
+    /**
+     * URLs longer than this are cut short, so that every
+     * line fits in an embed with room to spare.
+     */
+    private static final int MAX_URL_LENGTH = 1_000;
+
+    /**
+     * How many messages may be sent to a webhook in a burst.
+     * Discord lets a webhook post 5 messages every 2 seconds.
+     */
+    private static final double BURST_CAPACITY = 5;
+
+    /**
+     * How many messages may be sent per second after a burst.
+     */
+    private static final double MESSAGES_PER_SECOND = 2.5;
+
+    /**
+     * How long to wait before trying an undelivered
+     * notification again for the first time.
+     */
+    private static final long INITIAL_BACKOFF_IN_MS = 1_000L;
+
+    /**
+     * The longest to wait before trying an undelivered notification again.
+     */
+    private static final long MAX_BACKOFF_IN_MS = 300_000L;
+
+    /**
+     * How long to keep delivering while shutting down
+     * before giving up on the remaining notifications.
+     */
+    private static final long MAX_SHUTDOWN_WAIT_IN_MS = 10_000L;
+
     /* ---------- INSTANCE VARIABLES ---------- */
 
     /**
@@ -22,103 +123,622 @@ public class WebhookNotifier extends WebOperationExecutor {
      */
     private final ObjectMapper objectMapper;
 
+    /**
+     * The pool of connections used to post to the webhook.
+     */
+    private final ConnectionPool connectionPool;
+
+    /**
+     * How long changes are gathered before they are delivered.
+     */
+    private final long coalesceWindowInMs;
+
+    /**
+     * Paces the messages posted to each webhook, by webhook URL.
+     * Only used by the delivery thread.
+     */
+    private final Map<String, TokenBucket> rateLimits;
+
+    /**
+     * The notifications waiting to be delivered, by webhook URL.
+     * Also guards the field below.
+     */
+    private final Map<String, Pending> pendingNotifications;
+
+    /**
+     * Whether the notifier is shutting down.
+     */
+    private boolean stopping;
+
     /* ---------- CONSTRUCTORS ---------- */
 
-    public WebhookNotifier() {
-        super();
+    /**
+     * @param config         The configuration to take the execution
+     *                       mode and the coalescing window from.
+     * @param connectionPool The pool of connections to post
+     *                       to the webhook over.
+     */
+    public WebhookNotifier(Configuration config, ConnectionPool connectionPool) {
+        super(config);
         this.objectMapper = new ObjectMapper();
+        this.connectionPool = connectionPool;
+        this.coalesceWindowInMs = config.webhookCoalesceWindowInMs();
+        this.rateLimits = new HashMap<>();
+        this.pendingNotifications = new LinkedHashMap<>();
+        this.stopping = false;
     }
 
     /* ---------- PUBLIC METHODS ---------- */
 
     /**
-     * Notifies the given webhook that the documents
-     * at the given URLs have been updated.
+     * Starts delivering the notifications as they are queued.
+     * Notifications queued before then are delivered as well.
+     */
+    public void start() {
+        this.executor.submit(this::runDelivery);
+    }
+
+    /**
+     * Queues a notification to the given webhook that the
+     * documents at the given URLs have been updated.
      *
-     * @param webhookURL   The URL of the webhook to notify.
-     * @param roleIDToPing The ID of the role to ping when documents
-     *                     are updated. If it is blank, no role will
-     *                     be pinged.
-     * @param updatedURLs  The URLs of the updated documents.
-     */
-    public void notifyWebhook(String webhookURL, String roleIDToPing, List<String> updatedURLs) {
-
-        // This method shouldn't get called very often, but
-        // submit it to an executor anyway
-        this.executor.submit(() -> {
-
-            // Include JSON construction in the task
-            // so that the Timer task doesn't have to
-            // wait for this method to return
-            ObjectNode postContent = objectMapper.createObjectNode();
-
-            // Put in base content
-            String content;
-
-            if (!roleIDToPing.isBlank()) {
-                content = "<@&" + roleIDToPing + ">";
-            } else {
-                content = "";
-            }
+     * @param webhookURL    The URL of the webhook to notify.
+     * @param roleIDsToPing The IDs of the roles to ping when documents
+     *                      are updated. Blank IDs are skipped.
+     * @param updatedURLs   The URLs of the updated documents.
+     */
+    public void notifyWebhook(String webhookURL, Collection<String> roleIDsToPing, List<String> updatedURLs) {
+        notifyWebhook(webhookURL, roleIDsToPing, updatedURLs, null);
+    }
 
-            postContent.put("content", content);
-            postContent.put("tts", false);
+    /**
+     * Same as {@link #notifyWebhook(String, Collection, List)}, but
+     * runs the given callback once the notification has been
+     * delivered (or rejected by the webhook for good).
+     *
+     * @param webhookURL    The URL of the webhook to notify.
+     * @param roleIDsToPing The IDs of the roles to ping.
+     * @param updatedURLs   The URLs of the updated documents.
+     * @param onDelivered   Runs once the notification has been
+     *                      delivered, or <code>null</code>.
+     */
+    public void notifyWebhook(String webhookURL, Collection<String> roleIDsToPing, List<String> updatedURLs,
+                              Runnable onDelivered) {
 
-            // Construct embed
-            ArrayNode embeds = objectMapper.createArrayNode();
-            ObjectNode embed = objectMapper.createObjectNode();
+        if (updatedURLs.isEmpty()) {
+            return;
+        }
 
-            embed.put("title", "Document(s) Updated!");
-            embed.put("color", 0x99EEFF);
+        synchronized (this.pendingNotifications) {
+
+            Pending pending = this.pendingNotifications.computeIfAbsent(webhookURL,
+                    key -> new Pending(System.currentTimeMillis() + this.coalesceWindowInMs, 0));
 
-            // Construct description
-            StringBuilder description = new StringBuilder();
-            description.append("The following document(s) have been updated:");
+            pending.urls.addAll(updatedURLs);
 
-            for (String url : updatedURLs) {
-                description.append("\n - ").append(url);
+            for (String roleID : roleIDsToPing) {
+                if (roleID != null && !roleID.isBlank()) {
+                    pending.roleIDsToPing.add(roleID.trim());
+                }
             }
 
-            embed.put("description", description.toString());
+            if (onDelivered != null) {
+                pending.onDelivered.add(onDelivered);
+            }
 
-            // Collate all the embed data structures together
-            // and add them to the post content
-            embeds.add(embed);
-            postContent.set("embeds", embeds);
+            this.pendingNotifications.notifyAll();
+
+        }
+
+    }
+
+    /**
+     * Delivers whatever is still queued right away, as far as the
+     * rate limits allow within a few seconds, then stops.
+     */
+    @Override
+    public void stop() {
 
-            URL url;
+        synchronized (this.pendingNotifications) {
+            this.stopping = true;
+            this.pendingNotifications.notifyAll();
+        }
+
+        super.stop();
+
+        try {
+            this.executor.awaitTermination(MAX_SHUTDOWN_WAIT_IN_MS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * The body of the delivery thread.
+     */
+    private void runDelivery() {
+
+        long giveUpAtMs = Long.MAX_VALUE;
+
+        while (true) {
+
+            Map<String, Pending> batch = new LinkedHashMap<>();
+            boolean stopping;
 
             try {
-                url = new URL(webhookURL);
-            } catch (Exception e) {
-                System.err.println("Invalid webhook URL: " + webhookURL);
+                synchronized (this.pendingNotifications) {
+
+                    // Wait for the window of the oldest pending notification
+                    // (or its backoff) to close and for its webhook's rate
+                    // limit to let it through, so that whatever comes in
+                    // meanwhile is merged into it
+                    while (true) {
+
+                        long now = System.currentTimeMillis();
+
+                        if (this.stopping && giveUpAtMs == Long.MAX_VALUE) {
+                            giveUpAtMs = now + MAX_SHUTDOWN_WAIT_IN_MS;
+                        }
+
+                        if (this.stopping && (this.pendingNotifications.isEmpty() || now >= giveUpAtMs)) {
+
+                            if (!this.pendingNotifications.isEmpty()) {
+                                System.err.printf("Gave up on %d notification(s) while shutting down, "
+                                        + "they will be sent on the next start.%n", this.pendingNotifications.size());
+                            }
+
+                            return;
+
+                        }
+
+                        long readyAtMs = Long.MAX_VALUE;
+
+                        for (Map.Entry<String, Pending> entry : this.pendingNotifications.entrySet()) {
+                            readyAtMs = Math.min(readyAtMs, readyAtMs(entry.getKey(), entry.getValue(), now));
+                        }
+
+                        if (readyAtMs <= now) {
+                            break;
+                        }
+
+                        long waitUntilMs = Math.min(readyAtMs, giveUpAtMs);
+                        this.pendingNotifications.wait((waitUntilMs == Long.MAX_VALUE) ? 0 : waitUntilMs - now);
+
+                    }
+
+                    stopping = this.stopping;
+                    long now = System.currentTimeMillis();
+
+                    // Take every notification that is ready
+                    this.pendingNotifications.entrySet().removeIf(entry -> {
+                        if (readyAtMs(entry.getKey(), entry.getValue(), now) <= now) {
+                            batch.put(entry.getKey(), entry.getValue());
+                            return true;
+                        }
+                        return false;
+                    });
+
+                }
+            } catch (InterruptedException e) {
                 return;
             }
 
-            try {
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+
+                Pending pending = entry.getValue();
+                Outcome outcome = deliver(entry.getKey(), pending);
+
+                // Its webhook has to wait, but the others don't
+                if (outcome == Outcome.RATE_LIMITED) {
+                    requeue(entry.getKey(), pending, System.currentTimeMillis(), pending.failures);
+                    continue;
+                }
+
+                Metrics.getInstance().recordWebhookOutcome(outcome.name().toLowerCase());
+
+                if (outcome == Outcome.FAILED && !stopping) {
+
+                    long backoffInMs = Math.min(MAX_BACKOFF_IN_MS, INITIAL_BACKOFF_IN_MS << Math.min(pending.failures, 20));
+
+                    System.err.printf("Failed to post %d message(s) to the webhook, trying again in %d ms.%n",
+                            pending.messages.size(), backoffInMs);
+
+                    requeue(entry.getKey(), pending, System.currentTimeMillis() + backoffInMs, pending.failures + 1);
+
+                } else if (outcome != Outcome.FAILED) {
+                    pending.onDelivered.forEach(Runnable::run);
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * @return When the given notification can be delivered, which is
+     * once its window (or backoff) has closed, or right away if we're
+     * shutting down, and its webhook's rate limit lets it through.
+     * Must be called while holding the lock.
+     */
+    private long readyAtMs(String webhookURL, Pending pending, long now) {
+        long windowClosesAtMs = this.stopping ? now : pending.readyAtMs;
+        return Math.max(windowClosesAtMs, now + rateLimitOf(webhookURL).millisUntilAvailable());
+    }
+
+    /**
+     * @return The token bucket pacing the messages posted to the given webhook.
+     */
+    private TokenBucket rateLimitOf(String webhookURL) {
+        return this.rateLimits.computeIfAbsent(webhookURL, key -> new TokenBucket(BURST_CAPACITY, MESSAGES_PER_SECOND));
+    }
+
+    /**
+     * Queues whatever is left of a notification again, along with
+     * whatever was queued for the same webhook meanwhile.
+     *
+     * @param readyAtMs When to try it again.
+     * @param failures  How many times delivering it has failed.
+     */
+    private void requeue(String webhookURL, Pending unfinished, long readyAtMs, int failures) {
+
+        synchronized (this.pendingNotifications) {
+
+            Pending retry = new Pending(readyAtMs, failures);
+            retry.messages.addAll(unfinished.messages);
+            retry.urls.addAll(unfinished.urls);
+            retry.roleIDsToPing.addAll(unfinished.roleIDsToPing);
+            retry.onDelivered.addAll(unfinished.onDelivered);
+
+            // Merge in whatever was queued for the same webhook meanwhile
+            Pending queued = this.pendingNotifications.remove(webhookURL);
+
+            if (queued != null) {
+                retry.messages.addAll(queued.messages);
+                retry.urls.addAll(queued.urls);
+                retry.roleIDsToPing.addAll(queued.roleIDsToPing);
+                retry.onDelivered.addAll(queued.onDelivered);
+            }
+
+            this.pendingNotifications.put(webhookURL, retry);
+
+        }
+
+    }
+
+    /**
+     * Posts a notification to its webhook, split over as many
+     * messages as it takes, for as long as the webhook's rate limit
+     * allows. Messages are taken off the notification as they are
+     * posted, so if it has to be tried again, it picks up where it
+     * left off instead of posting them twice.
+     */
+    private Outcome deliver(String webhookURL, Pending pending) {
+
+        URI uri;
+
+        try {
+            uri = new URI(webhookURL);
+        } catch (Exception e) {
+            System.err.println("Invalid webhook URL: " + webhookURL);
+            return Outcome.REJECTED;
+        }
+
+        // URLs queued since the last attempt go after what's left of
+        // it, pinging the roles they came with in their first message
+        if (!pending.urls.isEmpty()) {
+            pending.messages.addAll(buildMessages(pending.roleIDsToPing, pending.urls));
+            pending.urls.clear();
+            pending.roleIDsToPing.clear();
+        }
+
+        TokenBucket rateLimit = rateLimitOf(webhookURL);
+
+        while (!pending.messages.isEmpty()) {
+
+            if (!rateLimit.tryAcquire()) {
+                return Outcome.RATE_LIMITED;
+            }
+
+            Outcome outcome = send(uri, rateLimit, pending.messages.peek());
+
+            if (outcome == Outcome.REJECTED) {
+                System.err.println("Gave up on notifying webhook with URL " + webhookURL
+                        + " of some updated document(s)!");
+            }
+
+            if (outcome != Outcome.DELIVERED) {
+                return outcome;
+            }
+
+            pending.messages.poll();
+
+        }
+
+        return Outcome.DELIVERED;
+
+    }
+
+    /**
+     * Posts a single message, pausing the webhook's rate limit
+     * for as long as Discord asks us to.
+     *
+     * @return Whether the message was delivered, has to wait for
+     * the rate limit, may be tried again later, or will never be
+     * accepted.
+     */
+    private Outcome send(URI uri, TokenBucket rateLimit, ObjectNode message) {
+
+        HttpRequest request;
+
+        try {
+            request = HttpRequest.newBuilder(uri)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(this.objectMapper.writeValueAsBytes(message)))
+                    .build();
+        } catch (Exception e) {
+            System.err.println("Failed to build the webhook message!");
+            e.printStackTrace();
+            return Outcome.REJECTED;
+        }
+
+        try {
+
+            // Send it over a pooled connection, which stays
+            // open for the next notification
+            long startNanos = System.nanoTime();
+            HttpResponse<String> response = this.connectionPool.send(request, HttpResponse.BodyHandlers.ofString());
+            Metrics.getInstance().recordWebhookRequest(System.nanoTime() - startNanos);
+
+            // Out of requests for now, hold off the next one
+            Optional<String> remaining = response.headers().firstValue("X-RateLimit-Remaining");
+
+            if (remaining.isPresent() && remaining.get().equals("0")) {
+                rateLimit.pauseFor(secondsHeaderInMs(response, "X-RateLimit-Reset-After"));
+            }
+
+            if (response.statusCode() == 429) {
+                long retryAfterInMs = retryAfterInMs(response);
+                System.err.printf("Webhook is rate limited, retrying in %d ms.%n", retryAfterInMs);
+                rateLimit.pauseFor(retryAfterInMs);
+                return Outcome.RATE_LIMITED;
+            }
+
+            // Discord is having trouble, so it may work later
+            if (response.statusCode() >= 500) {
+                System.err.println("Webhook with URL " + uri + " responded with status " + response.statusCode());
+                return Outcome.FAILED;
+            }
 
-                // Set up connection
-                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-                connection.addRequestProperty("Content-Type", "application/json");
-                connection.setDoOutput(true);
-                connection.setRequestMethod("POST");
-
-                // Write JSON to connection
-                OutputStream outputStream = connection.getOutputStream();
-                objectMapper.writeValue(outputStream, postContent);
-                outputStream.flush();
-                outputStream.close();
-
-                // Close connection
-                connection.getInputStream().close();
-                connection.disconnect();
-
-            } catch (Exception e) {
-                System.err.println("Failed notify webhook with URL: " + webhookURL);
-                e.printStackTrace();
+            // The message itself is at fault, so it never will
+            if (response.statusCode() >= 400) {
+                System.err.println("Webhook with URL " + uri + " responded with status " + response.statusCode());
+                return Outcome.REJECTED;
             }
 
-        });
+            return Outcome.DELIVERED;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.FAILED;
+        } catch (Exception e) {
+            System.err.println("Failed notify webhook with URL: " + uri);
+            e.printStackTrace();
+            return Outcome.FAILED;
+        }
+
+    }
+
+    /**
+     * Splits a notification into messages that fit Discord's
+     * limits on embeds. Only the first message pings the roles.
+     *
+     * @param roleIDsToPing The IDs of the roles to ping.
+     * @param updatedURLs   The URLs of the updated documents.
+     * @return The messages to post, in order. Package-private
+     * so that the benchmarks can measure it.
+     */
+    List<ObjectNode> buildMessages(Collection<String> roleIDsToPing, Collection<String> updatedURLs) {
+
+        List<ObjectNode> messages = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        int embedCharacters = 0;
+
+        StringBuilder description = new StringBuilder(DESCRIPTION_HEADER);
+        boolean descriptionHasURLs = false;
+
+        for (String url : updatedURLs) {
+
+            String line = "\n - " + ((url.length() > MAX_URL_LENGTH) ? url.substring(0, MAX_URL_LENGTH) + "..." : url);
+
+            boolean descriptionFull = description.length() + line.length() > MAX_DESCRIPTION_LENGTH;
+            boolean messageFull = embedCharacters + EMBED_TITLE.length() + description.length() + line.length()
+                    > MAX_EMBED_CHARACTERS_PER_MESSAGE;
+
+            if (descriptionFull || messageFull) {
+
+                if (descriptionHasURLs) {
+                    descriptions.add(description.toString());
+                    embedCharacters += EMBED_TITLE.length() + description.length();
+                }
+
+                // Start a new message if the next embed won't fit in this one
+                if (descriptions.size() == MAX_EMBEDS_PER_MESSAGE || embedCharacters + EMBED_TITLE.length()
+                        + CONTINUED_DESCRIPTION_HEADER.length() + line.length() > MAX_EMBED_CHARACTERS_PER_MESSAGE) {
+                    messages.add(buildMessage(messages.isEmpty() ? roleIDsToPing : List.of(), descriptions));
+                    descriptions.clear();
+                    embedCharacters = 0;
+                }
+
+                description = new StringBuilder(CONTINUED_DESCRIPTION_HEADER);
+
+            }
+
+            description.append(line);
+            descriptionHasURLs = true;
+
+        }
+
+        if (descriptionHasURLs) {
+            descriptions.add(description.toString());
+        }
+
+        if (!descriptions.isEmpty()) {
+            messages.add(buildMessage(messages.isEmpty() ? roleIDsToPing : List.of(), descriptions));
+        }
+
+        return messages;
+
+    }
+
+    /**
+     * Builds the JSON of a single message.
+     *
+     * @param roleIDsToPing The IDs of the roles to ping.
+     * @param descriptions  The description of each embed.
+     * @return The message to post.
+     */
+    private ObjectNode buildMessage(Collection<String> roleIDsToPing, List<String> descriptions) {
+
+        ObjectNode postContent = this.objectMapper.createObjectNode();
+
+        // Put in base content
+        StringBuilder content = new StringBuilder();
+
+        for (String roleID : roleIDsToPing) {
+            if (!roleID.isBlank()) {
+                content.append((content.length() > 0) ? " " : "").append("<@&").append(roleID).append('>');
+            }
+        }
+
+        postContent.put("content", content.toString());
+        postContent.put("tts", false);
+
+        // Construct embeds
+        ArrayNode embeds = this.objectMapper.createArrayNode();
+
+        for (String description : descriptions) {
+
+            ObjectNode embed = this.objectMapper.createObjectNode();
+
+            embed.put("title", EMBED_TITLE);
+            embed.put("color", 0x99EEFF);
+            embed.put("description", description);
+
+            embeds.add(embed);
+
+        }
+
+        postContent.set("embeds", embeds);
+
+        return postContent;
+
+    }
+
+    /**
+     * @return How long Discord asked us to wait before trying
+     * again, from the <code>Retry-After</code> header or the
+     * <code>retry_after</code> field of the body.
+     */
+    private long retryAfterInMs(HttpResponse<String> response) {
+
+        if (response.headers().firstValue("Retry-After").isPresent()) {
+            return secondsHeaderInMs(response, "Retry-After");
+        }
+
+        try {
+            JsonNode body = this.objectMapper.readTree(response.body());
+            if (body != null && body.has("retry_after")) {
+                return (long) Math.ceil(body.get("retry_after").asDouble() * 1000);
+            }
+        } catch (Exception e) {
+            // Not JSON, fall through to the default
+        }
+
+        return 1_000L;
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * @return The value of a header holding a (possibly fractional)
+     * number of seconds, in milliseconds. One second if the header
+     * is missing or isn't a number.
+     */
+    private static long secondsHeaderInMs(HttpResponse<?> response, String header) {
+        try {
+            return (long) Math.ceil(Double.parseDouble(response.headers().firstValue(header).orElse("1")) * 1000);
+        } catch (NumberFormatException e) {
+            return 1_000L;
+        }
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * A notification waiting to be delivered to a webhook, made of
+     * every notification queued for it, whatever roles they ping.
+     */
+    private static final class Pending {
+
+        /**
+         * Messages built on an earlier attempt but not posted yet.
+         */
+        private final ArrayDeque<ObjectNode> messages;
+        private final LinkedHashSet<String> urls;
+
+        /**
+         * The roles to ping in the first message built for the URLs.
+         */
+        private final LinkedHashSet<String> roleIDsToPing;
+        private final List<Runnable> onDelivered;
+        private final long readyAtMs;
+        private final int failures;
+
+        /**
+         * @param readyAtMs When to deliver the notification.
+         * @param failures  How many times delivering it has failed.
+         */
+        private Pending(long readyAtMs, int failures) {
+            this.messages = new ArrayDeque<>();
+            this.urls = new LinkedHashSet<>();
+            this.roleIDsToPing = new LinkedHashSet<>();
+            this.onDelivered = new ArrayList<>();
+            this.readyAtMs = readyAtMs;
+            this.failures = failures;
+        }
+
+    }
+
+    /**
+     * How delivering a notification went.
+     */
+    private enum Outcome {
+
+        /**
+         * The webhook accepted it.
+         */
+        DELIVERED,
+
+        /**
+         * It couldn't be delivered now, but may be later.
+         */
+        FAILED,
+
+        /**
+         * The webhook has to wait for its rate limit, which
+         * doesn't count as a failure.
+         */
+        RATE_LIMITED,
+
+        /**
+         * The webhook will never accept it, so it is dropped.
+         */
+        REJECTED
 
     }
 
@@ -0,0 +1,342 @@
+package me.joshuasheldon.doclookout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which webhooks each change goes to, according to the
+ * {@link WebhookSubscription}s of a configuration. Changes that
+ * no subscription matches go to the configuration's own webhook.
+ * <p>
+ * The subscriptions are compiled into an index once, so that
+ * routing a URL costs the same no matter how many there are:<br>
+ * - URL prefixes are kept in a trie, which the URL is walked
+ * down one character at a time,<br>
+ * - hosts are kept in a map, which is looked up for the URL's
+ * host and each of its parent domains, and<br>
+ * - patterns are kept in the same trie as the prefixes, under
+ * the part before their first wildcard, so only the patterns
+ * along the URL's path are tried. Patterns that start with a
+ * wildcard are tried against every URL.
+ * <p>
+ * Prefixes and the part of patterns before their first wildcard
+ * are canonicalized like the URLs they are matched against.
+ * Changes to the same webhook are grouped into one notification,
+ * which pings the roles of every subscription that matched.
+ */
+public class WebhookRouter {
+
+    /* ---------- INSTANCE VARIABLES ---------- */
+
+    /**
+     * Where changes that no subscription matches go, or
+     * <code>null</code> if they aren't sent anywhere.
+     */
+    private final Route defaultRoute;
+
+    /**
+     * The root of the trie of URL prefixes and patterns.
+     */
+    private final Node root;
+
+    /**
+     * The routes of each host, keyed by lowercase host. Subdomain
+     * wildcards are kept as is, e.g. <code>*.example.com</code>.
+     */
+    private final Map<String, List<Route>> hostRoutes;
+
+    /* ---------- CONSTRUCTORS ---------- */
+
+    /**
+     * @param config The configuration to take the subscriptions
+     *               and the default webhook from.
+     */
+    public WebhookRouter(Configuration config) {
+
+        this.defaultRoute = (config.webhookURL() != null && !config.webhookURL().isBlank())
+                ? new Route(config.webhookURL(), rolesOf(config.roleIDToPing()))
+                : null;
+        this.root = new Node();
+        this.hostRoutes = new HashMap<>();
+
+        for (WebhookSubscription subscription : config.webhookSubscriptions()) {
+
+            if (subscription == null || subscription.webhookURL() == null || subscription.webhookURL().isBlank()) {
+                System.err.println("Ignoring a webhook subscription without a webhookURL!");
+                continue;
+            }
+
+            Route route = new Route(subscription.webhookURL(), rolesOf(subscription.roleIDToPing()));
+
+            if (subscription.urlPrefix() != null) {
+                String canonicalPrefix = URLCanonicalizer.canonicalize(subscription.urlPrefix());
+                nodeFor((canonicalPrefix != null) ? canonicalPrefix : subscription.urlPrefix()).routes.add(route);
+            }
+
+            if (subscription.host() != null) {
+                this.hostRoutes.computeIfAbsent(subscription.host().trim().toLowerCase(Locale.ROOT),
+                        host -> new ArrayList<>()).add(route);
+            }
+
+            if (subscription.pattern() != null) {
+                addPattern(subscription.pattern(), route);
+            }
+
+        }
+
+    }
+
+    /* ---------- PUBLIC METHODS ---------- */
+
+    /**
+     * Groups changes by the webhook they go to. A change matched by
+     * several subscriptions goes to each of their webhooks, but only
+     * once to each webhook, which pings the roles of all of them.
+     *
+     * @param changes The changes to route.
+     * @return The changes that go to each webhook, in the order
+     * they were given, keyed by the webhook and every role it pings.
+     */
+    public Map<Route, List<StorageLog.Entry>> route(List<StorageLog.Entry> changes) {
+
+        Map<String, Set<String>> rolesByWebhook = new LinkedHashMap<>();
+        Map<String, List<StorageLog.Entry>> changesByWebhook = new LinkedHashMap<>();
+
+        for (StorageLog.Entry change : changes) {
+            for (Route route : routesFor(change.url())) {
+
+                rolesByWebhook.computeIfAbsent(route.webhookURL(), key -> new LinkedHashSet<>())
+                        .addAll(route.roleIDsToPing());
+
+                List<StorageLog.Entry> webhookChanges =
+                        changesByWebhook.computeIfAbsent(route.webhookURL(), key -> new ArrayList<>());
+
+                // Another of its routes may have added it already
+                if (webhookChanges.isEmpty() || webhookChanges.get(webhookChanges.size() - 1) != change) {
+                    webhookChanges.add(change);
+                }
+
+            }
+        }
+
+        Map<Route, List<StorageLog.Entry>> routed = new LinkedHashMap<>();
+
+        changesByWebhook.forEach((webhookURL, webhookChanges) -> routed.put(
+                new Route(webhookURL, List.copyOf(rolesByWebhook.get(webhookURL))), webhookChanges));
+
+        return routed;
+
+    }
+
+    /**
+     * @param url The URL of a changed document.
+     * @return Every route the change goes to.
+     */
+    public Set<Route> routesFor(String url) {
+
+        Set<Route> routes = new LinkedHashSet<>();
+
+        // Every node along the way is a prefix of the URL
+        Node node = this.root;
+
+        for (int i = 0; node != null; i++) {
+
+            routes.addAll(node.routes);
+
+            for (CompiledPattern pattern : node.patterns) {
+                if (pattern.regex.matcher(url).matches()) {
+                    routes.add(pattern.route);
+                }
+            }
+
+            node = (i < url.length()) ? node.children.get(url.charAt(i)) : null;
+
+        }
+
+        if (!this.hostRoutes.isEmpty()) {
+            addHostRoutes(url, routes);
+        }
+
+        if (routes.isEmpty() && this.defaultRoute != null) {
+            routes.add(this.defaultRoute);
+        }
+
+        return routes;
+
+    }
+
+    /* ---------- PRIVATE METHODS ---------- */
+
+    /**
+     * Adds the routes of the URL's host and of the
+     * subdomain wildcards of each of its parent domains.
+     */
+    private void addHostRoutes(String url, Set<Route> routes) {
+
+        String host = hostOf(url);
+
+        if (host == null) {
+            return;
+        }
+
+        routes.addAll(this.hostRoutes.getOrDefault(host, List.of()));
+
+        for (int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+            routes.addAll(this.hostRoutes.getOrDefault("*" + host.substring(dot), List.of()));
+        }
+
+    }
+
+    /**
+     * Compiles a pattern and files it under the part before its
+     * first wildcard, which every URL it matches starts with. That
+     * part is canonicalized like the URLs it is matched against.
+     */
+    private void addPattern(String pattern, Route route) {
+
+        int literalLength = 0;
+
+        while (literalLength < pattern.length() && "*?".indexOf(pattern.charAt(literalLength)) < 0) {
+            literalLength++;
+        }
+
+        String literal = canonicalLiteral(pattern.substring(0, literalLength));
+        String canonicalPattern = literal + pattern.substring(literalLength);
+        StringBuilder regex = new StringBuilder();
+
+        for (int i = 0; i < canonicalPattern.length(); i++) {
+
+            char character = canonicalPattern.charAt(i);
+
+            if (character == '*' || character == '?') {
+                regex.append((character == '*') ? ".*" : ".");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(character)));
+            }
+
+        }
+
+        nodeFor(literal).patterns.add(new CompiledPattern(Pattern.compile(regex.toString()), route));
+
+    }
+
+    /**
+     * @return The trie node for the given prefix, creating it
+     * and the nodes leading to it if they don't exist yet.
+     */
+    private Node nodeFor(String prefix) {
+
+        Node node = this.root;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), character -> new Node());
+        }
+
+        return node;
+
+    }
+
+    /* ---------- STATIC METHODS ---------- */
+
+    /**
+     * Canonicalizes the part of a pattern before its first wildcard.
+     * A <code>/</code> is only added to an empty path if the literal
+     * ended with one, since the wildcard may well go on with a port
+     * or a path of its own.
+     *
+     * @return The canonical literal, or the literal as it is if it
+     * can't be canonicalized, e.g. because it ends within the host.
+     */
+    private static String canonicalLiteral(String literal) {
+
+        String canonical = URLCanonicalizer.canonicalize(literal);
+
+        if (canonical == null) {
+            return literal;
+        }
+
+        if (canonical.endsWith("/") && !literal.endsWith("/")) {
+            return canonical.substring(0, canonical.length() - 1);
+        }
+
+        return canonical;
+
+    }
+
+    /**
+     * @return The role to ping as a list, which is empty if it's blank.
+     */
+    private static List<String> rolesOf(String roleIDToPing) {
+        return (roleIDToPing != null && !roleIDToPing.isBlank()) ? List.of(roleIDToPing.trim()) : List.of();
+    }
+
+    /**
+     * Cuts the host out of a URL by hand, which is much cheaper
+     * than parsing all of it, and enough for canonical URLs.
+     *
+     * @return The lowercase host, or <code>null</code> if there is none.
+     */
+    private static String hostOf(String url) {
+
+        int schemeEnd = url.indexOf("://");
+
+        if (schemeEnd < 0) {
+            return null;
+        }
+
+        int start = schemeEnd + 3;
+        int end = start;
+
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+
+        // Skip the user info and drop the port, minding IPv6 literals
+        start = Math.max(start, url.lastIndexOf('@', end - 1) + 1);
+
+        int portStart = url.lastIndexOf(':', end - 1);
+
+        if (portStart >= start && url.lastIndexOf(']', end - 1) < portStart) {
+            end = portStart;
+        }
+
+        return (end > start) ? url.substring(start, end).toLowerCase(Locale.ROOT) : null;
+
+    }
+
+    /* ---------- NESTED CLASSES ---------- */
+
+    /**
+     * Where a change goes.
+     *
+     * @param webhookURL    The URL of the webhook to notify.
+     * @param roleIDsToPing The IDs of the roles to ping, if any.
+     */
+    public record Route(String webhookURL, List<String> roleIDsToPing) {
+    }
+
+    /**
+     * A pattern, and where the URLs it matches go.
+     */
+    private record CompiledPattern(Pattern regex, Route route) {
+    }
+
+    /**
+     * A node of the trie, reached by the characters of a prefix.
+     */
+    private static final class Node {
+
+        private final Map<Character, Node> children = new HashMap<>();
+        private final List<Route> routes = new ArrayList<>();
+        private final List<CompiledPattern> patterns = new ArrayList<>();
+
+    }
+
+}
@@ -0,0 +1,25 @@
+package me.joshuasheldon.doclookout;
+
+/**
+ * Sends changes to some URLs to a webhook of their own. A
+ * subscription matches a URL if any of its matchers do, and
+ * a subscription without any matchers matches nothing.
+ *
+ * @param urlPrefix    Matches every URL starting with it, or
+ *                     <code>null</code>. Canonicalized like the
+ *                     URLs to check.
+ * @param host         Matches every URL on this host, or on any
+ *                     subdomain if it starts with <code>*.</code>,
+ *                     or <code>null</code>.
+ * @param pattern      Matches every URL it matches as a whole,
+ *                     where <code>*</code> stands for any number
+ *                     of characters and <code>?</code> for a single
+ *                     one, or <code>null</code>. The part before
+ *                     the first wildcard is canonicalized like the
+ *                     URLs to check.
+ * @param webhookURL   The URL of the webhook to notify.
+ * @param roleIDToPing The ID of the role to ping, or blank.
+ */
+public record WebhookSubscription(String urlPrefix, String host, String pattern, String webhookURL,
+                                  String roleIDToPing) {
+}
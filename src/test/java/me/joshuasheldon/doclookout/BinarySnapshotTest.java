@@ -0,0 +1,112 @@
+package me.joshuasheldon.doclookout;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinarySnapshotTest {
+
+    @Test
+    void statesWrittenCanBeLookedUp(@TempDir Path directory) throws Exception {
+
+        File file = directory.resolve("storage.bin").toFile();
+        Map<String, DocumentState> states = new HashMap<>();
+
+        for (int i = 0; i < 1_000; i++) {
+            states.put("https://example.com/" + i, new DocumentState((long) i,
+                    (i % 2 == 0) ? (long) i * 31 : null,
+                    (i % 3 == 0) ? "\"" + i + "\"" : null,
+                    (i % 5 == 0) ? "Mon, 01 Jan 2024 00:00:00 GMT" : null,
+                    (i % 7 == 0) ? null : 1_700_000_000_000L + i));
+        }
+
+        BinarySnapshot.write(file, states);
+        BinarySnapshot snapshot = BinarySnapshot.open(file);
+
+        assertEquals(states.size(), snapshot.size());
+        assertTrue(snapshot.hasCanonicalURLs());
+
+        for (Map.Entry<String, DocumentState> entry : states.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.lookup(entry.getKey()), entry.getKey());
+        }
+
+        assertNull(snapshot.lookup("https://example.com/1000"));
+        assertNull(snapshot.lookup(""));
+        assertEquals(states, snapshot.toMap());
+
+        Map<String, DocumentState> iterated = new HashMap<>();
+        snapshot.forEach(iterated::put);
+
+        assertEquals(states, iterated);
+
+    }
+
+    @Test
+    void stringsAreKeptAsUTF8(@TempDir Path directory) throws Exception {
+
+        File file = directory.resolve("storage.bin").toFile();
+        Map<String, DocumentState> states = new LinkedHashMap<>();
+
+        states.put("https://example.com/r%C3%A9sum%C3%A9.pdf", DocumentState.ofContentLength(1));
+        states.put("https://b\u00fccher.example/\u00e9", new DocumentState(2L, null, "\"\u00fc-1\"", null, 5L));
+        states.put("https://example.com/\u65e5\u672c\u8a9e",
+                new DocumentState(3L, null, null, "Dienstag \ud83d\ude00", 6L));
+
+        BinarySnapshot.write(file, states);
+        BinarySnapshot snapshot = BinarySnapshot.open(file);
+
+        for (Map.Entry<String, DocumentState> entry : states.entrySet()) {
+            assertEquals(entry.getValue(), snapshot.lookup(entry.getKey()), entry.getKey());
+        }
+
+        // Same UTF-16 length, different bytes
+        assertNull(snapshot.lookup("https://bucher.example/e"));
+        assertEquals(states, snapshot.toMap());
+
+    }
+
+    @Test
+    void emptySnapshotHoldsNothing(@TempDir Path directory) throws Exception {
+
+        File file = directory.resolve("storage.bin").toFile();
+
+        BinarySnapshot.write(file, Map.of());
+        BinarySnapshot snapshot = BinarySnapshot.open(file);
+
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.lookup("https://example.com/"));
+        assertEquals(Map.of(), snapshot.toMap());
+
+        snapshot.forEach((url, state) -> {
+            throw new AssertionError("Unexpected record for " + url);
+        });
+
+    }
+
+    @Test
+    void writingReplacesTheWholeFile(@TempDir Path directory) throws Exception {
+
+        File file = directory.resolve("storage.bin").toFile();
+
+        BinarySnapshot.write(file, Map.of("https://example.com/a", DocumentState.ofContentLength(1),
+                "https://example.com/b", DocumentState.ofContentLength(2)));
+        BinarySnapshot.write(file, Map.of("https://example.com/b", DocumentState.ofContentLength(3)));
+
+        BinarySnapshot snapshot = BinarySnapshot.open(file);
+
+        assertEquals(1, snapshot.size());
+        assertNull(snapshot.lookup("https://example.com/a"));
+        assertEquals(DocumentState.ofContentLength(3), snapshot.lookup("https://example.com/b"));
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package me.joshuasheldon.doclookout;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeHistoryTest {
+
+    private static final String URL_A = "https://example.com/a";
+    private static final String URL_B = "https://example.com/b";
+
+    @Test
+    void changesAreKeptAcrossRestarts(@TempDir Path directory) {
+
+        File historyFile = directory.resolve("history.bin").toFile();
+        ChangeHistory history = new ChangeHistory(historyFile);
+
+        history.record(List.of(change(URL_A, 10, 1_000_500L), change(URL_B, 20, 2_000_000L)));
+
+        // Changes that haven't been flushed can be queried too
+        assertEquals(List.of(new ChangeHistory.Change(1_000_000L, 10)), history.getLastChanges(URL_A, 10));
+
+        history.flush();
+        history.record(List.of(change(URL_A, 11, 3_000_000L)));
+        history.stop();
+
+        ChangeHistory reopened = new ChangeHistory(historyFile);
+
+        assertEquals(List.of(new ChangeHistory.Change(1_000_000L, 10), new ChangeHistory.Change(3_000_000L, 11)),
+                reopened.getChanges(URL_A, 0, Long.MAX_VALUE));
+        assertEquals(List.of(new ChangeHistory.Change(3_000_000L, 11)), reopened.getLastChanges(URL_A, 1));
+        assertEquals(List.of(new ChangeHistory.Change(2_000_000L, 20)), reopened.getChanges(URL_B, 0, 3_000_000L));
+        assertEquals(List.of(), reopened.getChanges(URL_B, 2_001_000L, Long.MAX_VALUE));
+        assertEquals(List.of(), reopened.getLastChanges("https://example.com/c", 10));
+
+        reopened.stop();
+
+    }
+
+    @Test
+    void compactionKeepsEveryChange(@TempDir Path directory) throws Exception {
+
+        File historyFile = directory.resolve("history.bin").toFile();
+        ChangeHistory history = new ChangeHistory(historyFile);
+        List<ChangeHistory.Change> expected = new ArrayList<>();
+
+        // One block per flush, until there are far more blocks than URLs
+        for (int i = 0; i < 1_200; i++) {
+            long timestampMs = 1_700_000_000_000L + i * 1_000L;
+            history.record(List.of(change(URL_A, 100 + i % 7, timestampMs)));
+            history.flush();
+            expected.add(new ChangeHistory.Change(timestampMs, 100 + i % 7));
+        }
+
+        history.record(List.of(change(URL_B, 5, 1_700_000_000_000L)));
+        history.stop();
+
+        // A block per change would take well over 30 bytes each
+        assertTrue(Files.size(historyFile.toPath()) < 1_200 * 30L, "The history wasn't compacted");
+        assertFalse(new File(historyFile.getPath() + ".tmp").exists(), "The compacted file was left behind");
+
+        ChangeHistory reopened = new ChangeHistory(historyFile);
+
+        assertEquals(expected, reopened.getChanges(URL_A, 0, Long.MAX_VALUE));
+        assertEquals(expected.subList(1_195, 1_200), reopened.getLastChanges(URL_A, 5));
+        assertEquals(List.of(new ChangeHistory.Change(1_700_000_000_000L, 5)), reopened.getLastChanges(URL_B, 5));
+
+        reopened.stop();
+
+    }
+
+    @Test
+    void blockCutOffByACrashIsDropped(@TempDir Path directory) throws Exception {
+
+        File historyFile = directory.resolve("history.bin").toFile();
+        ChangeHistory history = new ChangeHistory(historyFile);
+
+        history.record(List.of(change(URL_A, 10, 1_000_000L)));
+        history.stop();
+
+        long size = Files.size(historyFile.toPath());
+
+        // The start of a block that claims more bytes than follow it
+        Files.write(historyFile.toPath(), new byte[]{0, 0, 0, 40, 21, 'h', 't'}, StandardOpenOption.APPEND);
+
+        ChangeHistory reopened = new ChangeHistory(historyFile);
+
+        assertEquals(size, Files.size(historyFile.toPath()));
+        assertEquals(List.of(new ChangeHistory.Change(1_000_000L, 10)), reopened.getLastChanges(URL_A, 10));
+
+        // What's written from then on can be read back again
+        reopened.record(List.of(change(URL_A, 12, 2_000_000L)));
+        reopened.stop();
+
+        ChangeHistory again = new ChangeHistory(historyFile);
+
+        assertEquals(List.of(new ChangeHistory.Change(1_000_000L, 10), new ChangeHistory.Change(2_000_000L, 12)),
+                again.getLastChanges(URL_A, 10));
+
+        again.stop();
+
+    }
+
+    private static StorageLog.Entry change(String url, long contentLength, long lastChangedAtMs) {
+        return new StorageLog.Entry(url,
+                DocumentState.ofContentLength(contentLength).withLastChangedAtMs(lastChangedAtMs));
+    }
+
+}
@@ -0,0 +1,87 @@
+package me.joshuasheldon.doclookout;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StorageLogTest {
+
+    /**
+     * Never lets the log grow large enough to be compacted.
+     */
+    private static final StorageLog.Compactor NEVER_COMPACT = new StorageLog.Compactor() {
+
+        @Override
+        public int snapshotSize() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void writeSnapshot() {
+        }
+
+    };
+
+    @Test
+    void entriesAppendedAfterATornLineAreReplayed(@TempDir Path directory) throws Exception {
+
+        File logFile = directory.resolve("storage.log").toFile();
+
+        // One complete entry, then a write that a crash cut off
+        Files.writeString(logFile.toPath(),
+                "{\"url\":\"https://example.com/a\",\"state\":{\"contentLength\":1}}\n"
+                        + "{\"url\":\"https://example.com/b\",\"sta",
+                StandardCharsets.UTF_8);
+
+        StorageLog log = new StorageLog(logFile, NEVER_COMPACT);
+        Map<String, DocumentState> replayed = replay(log);
+
+        assertEquals(Map.of("https://example.com/a", DocumentState.ofContentLength(1)), replayed);
+
+        log.append(List.of(
+                new StorageLog.Entry("https://example.com/b", DocumentState.ofContentLength(2)),
+                new StorageLog.Entry("https://example.com/a", null)
+        )).get(10, TimeUnit.SECONDS);
+        log.stop();
+
+        Map<String, DocumentState> expected = new LinkedHashMap<>();
+        expected.put("https://example.com/a", null);
+        expected.put("https://example.com/b", DocumentState.ofContentLength(2));
+
+        StorageLog reopened = new StorageLog(logFile, NEVER_COMPACT);
+        assertEquals(expected, replay(reopened));
+        reopened.stop();
+
+    }
+
+    @Test
+    void logIsCreatedIfMissing(@TempDir Path directory) throws IOException {
+
+        File logFile = directory.resolve("storage.log").toFile();
+        StorageLog log = new StorageLog(logFile, NEVER_COMPACT);
+
+        assertEquals(Map.of(), replay(log));
+        log.stop();
+
+        assertEquals(0, Files.size(logFile.toPath()));
+
+    }
+
+    private static Map<String, DocumentState> replay(StorageLog log) {
+        Map<String, DocumentState> states = new LinkedHashMap<>();
+        log.replayAndOpen(states::put);
+        return states;
+    }
+
+}
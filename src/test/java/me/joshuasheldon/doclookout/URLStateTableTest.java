@@ -0,0 +1,118 @@
+package me.joshuasheldon.doclookout;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class URLStateTableTest {
+
+    @Test
+    void behavesLikeAMapUnderRandomPutsAndRemoves() {
+
+        URLStateTable table = new URLStateTable();
+        Map<String, DocumentState> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // Few enough URLs that they keep coming back after being
+        // removed, so that freed IDs and index slots are reused
+        for (int i = 0; i < 20_000; i++) {
+
+            String url = "https://example.com/" + random.nextInt(500);
+            int operation = random.nextInt(10);
+
+            if (operation < 5) {
+                DocumentState state = randomState(random);
+                table.put(url, state);
+                expected.put(url, state);
+            } else if (operation < 6) {
+                table.put(url, null);
+                expected.put(url, null);
+            } else if (operation < 8) {
+                table.remove(url);
+                expected.remove(url);
+            } else {
+                DocumentState state = expected.get(url);
+                table.remove(url, state);
+                expected.remove(url);
+            }
+
+            assertEquals(expected.get(url), table.get(url), url);
+            assertEquals(expected.containsKey(url), table.containsKey(url), url);
+            assertEquals(expected.size(), table.size());
+
+        }
+
+        assertEquals(expected, table.toMap());
+
+    }
+
+    @Test
+    void removeOnlyRemovesTheGivenState() {
+
+        URLStateTable table = new URLStateTable();
+        DocumentState state = new DocumentState(10L, 7L, "\"a\"", null, 1_000L);
+
+        table.put("https://example.com/a", state);
+        table.remove("https://example.com/a", state.withLastChangedAtMs(2_000L));
+
+        assertEquals(state, table.get("https://example.com/a"));
+
+        table.remove("https://example.com/a", state);
+
+        assertFalse(table.containsKey("https://example.com/a"));
+
+        // A tombstone only goes when a tombstone is asked for
+        table.put("https://example.com/b", null);
+        table.remove("https://example.com/b", state);
+
+        assertTrue(table.containsKey("https://example.com/b"));
+        assertNull(table.get("https://example.com/b"));
+
+        table.remove("https://example.com/b", null);
+
+        assertFalse(table.containsKey("https://example.com/b"));
+        assertEquals(0, table.size());
+
+    }
+
+    @Test
+    void comparesStatesInPlace() {
+
+        URLStateTable table = new URLStateTable();
+        DocumentState headers = new DocumentState(10L, null, "\"a\"", "Mon, 01 Jan 2024 00:00:00 GMT", null);
+        DocumentState state = headers.withLastChangedAtMs(1_000L);
+
+        table.put("https://example.com/a", state);
+        int id = table.idOf("https://example.com/a");
+
+        assertEquals(-1, table.idOf("https://example.com/b"));
+        assertEquals(1_000L, table.lastChangedAtMs(id));
+        assertTrue(table.matches(id, headers, 1_000L));
+        assertFalse(table.matches(id, headers, 2_000L));
+
+        assertEquals(state.hasChangedTo(DocumentState.ofContentLength(10)),
+                table.hasChangedTo(id, DocumentState.ofContentLength(10)));
+        assertEquals(state.hasChangedTo(DocumentState.ofContentLength(11)),
+                table.hasChangedTo(id, DocumentState.ofContentLength(11)));
+
+        DocumentState newETag = new DocumentState(10L, null, "\"b\"", null, null);
+        assertEquals(state.hasChangedTo(newETag), table.hasChangedTo(id, newETag));
+
+    }
+
+    private static DocumentState randomState(Random random) {
+        return new DocumentState((long) random.nextInt(1_000),
+                random.nextBoolean() ? random.nextLong() : null,
+                random.nextBoolean() ? "\"" + random.nextInt(100) + "\"" : null,
+                random.nextBoolean() ? "Mon, 01 Jan 2024 00:00:0" + random.nextInt(10) + " GMT" : null,
+                random.nextBoolean() ? (long) random.nextInt(1_000_000) : null);
+    }
+
+}
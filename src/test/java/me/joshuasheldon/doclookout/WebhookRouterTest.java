@@ -0,0 +1,104 @@
+package me.joshuasheldon.doclookout;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WebhookRouterTest {
+
+    private static final String DEFAULT_WEBHOOK = "https://hooks.example/default";
+    private static final String DOCS_WEBHOOK = "https://hooks.example/docs";
+    private static final String HOST_WEBHOOK = "https://hooks.example/host";
+    private static final String PDF_WEBHOOK = "https://hooks.example/pdf";
+
+    @Test
+    void prefixesMatchEveryURLStartingWithThem() {
+
+        WebhookRouter router = new WebhookRouter(configOf(
+                new WebhookSubscription("HTTPS://Example.com:443/docs/", null, null, DOCS_WEBHOOK, "1"),
+                new WebhookSubscription("https://example.com/docs/api/", null, null, PDF_WEBHOOK, null)));
+
+        assertEquals(Set.of(route(DOCS_WEBHOOK, "1")), router.routesFor("https://example.com/docs/guide.doc"));
+        assertEquals(Set.of(route(DOCS_WEBHOOK, "1"), route(PDF_WEBHOOK)),
+                router.routesFor("https://example.com/docs/api/v1.doc"));
+        assertEquals(Set.of(route(DEFAULT_WEBHOOK, "9")), router.routesFor("https://example.com/doc"));
+        assertEquals(Set.of(route(DEFAULT_WEBHOOK, "9")), router.routesFor("https://example.org/docs/guide.doc"));
+
+    }
+
+    @Test
+    void hostsMatchTheirURLsAndWildcardsTheirSubdomains() {
+
+        WebhookRouter router = new WebhookRouter(configOf(
+                new WebhookSubscription(null, " Example.com ", null, HOST_WEBHOOK, null),
+                new WebhookSubscription(null, "*.example.org", null, DOCS_WEBHOOK, null)));
+
+        assertEquals(Set.of(route(HOST_WEBHOOK)), router.routesFor("https://example.com/a.doc"));
+        assertEquals(Set.of(route(HOST_WEBHOOK)), router.routesFor("https://example.com:8080/a.doc"));
+        assertEquals(Set.of(route(DEFAULT_WEBHOOK, "9")), router.routesFor("https://www.example.com/a.doc"));
+        assertEquals(Set.of(route(DOCS_WEBHOOK)), router.routesFor("https://docs.example.org/a.doc"));
+        assertEquals(Set.of(route(DOCS_WEBHOOK)), router.routesFor("https://a.b.example.org/a.doc"));
+        assertEquals(Set.of(route(DEFAULT_WEBHOOK, "9")), router.routesFor("https://example.org/a.doc"));
+
+    }
+
+    @Test
+    void patternsMatchWholeURLsAfterTheirLiteralIsCanonicalized() {
+
+        WebhookRouter router = new WebhookRouter(configOf(
+                new WebhookSubscription(null, null, "https://Example.com/docs/*.pdf", PDF_WEBHOOK, null),
+                new WebhookSubscription(null, null, "*/v?/*", DOCS_WEBHOOK, null),
+                new WebhookSubscription(null, null, "https://example.com*", HOST_WEBHOOK, null)));
+
+        assertEquals(Set.of(route(PDF_WEBHOOK), route(HOST_WEBHOOK)),
+                router.routesFor("https://example.com/docs/a/b.pdf"));
+        assertEquals(Set.of(route(HOST_WEBHOOK)), router.routesFor("https://example.com/docs/a.pdf.bak"));
+        assertEquals(Set.of(route(DOCS_WEBHOOK), route(HOST_WEBHOOK)),
+                router.routesFor("https://example.com/v2/a.doc"));
+        assertEquals(Set.of(route(HOST_WEBHOOK)), router.routesFor("https://example.com:8080/a.doc"));
+        assertEquals(Set.of(route(DOCS_WEBHOOK)), router.routesFor("https://example.org/v3/a.doc"));
+        assertEquals(Set.of(route(DEFAULT_WEBHOOK, "9")), router.routesFor("https://example.org/v10/a.doc"));
+
+    }
+
+    @Test
+    void changesToTheSameWebhookAreGroupedAndPingEveryRole() {
+
+        WebhookRouter router = new WebhookRouter(configOf(
+                new WebhookSubscription("https://example.com/docs/", null, null, DOCS_WEBHOOK, "1"),
+                new WebhookSubscription(null, "example.com", null, DOCS_WEBHOOK, "2"),
+                new WebhookSubscription(null, null, "*.pdf", DOCS_WEBHOOK, " "),
+                new WebhookSubscription(null, null, "*.pdf", PDF_WEBHOOK, null)));
+
+        StorageLog.Entry guide = change("https://example.com/docs/guide.pdf");
+        StorageLog.Entry faq = change("https://example.com/faq.doc");
+        StorageLog.Entry other = change("https://example.org/other.doc");
+
+        Map<WebhookRouter.Route, List<StorageLog.Entry>> routed = router.route(List.of(guide, faq, other));
+
+        assertEquals(Map.of(
+                route(DOCS_WEBHOOK, "1", "2"), List.of(guide, faq),
+                route(PDF_WEBHOOK), List.of(guide),
+                route(DEFAULT_WEBHOOK, "9"), List.of(other)), routed);
+
+    }
+
+    private static Configuration configOf(WebhookSubscription... subscriptions) {
+        return new Configuration(DEFAULT_WEBHOOK, null, new String[0], "9", null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+                null, subscriptions, null);
+    }
+
+    private static WebhookRouter.Route route(String webhookURL, String... roleIDsToPing) {
+        return new WebhookRouter.Route(webhookURL, List.of(roleIDsToPing));
+    }
+
+    private static StorageLog.Entry change(String url) {
+        return new StorageLog.Entry(url, DocumentState.ofContentLength(1));
+    }
+
+}